@@ -0,0 +1,39 @@
+package com.example.Bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ベンチマークを実行する.
+ * JMHのコマンドライン引数はそのまま使える.
+ * GCプロファイラで割り当て量も測り, 結果ファイルを指定しなければtarget/jmh-result.jsonにJSONで書き出す.
+ */
+public class BenchmarkRunner {
+    /**
+     * 結果を書き出すファイルの既定値
+     */
+    private static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class);
+
+        if (!commandLineOptions.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT);
+        }
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+
+        new Runner(options.build()).run();
+    }
+}
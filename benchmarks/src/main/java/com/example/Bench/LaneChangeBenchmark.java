@@ -0,0 +1,66 @@
+package com.example.Bench;
+
+import com.example.Traffic.Car;
+import com.example.Traffic.Road;
+import com.example.Traffic.TrafficManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 車線変更のベンチマーク.
+ * 1回の操作で, 車を隣の車線に移して元に戻し, バッファを反映する.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LaneChangeBenchmark {
+    @Param({"1000", "100000"})
+    public int length;
+
+    @Param({"0.1", "0.3", "0.7"})
+    public double density;
+
+    @Param({"2", "4"})
+    public int lanes;
+
+    private TrafficManager manager;
+    private Road from;
+    private Road to;
+    private Car[] cars;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        manager = Scenarios.create(length, density, lanes, RuleType.NONE);
+        from = manager.getRoads().get(0);
+        to = manager.getRoads().get(1);
+        cars = from.getCars();
+    }
+
+    @Benchmark
+    public boolean changeRoad() {
+        Car car = cars[index];
+        index = index + 1 == cars.length ? 0 : index + 1;
+
+        boolean changed = car.changeRoad(to);
+        if (changed) {
+            car.changeRoad(from);
+        }
+        manager.reflesh();
+        return changed;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.Bench;
+
+import com.example.Traffic.Car;
+import com.example.Traffic.Road;
+import com.example.Traffic.TrafficManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1本の道路に対する操作のベンチマーク.
+ * 車間距離などの問い合わせは, 道路上のすべての車について1回ずつ呼んだ時間を測る.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoadBenchmark {
+    @Param({"1000", "100000"})
+    public int length;
+
+    @Param({"0.1", "0.3", "0.7"})
+    public double density;
+
+    @Param({"NONE", "SLOW_START", "CUSTOM"})
+    public RuleType rule;
+
+    private Road road;
+    private Car.Rule roadRule;
+    private Car[] cars;
+
+    @Setup
+    public void setUp() {
+        TrafficManager manager = Scenarios.create(length, density, 1, RuleType.NONE);
+        road = Scenarios.firstRoad(manager);
+        roadRule = rule.create();
+        cars = road.getCars();
+    }
+
+    @Benchmark
+    public Road update() {
+        road.update(roadRule);
+        return road;
+    }
+
+    @Benchmark
+    public long forwardFreeLength() {
+        long sum = 0;
+        for (Car car : cars) {
+            sum += road.forwardFreeLength(car);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long backFreeLength() {
+        long sum = 0;
+        for (Car car : cars) {
+            sum += road.backFreeLength(car);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long nextJamLength() {
+        long sum = 0;
+        for (Car car : cars) {
+            sum += road.nextJamLength(car);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public String roadToString() {
+        return road.toString();
+    }
+}
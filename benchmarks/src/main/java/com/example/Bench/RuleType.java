@@ -0,0 +1,136 @@
+package com.example.Bench;
+
+import com.example.Traffic.BatchRule;
+import com.example.Traffic.Car;
+import com.example.Traffic.LocalRule;
+import com.example.Traffic.Road;
+
+import javax.annotation.Nullable;
+
+/**
+ * ベンチマークで使う移動規則の種類.
+ */
+public enum RuleType {
+    /**
+     * ルールなし. すべての車がスピード分だけ進む.
+     */
+    NONE {
+        @Override
+        Car.Rule create() {
+            return null;
+        }
+    },
+    /**
+     * Mainで使っているスロースタートのルール.
+     */
+    SLOW_START {
+        @Override
+        Car.Rule create() {
+            return new Car.Rule() {
+                @Override
+                public void onMove(
+                        Car car,
+                        @Nullable Road left,
+                        @Nullable Road right,
+                        int forwardFreeLength,
+                        int backFreeLength,
+                        int nextJamLength,
+                        boolean wasSecondOfJam) {
+                    if (nextJamLength < 2 &&
+                            backFreeLength > 1) {
+                        //Don't move.
+                    } else {
+                        car.move(1);
+                    }
+                    super.onMove(car, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam);
+                }
+            };
+        }
+    },
+    /**
+     * SLOW_STARTと同じ動きを, 道路ごとにまとめて適用するBatchRuleで行う.
+     */
+    SLOW_START_BATCH {
+        @Override
+        Car.Rule create() {
+            return null;
+        }
+
+        @Override
+        BatchRule createBatch() {
+            return (batch, moves) -> {
+                int[] backFreeLengths = batch.getBackFreeLengths();
+                int[] nextJamLengths = batch.getNextJamLengths();
+                for (int i = 0; i < batch.size(); i++) {
+                    moves[i] = nextJamLengths[i] < 2 && backFreeLengths[i] > 1 ? 0 : 1;
+                }
+            };
+        }
+    },
+    /**
+     * 前のステップで前が詰まっていた車は1ステップ待ってから発進するルールを, 遷移表にまとめたLocalRuleで行う.
+     */
+    LOCAL_SLOW_TO_START {
+        @Override
+        Car.Rule create() {
+            return null;
+        }
+
+        @Override
+        BatchRule createBatch() {
+            return LocalRule.compile(1, 1, neighbourhood -> !neighbourhood.wasNextFilled());
+        }
+    },
+    /**
+     * 前が詰まっていれば空いている隣の車線に移り, そうでなければ前が空いているだけ最大2セル進むルール.
+     */
+    CUSTOM {
+        @Override
+        Car.Rule create() {
+            return new Car.Rule() {
+                @Override
+                public void onMove(
+                        Car car,
+                        @Nullable Road left,
+                        @Nullable Road right,
+                        int forwardFreeLength,
+                        int backFreeLength,
+                        int nextJamLength,
+                        boolean wasSecondOfJam) {
+                    if (forwardFreeLength == 0) {
+                        int position = car.getRoad().positionOf(car);
+                        if (left != null && !left.isFilled(position)) {
+                            car.changeRoad(left);
+                        } else if (right != null && !right.isFilled(position)) {
+                            car.changeRoad(right);
+                        }
+                    } else {
+                        car.move(wasSecondOfJam ? 1 : 2);
+                    }
+
+                    if (car.getRoad() != null) {
+                        super.onMove(car, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam);
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * ルールを生成する.
+     *
+     * @return ルール. NONEの場合はnull.
+     */
+    @Nullable
+    abstract Car.Rule create();
+
+    /**
+     * 道路ごとにまとめて適用するルールを生成する.
+     *
+     * @return ルール. 車ごとのルールを使う場合はnull.
+     */
+    @Nullable
+    BatchRule createBatch() {
+        return null;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.Bench;
+
+import com.example.Traffic.BatchRule;
+import com.example.Traffic.Car;
+import com.example.Traffic.Road;
+import com.example.Traffic.TrafficManager;
+
+import java.util.Random;
+
+/**
+ * ベンチマーク用の道路を生成する.
+ */
+final class Scenarios {
+    //実行ごとに同じ道路になるように固定した乱数の種
+    private static final long SEED = 20160519L;
+
+    private Scenarios() {
+    }
+
+    /**
+     * 指定した条件で道路を生成したTrafficManagerを返す.
+     *
+     * @param length  道路長
+     * @param density 車の密度. 0以上1以下.
+     * @param lanes   車線の数
+     * @param rule    移動規則の種類
+     * @return TrafficManager
+     */
+    static TrafficManager create(int length, double density, int lanes, RuleType rule) {
+        TrafficManager manager = new TrafficManager();
+        Random random = new Random(SEED);
+        for (int lane = 0; lane < lanes; lane++) {
+            manager.addRoad(roadCondition(length, density, random));
+        }
+        //2本目以降の道はrefleshするまで車が見えないので, ここで揃えておく
+        manager.reflesh();
+
+        Car.Rule created = rule.create();
+        if (created != null) {
+            manager.addRule(created);
+        }
+        BatchRule batch = rule.createBatch();
+        if (batch != null) {
+            manager.addBatchRule(batch);
+        }
+        return manager;
+    }
+
+    /**
+     * 指定した密度で車を置いた道路の文字列を返す.
+     *
+     * @param length  道路長
+     * @param density 車の密度
+     * @param random  乱数
+     * @return 0と1からなる文字列
+     */
+    private static String roadCondition(int length, double density, Random random) {
+        StringBuilder roadCondition = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            roadCondition.append(random.nextDouble() < density ? '1' : '0');
+        }
+        return roadCondition.toString();
+    }
+
+    /**
+     * 最初の道を返す.
+     *
+     * @param manager TrafficManager
+     * @return 最初の道
+     */
+    static Road firstRoad(TrafficManager manager) {
+        return manager.getRoads().get(0);
+    }
+}
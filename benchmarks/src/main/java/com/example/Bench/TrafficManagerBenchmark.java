@@ -0,0 +1,56 @@
+package com.example.Bench;
+
+import com.example.Traffic.TrafficManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 複数車線をまとめて1ステップ進めるベンチマーク.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficManagerBenchmark {
+    @Param({"1000", "100000"})
+    public int length;
+
+    @Param({"0.1", "0.3", "0.7"})
+    public double density;
+
+    @Param({"1", "4"})
+    public int lanes;
+
+    @Param({"NONE", "SLOW_START", "SLOW_START_BATCH", "LOCAL_SLOW_TO_START", "CUSTOM"})
+    public RuleType rule;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private TrafficManager manager;
+
+    @Setup
+    public void setUp() {
+        manager = Scenarios.create(length, density, lanes, rule);
+        manager.setParallel(parallel);
+    }
+
+    @Benchmark
+    public TrafficManager update() {
+        manager.update();
+        return manager;
+    }
+}
@@ -1,39 +1,61 @@
 package com.example;
 
+import com.example.Traffic.BatchRunner;
 import com.example.Traffic.Car;
 import com.example.Traffic.Road;
+import com.example.Traffic.RuleRegistry;
+import com.example.Traffic.SimulationServer;
 import com.example.Traffic.TrafficManager;
-import com.sun.istack.internal.Nullable;
+import javax.annotation.Nullable;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class Main {
 
-    public static void main(String[] args) {
+    /**
+     * 引数なしなら, 標準入力から道路と経過時間を読んで結果を出力する.
+     * --serve [ポート番号]なら, SimulationServerを起動する. 移動規則はmainという名前で指定できる.
+     * --batch 入力 出力なら, BatchRunnerで入力の各行を実行して出力に書き出す. -は標準入力・標準出力を表す.
+     *
+     * @param args 引数
+     * @throws IOException サーバーを起動できなかった場合, またはバッチの入出力に失敗した場合
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            RuleRegistry registry = new RuleRegistry().register("main", createRule());
+            int processors = Runtime.getRuntime().availableProcessors();
+            SimulationServer server = new SimulationServer(registry, port, processors, processors * 16);
+            System.out.println("http://localhost:" + server.getPort() + "/simulate");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            if (args.length < 3)
+                throw new IllegalArgumentException("Usage: --batch <input> <output>");
 
-        TrafficManager manager = new TrafficManager();
-        manager.addRule(new Car.Rule() {
-            @Override
-            public void onMove(
-                    Car car,
-                    @Nullable Road left,
-                    @Nullable Road right,
-                    int forwardFreeLength,
-                    int backFreeLength,
-                    int nextJamLength,
-                    boolean wasSecondOfJam) {
-                //Define your rules here.
-                if (nextJamLength < 2 &&
-                        backFreeLength > 1) {
-                    //Don't move.
-                } else {
-                    car.move(1);
-                }
-                super.onMove(car, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam);
+            BatchRunner runner = new BatchRunner(Main::createRule);
+            try (Reader in = args[1].equals("-")
+                    ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                    : Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8);
+                 Writer out = args[2].equals("-")
+                         ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)
+                         : Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+                runner.run(in, out);
             }
-        });
+            return;
+        }
+
+        TrafficManager manager = new TrafficManager();
+        manager.addRule(createRule());
 
         InputStreamReader isr = new InputStreamReader(System.in);
         BufferedReader br = new BufferedReader(isr);
@@ -96,4 +118,32 @@ public class Main {
             e.printStackTrace();
         }
     }
+
+    /**
+     * このプログラムで使う移動規則を作る.
+     *
+     * @return 移動規則
+     */
+    private static Car.Rule createRule() {
+        return new Car.Rule() {
+            @Override
+            public void onMove(
+                    Car car,
+                    @Nullable Road left,
+                    @Nullable Road right,
+                    int forwardFreeLength,
+                    int backFreeLength,
+                    int nextJamLength,
+                    boolean wasSecondOfJam) {
+                //Define your rules here.
+                if (nextJamLength < 2 &&
+                        backFreeLength > 1) {
+                    //Don't move.
+                } else {
+                    car.move(1);
+                }
+                super.onMove(car, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam);
+            }
+        };
+    }
 }
@@ -0,0 +1,104 @@
+package com.example.Traffic;
+
+/**
+ * 道路1本分の車をまとめて動かす移動規則.
+ * Car.Ruleは車ごとに呼ばれるが, こちらは道路ごとに1ステップ1回, 前ステップの状態を配列にまとめて渡される.
+ * TrafficManager.addBatchRule()で設定し, 道路のルールがなく, 固有のルールを持たない車に適用される.
+ * 並列更新では複数の車線から同時に呼ばれる.
+ */
+@FunctionalInterface
+public interface BatchRule {
+    /**
+     * 移動規則.
+     * batchの配列の0番目からbatch.size() - 1番目までが, 位置の昇順に並んだ車に対応する.
+     * 各車について進みたい距離をmovesに書き込む. 前の空いている長さより長い場合は丸められる.
+     * movesは0で初期化されている. ルールの中で車を直接動かした場合は0のままにする.
+     *
+     * @param batch 道路上の車の状態
+     * @param moves 進みたい距離の書き込み先
+     */
+    void onMove(RoadBatch batch, int[] moves);
+
+    /**
+     * 前のセルが埋まっていて進めない車も, 毎ステップbatchに含める必要があるかどうか返す.
+     * TrafficManager.setActiveSetScheduling(true)の時, これがfalseならそのような車はbatchに含まれない.
+     *
+     * @return 毎ステップ含める必要があるならtrue
+     */
+    default boolean needsEveryStep() {
+        return false;
+    }
+
+    /**
+     * Nagel-Schreckenbergモデルの移動規則を返す.
+     * 車のスピードを前ステップの速度として, 1だけ加速し, 前の空いている長さで頭打ちにしてから,
+     * 確率brakingProbabilityで1だけ減速し, その距離だけ進む. 求めた速度は車のスピードとして残す.
+     * 乱数はRoadBatch.nextRandom()を使うので, 結果はTrafficManager.setSeed()の種だけで決まる.
+     * brakingProbabilityが0なら乱数を引かないので, TrafficManager.setCycleDetection()で周期を飛ばせる.
+     *
+     * @param maxSpeed           最高速度. 1以上.
+     * @param brakingProbability 減速する確率. 0以上1以下.
+     * @return BatchRule
+     */
+    static BatchRule nagelSchreckenberg(int maxSpeed, double brakingProbability) {
+        if (maxSpeed < 1)
+            throw new IllegalArgumentException("maxSpeed must be bigger than or equal to 1.");
+        if (!(brakingProbability >= 0 && brakingProbability <= 1))
+            throw new IllegalArgumentException("brakingProbability must be between 0 and 1.");
+
+        return new BatchRule() {
+            @Override
+            public void onMove(RoadBatch batch, int[] moves) {
+                int[] speeds = batch.getSpeeds();
+                int[] forwardFreeLengths = batch.getForwardFreeLengths();
+                for (int i = 0; i < batch.size(); i++) {
+                    int speed = Math.min(Math.min(speeds[i] + 1, maxSpeed), forwardFreeLengths[i]);
+                    if (speed > 0 && brakingProbability > 0 && batch.nextRandom(i) < brakingProbability) {
+                        speed--;
+                    }
+                    if (speed != speeds[i]) {
+                        batch.getCar(i).setSpeed(speed);
+                    }
+                    moves[i] = speed;
+                }
+            }
+
+            @Override
+            public boolean needsEveryStep() {
+                //止まっている車も速度を0にし, 乱数を引く
+                return true;
+            }
+        };
+    }
+
+    /**
+     * 車ごとの移動規則を, 車ごとにそのまま適用するBatchRuleを返す.
+     * 結果は, TrafficManager.addRule()でルールを設定した場合と同じになる.
+     *
+     * @param rule 車ごとの移動規則
+     * @return BatchRule
+     */
+    static BatchRule of(Car.Rule rule) {
+        if (rule == null)
+            throw new IllegalArgumentException("rule must not be null.");
+
+        return new BatchRule() {
+            @Override
+            public void onMove(RoadBatch batch, int[] moves) {
+                int[] forwardFreeLengths = batch.getForwardFreeLengths();
+                int[] backFreeLengths = batch.getBackFreeLengths();
+                int[] nextJamLengths = batch.getNextJamLengths();
+                boolean[] wasSecondOfJam = batch.getWasSecondOfJam();
+                for (int i = 0; i < batch.size(); i++) {
+                    rule.onMove(batch.getCar(i), batch.getLeft(), batch.getRight(),
+                            forwardFreeLengths[i], backFreeLengths[i], nextJamLengths[i], wasSecondOfJam[i]);
+                }
+            }
+
+            @Override
+            public boolean needsEveryStep() {
+                return rule.needsEveryStep();
+            }
+        };
+    }
+}
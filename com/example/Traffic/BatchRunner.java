@@ -0,0 +1,200 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * 道路の状態とステップ数を1行ずつ並べた入力を読み, 行ごとに独立したTrafficManagerで進めた結果を同じ順に書き出すクラス.
+ * <p>
+ * 入力の各行は「道路の状態 ステップ数」. 道路の状態はTrafficManager.addRoad()と同じく■□または1と0で表し,
+ * 最後の空白より後ろをステップ数とする. 空行は読み飛ばす.
+ * 出力の各行は「進めた後の道路の状態(1と0) タブ 車が進んだ距離の合計」.
+ * <p>
+ * 入力は必要な分だけ読み, 各行をプールで並列に実行する. 結果は入力の順に並べ直してから書き出す.
+ * 同時に抱える行の数はsetWindow()の値までに制限するので, 入力がどれだけ大きくてもメモリの使用量は一定に収まる.
+ */
+public class BatchRunner {
+    private final Supplier<Car.Rule> rule;
+    private ForkJoinPool pool;
+    private int window = 1024;
+    private boolean cycleDetection;
+
+    /**
+     * 指定したルールで実行するBatchRunnerを生成する.
+     *
+     * @param rule 行ごとにルールを生成するSupplier. nullを返すとルールなし.
+     */
+    public BatchRunner(Supplier<Car.Rule> rule) {
+        if (rule == null)
+            throw new IllegalArgumentException("rule must not be null.");
+
+        this.rule = rule;
+    }
+
+    /**
+     * 実行に使うプールを設定する.
+     *
+     * @param pool プール. nullならForkJoinPool.commonPool()を使う.
+     */
+    public void setPool(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 読み込んだが書き出していない行の最大数を設定する.
+     * プールのスレッド数より十分大きくしておけば, 時間のかかる行があっても他のスレッドが止まりにくい.
+     *
+     * @param window 行の数. 1以上.
+     */
+    public void setWindow(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("window must be bigger than or equal to 1.");
+
+        this.window = window;
+    }
+
+    /**
+     * 各行を進める際に, TrafficManager.updateTo()で周期を探して飛ばすかどうか設定する.
+     * ルールが同じ状態から必ず同じ動きをする場合にだけ有効にすること.
+     *
+     * @param cycleDetection 周期を探すならtrue
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * 入力をすべて実行し, 結果を書き出す. 入力と出力は閉じない.
+     *
+     * @param in  入力
+     * @param out 出力
+     * @return 実行した行の数
+     * @throws IOException 読み書きできなかった場合
+     */
+    public long run(Reader in, Writer out) throws IOException {
+        BufferedReader reader = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in, 1 << 16);
+        ForkJoinPool service = pool == null ? ForkJoinPool.commonPool() : pool;
+
+        //実行中または書き出し待ちの行. head番目が最も古い
+        @SuppressWarnings("unchecked")
+        ForkJoinTask<String>[] pending = (ForkJoinTask<String>[]) new ForkJoinTask<?>[window];
+        int head = 0;
+        int count = 0;
+        long lineNumber = 0;
+        long jobs = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty())
+                    continue;
+
+                if (count == pending.length) {
+                    //一番古い行が終わるのを待って書き出し, 空いた枠を使う
+                    out.write(pending[head].join());
+                    pending[head] = null;
+                    head = head + 1 == pending.length ? 0 : head + 1;
+                    count--;
+                }
+
+                Job job = Job.parse(line, lineNumber);
+                ForkJoinTask<String> task = ForkJoinTask.adapt(() -> run(job));
+                service.execute(task);
+                pending[(head + count) % pending.length] = task;
+                count++;
+                jobs++;
+            }
+
+            while (count > 0) {
+                out.write(pending[head].join());
+                pending[head] = null;
+                head = head + 1 == pending.length ? 0 : head + 1;
+                count--;
+            }
+        } finally {
+            //途中で失敗した場合は, 残りの行の実行を取り消す
+            for (ForkJoinTask<String> task : pending) {
+                if (task != null) {
+                    task.cancel(false);
+                }
+            }
+        }
+        out.flush();
+        return jobs;
+    }
+
+    /**
+     * 1行分を実行する.
+     *
+     * @param job 行の内容
+     * @return 出力する行(改行を含む)
+     */
+    private String run(Job job) {
+        TrafficManager manager = new TrafficManager();
+        Road road = manager.addRoad(job.roadCondition);
+        Car.Rule created = rule.get();
+        if (created != null) {
+            manager.addRule(created);
+        }
+
+        if (cycleDetection) {
+            manager.setCycleDetection(true);
+            manager.updateTo(job.steps);
+        } else {
+            for (long i = 0; i < job.steps; i++) {
+                manager.update();
+            }
+        }
+
+        StringBuilder result = new StringBuilder(road.length + 24);
+        for (int position = 0; position < road.length; position++) {
+            result.append(road.isFilled(position) ? '1' : '0');
+        }
+        return result.append('\t').append(road.movedLength()).append('\n').toString();
+    }
+
+    /**
+     * 入力の1行.
+     */
+    private static final class Job {
+        final String roadCondition;
+        final long steps;
+
+        private Job(String roadCondition, long steps) {
+            this.roadCondition = roadCondition;
+            this.steps = steps;
+        }
+
+        /**
+         * 1行を読む.
+         *
+         * @param line       行
+         * @param lineNumber 行番号. エラーの表示に使う.
+         * @return 行の内容
+         */
+        static Job parse(String line, long lineNumber) {
+            String trimmed = line.trim();
+            int separator = Math.max(trimmed.lastIndexOf(' '), trimmed.lastIndexOf('\t'));
+            if (separator < 0)
+                throw new IllegalArgumentException("Line " + lineNumber + ": steps are missing.");
+
+            long steps;
+            try {
+                steps = Long.parseLong(trimmed.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": steps must be an integer.");
+            }
+            if (steps < 0)
+                throw new IllegalArgumentException("Line " + lineNumber + ": steps must be bigger than or equal to 0.");
+
+            return new Job(trimmed.substring(0, separator), steps);
+        }
+    }
+}
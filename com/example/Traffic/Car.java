@@ -1,25 +1,25 @@
 package com.example.Traffic;
 
-import com.sun.istack.internal.Nullable;
+import javax.annotation.Nullable;
 
 /**
  * 車クラス.
+ * 車の属性(スピード・ルール・前のセルが埋まっていたかどうかの履歴など)はTrafficManagerがIDごとの配列にまとめて持ち,
+ * このクラスはIDと世代だけを持つ.
+ * 管理対象から外した道にいた車のIDは再利用され, その車は破棄されて使えなくなる.
  * Created by Ryohei Fujii on 2016/05/19.
  */
 public class Car {
-    //前回生成した車のID
-    private static int previousID = -1;
     /**
-     * 車を識別するID
+     * 車を識別するID. 同じTrafficManagerが同時に管理する車の中で一意.
+     * 破棄された車のIDは, 後で生成する車に再利用される.
      */
     public final int id;
     private final TrafficManager manager;
-    //前が空いている時に進む最大の距離
-    private int speed = 1;
-    private Rule rule;
-    private boolean isRuleSustainable = false;
-    private boolean isNextFilled = false;
-    private boolean wasNextFilled = false;
+    //managerが持つ車の属性の表
+    private final CarTable cars;
+    //IDを割り当てた時点の世代. IDが再利用されると一致しなくなる
+    private final int generation;
 
     /**
      * 車を生成する.
@@ -27,9 +27,78 @@ public class Car {
      * @param manager この車を管理するTrafficManager
      */
     Car(TrafficManager manager) {
-        id = previousID + 1;
-        previousID++;
         this.manager = manager;
+        this.cars = manager.cars();
+        this.id = cars.allocate();
+        this.generation = cars.generation(id);
+    }
+
+    /**
+     * IDを指定して車を生成する. チェックポイントから復元する時に使う.
+     *
+     * @param manager この車を管理するTrafficManager
+     * @param id      ID
+     */
+    Car(TrafficManager manager, int id) {
+        this.manager = manager;
+        this.cars = manager.cars();
+        this.id = cars.allocate(id);
+        this.generation = cars.generation(id);
+    }
+
+    /**
+     * 車が破棄されていないことを確かめる.
+     *
+     * @throws IllegalStateException 車が破棄されている場合
+     */
+    private void checkAlive() {
+        if (!cars.isAlive(id, generation))
+            throw discarded(id);
+    }
+
+    private static IllegalStateException discarded(int id) {
+        return new IllegalStateException("Car " + id + " has been discarded.");
+    }
+
+    /**
+     * 車が破棄されていないかどうか返す.
+     *
+     * @return 破棄されていなければtrue
+     */
+    boolean isAlive() {
+        return cars.isAlive(id, generation);
+    }
+
+    /**
+     * 走っている道を返す. Roadが管理する.
+     *
+     * @return 道. 走っていない場合と破棄されている場合はnull.
+     */
+    @Nullable
+    Road road() {
+        return cars.isAlive(id, generation) ? cars.road(id) : null;
+    }
+
+    /**
+     * 道の中でのスロット番号を返す. Roadが管理する.
+     * 破棄されているかどうかは確かめないので, road()などで確かめてから呼ぶ.
+     *
+     * @return スロット番号. 割り当てられていなければ-1.
+     */
+    int slot() {
+        return cars.slot(id);
+    }
+
+    /**
+     * 走っている道とその中でのスロット番号を設定する. Roadが管理する.
+     *
+     * @param road 道. 道から消えた場合はnull.
+     * @param slot スロット番号
+     */
+    void place(@Nullable Road road, int slot) {
+        checkAlive();
+        cars.setRoad(id, road);
+        cars.setSlot(id, slot);
     }
 
     /**
@@ -47,7 +116,8 @@ public class Car {
      * @return 移動規則が設定されているかどうか
      */
     public boolean isRuleSet() {
-        return rule != null;
+        checkAlive();
+        return cars.rule(id) != null;
     }
 
     /**
@@ -56,7 +126,8 @@ public class Car {
      * @param isRuleSustainable 車線変更後もルールを維持するかどうか
      */
     public void setIsRuleSustainable(boolean isRuleSustainable) {
-        this.isRuleSustainable = isRuleSustainable;
+        checkAlive();
+        cars.setRuleSustainable(id, isRuleSustainable);
     }
 
     /**
@@ -65,7 +136,8 @@ public class Car {
      * @return 車線変更後もルールを維持するかどうか
      */
     public boolean isRuleSustainable() {
-        return isRuleSustainable;
+        checkAlive();
+        return cars.isRuleSustainable(id);
     }
 
     /**
@@ -74,14 +146,60 @@ public class Car {
      * @param rule 規則
      */
     public void addRule(Rule rule) {
-        this.rule = rule;
+        checkAlive();
+        manager.onCarRuleChanged(cars.rule(id), rule);
+        cars.setRule(id, rule);
     }
 
     /**
      * 移動規則を削除する.
      */
     public void removeRule() {
-        this.rule = null;
+        checkAlive();
+        manager.onCarRuleChanged(cars.rule(id), null);
+        cars.setRule(id, null);
+    }
+
+    /**
+     * 設定されている移動規則を返す.
+     *
+     * @return 移動規則. 設定されていなければnull.
+     */
+    @Nullable
+    Rule rule() {
+        checkAlive();
+        return cars.rule(id);
+    }
+
+    /**
+     * 最後に移動規則を適用した時に前のセルが埋まっていたかどうか返す.
+     *
+     * @return 埋まっていればtrue
+     */
+    boolean isNextFilled() {
+        checkAlive();
+        return cars.isNextFilled(id);
+    }
+
+    /**
+     * その1つ前に移動規則を適用した時に前のセルが埋まっていたかどうか返す.
+     *
+     * @return 埋まっていればtrue
+     */
+    boolean wasNextFilled() {
+        checkAlive();
+        return cars.wasNextFilled(id);
+    }
+
+    /**
+     * 渋滞の2番めの車だったかどうかの判定に使う状態を設定する. チェックポイントから復元する時に使う.
+     *
+     * @param isNextFilled  最後に移動規則を適用した時に前のセルが埋まっていたかどうか
+     * @param wasNextFilled その1つ前に移動規則を適用した時に前のセルが埋まっていたかどうか
+     */
+    void restoreNextFilled(boolean isNextFilled, boolean wasNextFilled) {
+        checkAlive();
+        cars.setNextFilled(id, isNextFilled, wasNextFilled);
     }
 
     /**
@@ -102,28 +220,59 @@ public class Car {
             int forwardFreeLength,
             int backFreeLength,
             int nextJamLength) {
-        if (this.rule == null && rule == null) {
+        checkAlive();
+        Rule ownRule = cars.rule(id);
+        if (ownRule == null && rule == null) {
             //上位のルールが存在せず, かつ車が固有のルールをもたない場合. デフォルトの動作.
-            manager.moveCar(this, speed);
-        } else if (this.rule == null) {
+            manager.moveCar(this, cars.speed(id));
+        } else if (ownRule == null) {
             //上位のルールが存在し, かつ車が固有のルールをもたない場合.
-            rule.onMove(this, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam());
+            rule.onMove(this, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam(cars));
         } else {
             //車が固有のルールを持つ場合
-            this.rule.onMove(this, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam());
+            ownRule.onMove(this, left, right, forwardFreeLength, backFreeLength, nextJamLength, wasSecondOfJam(cars));
+        }
+    }
+
+    /**
+     * 前のセルが埋まっていて進めない時に, 移動規則を適用せずに飛ばせるかどうか返す.
+     *
+     * @param rule 上位（道またはManager）のルール
+     * @return 飛ばせるならtrue
+     */
+    boolean canSkipWhenBlocked(@Nullable Rule rule) {
+        checkAlive();
+        Rule ownRule = cars.rule(id);
+        if (ownRule == null) {
+            return manager.canSkipBlockedCars(rule);
+        }
+        //維持しない固有のルールはonMoveで外れるので, 飛ばすと結果が変わる
+        return cars.isRuleSustainable(id) && manager.canSkipBlockedCars(ownRule);
+    }
+
+    /**
+     * 進めない車を飛ばす. 移動規則を適用した場合と同じく, 前のセルが埋まっていたことを記録する.
+     *
+     * @param rule 上位（道またはManager）のルール
+     */
+    void skipWhenBlocked(@Nullable Rule rule) {
+        checkAlive();
+        if (cars.rule(id) != null || rule != null) {
+            cars.pushNextFilled(id, true);
         }
     }
 
     /**
      * 1ステップ前に渋滞の2番めの車だったかどうか返す.
      *
+     * @param cars 車の属性の表
      * @return 1ステップ前に渋滞の2番めの車だったかどうか
      */
-    private boolean wasSecondOfJam() {
+    private boolean wasSecondOfJam(CarTable cars) {
         Road road = getRoad();
-        wasNextFilled = isNextFilled;
-        isNextFilled = road.isFilled(road.positionOf(this) + 1);
-        return wasNextFilled && !isNextFilled;
+        boolean isNextFilled = road.isFilled(road.positionOf(this) + 1);
+        cars.pushNextFilled(id, isNextFilled);
+        return cars.wasNextFilled(id) && !isNextFilled;
     }
 
     /**
@@ -146,6 +295,47 @@ public class Car {
         return manager.changeRoad(this, to);
     }
 
+    /**
+     * この車の, 現在のステップ用の乱数列から次の値を返す.
+     * 乱数列はTrafficManager.setSeed()で設定した種, 車のID, ステップ数だけで決まる.
+     * そのため結果は並列更新のスレッド数や車線を更新する順序によらず, 同じ種なら必ず同じになる.
+     * 同じステップの中では呼ぶたびに列の次の値を返し, 次のステップでは別の列になる.
+     *
+     * @return 0以上1未満の値
+     */
+    public double nextRandom() {
+        return (nextRandomBits() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * この車の, 現在のステップ用の乱数列から0以上bound未満の整数を返す. 乱数列はnextRandom()と共通.
+     *
+     * @param bound 上限(含まない). 1以上.
+     * @return 0以上bound未満の値
+     */
+    public int nextRandomInt(int bound) {
+        if (bound <= 0)
+            throw new IllegalArgumentException("bound must be bigger than 0.");
+
+        int value = (int) (nextRandomBits() >>> 33);
+        int mask = bound - 1;
+        if ((bound & mask) == 0)
+            return (int) ((bound * (long) value) >> 31);
+
+        //偏らないように, 割り切れない端数に当たった場合は引き直す
+        int u = value;
+        while (u - (value = u % bound) + mask < 0) {
+            u = (int) (nextRandomBits() >>> 33);
+        }
+        return value;
+    }
+
+    private long nextRandomBits() {
+        checkAlive();
+        manager.onRandomDrawn();
+        return cars.nextRandom(id, manager.getSeed(), manager.getSteps());
+    }
+
     /**
      * この車の左の車線を返す
      *
@@ -170,7 +360,8 @@ public class Car {
      * @return スピード
      */
     public int getSpeed() {
-        return speed;
+        checkAlive();
+        return cars.speed(id);
     }
 
     /**
@@ -179,11 +370,13 @@ public class Car {
      * @param speed スピード
      */
     public void setSpeed(int speed) {
-        if (this.speed < 0) {
+        checkAlive();
+        if (cars.speed(id) < 0) {
             speed = 0;
         }
 
-        this.speed = speed;
+        manager.onCarSpeedChanged(cars.speed(id), speed);
+        cars.setSpeed(id, speed);
     }
 
     @Override
@@ -195,7 +388,7 @@ public class Car {
         if (getClass() != obj.getClass())
             return false;
         Car other = (Car) obj;
-        return id == other.id;
+        return id == other.id && manager == other.manager && generation == other.generation;
     }
 
     @Override
@@ -226,9 +419,20 @@ public class Car {
                            int backLength,
                            int nextJam,
                            boolean wasSecondOfJam) {
-            if (!car.isRuleSustainable) {
+            if (!car.isRuleSustainable()) {
                 car.addRule(car.getRoad().getRule());
             }
         }
+
+        /**
+         * 前のセルが埋まっていて進めない車にも, 毎ステップこのルールを適用する必要があるかどうか返す.
+         * TrafficManager.setActiveSetScheduling(true)の時, これがfalseのルールは進めない車に対して呼ばれない.
+         * 車線変更をする, 乱数や内部状態を持つなど, 進めない時にも何かするルールはtrueを返すこと.
+         *
+         * @return 毎ステップ適用する必要があるならtrue
+         */
+        public boolean needsEveryStep() {
+            return false;
+        }
     }
 }
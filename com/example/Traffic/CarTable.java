@@ -0,0 +1,222 @@
+package com.example.Traffic;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * TrafficManagerが管理する車の属性を, IDを添字とする配列にまとめて持つクラス.
+ * Carはこの表の行を指すIDと世代だけを持つ.
+ * <p>
+ * IDは使われていないもののうち最小のものを割り当てるので, 使っているIDの集合だけで次に割り当てるIDが決まる.
+ * 手放したIDを再利用すると世代が変わり, 古い世代のCarは使えなくなる.
+ * <p>
+ * 並列更新では, 車ごとに別の要素へ書き込むだけなので同期しない. IDの割り当てと手放しは並列更新の外で行う.
+ */
+final class CarTable {
+    private static final byte RULE_SUSTAINABLE = 1;
+    private static final byte NEXT_FILLED = 1 << 1;
+    private static final byte WAS_NEXT_FILLED = 1 << 2;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private int[] speeds = new int[0];
+    private Car.Rule[] rules = new Car.Rule[0];
+    private byte[] flags = new byte[0];
+    //走っている道とその中でのスロット番号. Roadが管理する
+    private Road[] roads = new Road[0];
+    private int[] slots = new int[0];
+    private int[] generations = new int[0];
+    //乱数列を最後に使ったステップと, そのステップで引いた数
+    private long[] randomSteps = new long[0];
+    private int[] randomDraws = new int[0];
+    private final BitSet used = new BitSet();
+    //これより小さいIDはすべて使われている
+    private int lowestFree;
+
+    /**
+     * 使われていないIDのうち最小のものを割り当てる.
+     *
+     * @return ID
+     */
+    int allocate() {
+        int id = used.nextClearBit(lowestFree);
+        if (id == Integer.MAX_VALUE)
+            throw new IllegalStateException("No more car IDs are available.");
+
+        lowestFree = id + 1;
+        return allocate(id);
+    }
+
+    /**
+     * 指定したIDを割り当てる. チェックポイントから復元する時に使う.
+     *
+     * @param id ID
+     * @return ID
+     */
+    int allocate(int id) {
+        if (id < 0)
+            throw new IllegalArgumentException("id must be bigger than or equal to 0.");
+        if (used.get(id))
+            throw new IllegalStateException("Car ID " + id + " is already in use.");
+
+        ensureCapacity(id + 1);
+        used.set(id);
+        speeds[id] = 1;
+        rules[id] = null;
+        flags[id] = 0;
+        roads[id] = null;
+        slots[id] = -1;
+        randomSteps[id] = -1;
+        return id;
+    }
+
+    /**
+     * IDを手放す. 世代を進めるので, このIDを持つ既存のCarは使えなくなる.
+     *
+     * @param id ID
+     */
+    void release(int id) {
+        used.clear(id);
+        generations[id]++;
+        rules[id] = null;
+        roads[id] = null;
+        lowestFree = Math.min(lowestFree, id);
+    }
+
+    /**
+     * 使っているIDの最大値を返す.
+     *
+     * @return ID. 使っていなければ-1.
+     */
+    int maxId() {
+        return used.length() - 1;
+    }
+
+    /**
+     * 少なくとも指定した数のIDを入れられるようにする.
+     *
+     * @param capacity 数
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity <= speeds.length)
+            return;
+
+        int newCapacity = Math.max(capacity, Math.max(16, speeds.length + (speeds.length >> 1)));
+        speeds = Arrays.copyOf(speeds, newCapacity);
+        rules = Arrays.copyOf(rules, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        roads = Arrays.copyOf(roads, newCapacity);
+        slots = Arrays.copyOf(slots, newCapacity);
+        generations = Arrays.copyOf(generations, newCapacity);
+        randomSteps = Arrays.copyOf(randomSteps, newCapacity);
+        randomDraws = Arrays.copyOf(randomDraws, newCapacity);
+    }
+
+    int generation(int id) {
+        return generations[id];
+    }
+
+    /**
+     * 指定したIDが指定した世代で使われているかどうか返す.
+     *
+     * @param id         ID
+     * @param generation 世代
+     * @return 使われていればtrue
+     */
+    boolean isAlive(int id, int generation) {
+        //手放すと世代が進むので, 世代が一致すれば使われている
+        return generations[id] == generation;
+    }
+
+    int speed(int id) {
+        return speeds[id];
+    }
+
+    void setSpeed(int id, int speed) {
+        speeds[id] = speed;
+    }
+
+    Car.Rule rule(int id) {
+        return rules[id];
+    }
+
+    void setRule(int id, Car.Rule rule) {
+        rules[id] = rule;
+    }
+
+    boolean isRuleSustainable(int id) {
+        return (flags[id] & RULE_SUSTAINABLE) != 0;
+    }
+
+    void setRuleSustainable(int id, boolean isRuleSustainable) {
+        flags[id] = (byte) (isRuleSustainable ? flags[id] | RULE_SUSTAINABLE : flags[id] & ~RULE_SUSTAINABLE);
+    }
+
+    boolean isNextFilled(int id) {
+        return (flags[id] & NEXT_FILLED) != 0;
+    }
+
+    boolean wasNextFilled(int id) {
+        return (flags[id] & WAS_NEXT_FILLED) != 0;
+    }
+
+    /**
+     * 前のセルが埋まっていたかどうかの履歴を設定する.
+     *
+     * @param id            ID
+     * @param isNextFilled  最後に移動規則を適用した時に前のセルが埋まっていたかどうか
+     * @param wasNextFilled その1つ前に移動規則を適用した時に前のセルが埋まっていたかどうか
+     */
+    void setNextFilled(int id, boolean isNextFilled, boolean wasNextFilled) {
+        flags[id] = (byte) ((flags[id] & RULE_SUSTAINABLE)
+                | (isNextFilled ? NEXT_FILLED : 0)
+                | (wasNextFilled ? WAS_NEXT_FILLED : 0));
+    }
+
+    /**
+     * 前のセルが埋まっていたかどうかの履歴を1ステップ進める.
+     *
+     * @param id           ID
+     * @param isNextFilled 今回前のセルが埋まっているかどうか
+     */
+    void pushNextFilled(int id, boolean isNextFilled) {
+        setNextFilled(id, isNextFilled, isNextFilled(id));
+    }
+
+    /**
+     * 指定した車の, 指定したステップ用の乱数列から次の64ビットを返す.
+     * 値は種, ID, ステップ数, そのステップで何番目に引いたかだけで決まる. 車ごとに別の要素だけを使うので, 並列更新でも同期しない.
+     *
+     * @param id   ID
+     * @param seed 種
+     * @param step ステップ数
+     * @return 乱数
+     */
+    long nextRandom(int id, long seed, long step) {
+        if (randomSteps[id] != step) {
+            randomSteps[id] = step;
+            randomDraws[id] = 0;
+        }
+        int draw = randomDraws[id]++;
+
+        //SplittableRandomと同じく, 黄金比の倍数を足してはかき混ぜる
+        long value = CycleDetector.mix(seed + GOLDEN_GAMMA * (id + 1L));
+        value = CycleDetector.mix(value + GOLDEN_GAMMA * (step + 1));
+        return CycleDetector.mix(value + GOLDEN_GAMMA * (draw + 1L));
+    }
+
+    Road road(int id) {
+        return roads[id];
+    }
+
+    void setRoad(int id, Road road) {
+        roads[id] = road;
+    }
+
+    int slot(int id) {
+        return slots[id];
+    }
+
+    void setSlot(int id, int slot) {
+        slots[id] = slot;
+    }
+}
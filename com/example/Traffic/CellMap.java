@@ -0,0 +1,221 @@
+package com.example.Traffic;
+
+import java.util.Arrays;
+
+/**
+ * セル→スロットの対応を保持するクラス.
+ * 通常は道路長の配列で持つが, 疎な道路では車のいるセルだけをハッシュ表(オープンアドレス法)で持つ.
+ * ヒープ外の道路では道路長の配列をJavaヒープの外に置く.
+ */
+final class CellMap {
+    //ハッシュ表の空きを表すキー. セルの位置は0以上なので衝突しない
+    private static final int EMPTY = -1;
+    //密な場合のセル→スロット. 疎な場合とヒープ外の場合はnull
+    private final int[] dense;
+    //ヒープ外に置いたセル→スロット + 1. 空きは0. ヒープ外でなければnull
+    private final DirectIntArray direct;
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * 空のセルで初期化する.
+     *
+     * @param length 道路長
+     * @param sparse 車のいるセルだけを持つかどうか
+     */
+    CellMap(int length, boolean sparse) {
+        this(length, sparse, false);
+    }
+
+    /**
+     * 空のセルで初期化する.
+     *
+     * @param length  道路長
+     * @param sparse  車のいるセルだけを持つかどうか
+     * @param offHeap 道路長の配列をJavaヒープの外に置くかどうか. sparseと同時には指定できない.
+     */
+    CellMap(int length, boolean sparse, boolean offHeap) {
+        if (sparse && offHeap)
+            throw new IllegalArgumentException("A sparse cell map cannot be off-heap.");
+
+        if (sparse) {
+            dense = null;
+            direct = null;
+            keys = new int[16];
+            values = new int[16];
+            Arrays.fill(keys, EMPTY);
+        } else if (offHeap) {
+            //確保したメモリは0で埋まっているので, 空きを0で表せば初期化がいらない
+            dense = null;
+            direct = new DirectIntArray(length);
+        } else {
+            dense = new int[length];
+            direct = null;
+            Arrays.fill(dense, -1);
+        }
+    }
+
+    /**
+     * 車のいるセルだけを持っているかどうか返す.
+     *
+     * @return 疎ならtrue
+     */
+    boolean isSparse() {
+        return dense == null && direct == null;
+    }
+
+    /**
+     * 道路長の配列をJavaヒープの外に置いているかどうか返す.
+     *
+     * @return ヒープ外ならtrue
+     */
+    boolean isOffHeap() {
+        return direct != null;
+    }
+
+    /**
+     * 指定したセルにいる車のスロットを返す.
+     *
+     * @param position セル. 0以上道路長未満.
+     * @return スロット. 空いていれば-1.
+     */
+    int get(int position) {
+        if (dense != null) {
+            return dense[position];
+        }
+        if (direct != null) {
+            return direct.get(position) - 1;
+        }
+
+        int mask = keys.length - 1;
+        for (int i = hash(position) & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == position)
+                return values[i];
+            if (key == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * 指定したセルにいる車のスロットを設定する.
+     *
+     * @param position セル. 0以上道路長未満.
+     * @param slot     スロット. 負ならセルを空ける.
+     */
+    void put(int position, int slot) {
+        if (dense != null) {
+            dense[position] = slot;
+            return;
+        }
+        if (direct != null) {
+            direct.set(position, slot < 0 ? 0 : slot + 1);
+            return;
+        }
+        if (slot < 0) {
+            remove(position);
+            return;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        for (int i = hash(position) & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == position) {
+                values[i] = slot;
+                return;
+            }
+            if (key == EMPTY) {
+                keys[i] = position;
+                values[i] = slot;
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * すべてのセルを空ける.
+     */
+    void clear() {
+        if (dense != null) {
+            Arrays.fill(dense, -1);
+        } else if (direct != null) {
+            direct.clear();
+        } else {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     * Javaヒープの外に置いたメモリを解放する. 解放した後は使えない. ヒープ外でなければ何もしない.
+     */
+    void release() {
+        if (direct != null) {
+            direct.release();
+        }
+    }
+
+    /**
+     * ハッシュ表から指定したセルを取り除く.
+     * 後ろに続くキーを詰め直すので, 削除済みの印は残らない.
+     *
+     * @param position セル
+     */
+    private void remove(int position) {
+        int mask = keys.length - 1;
+        int hole = hash(position) & mask;
+        while (keys[hole] != position) {
+            if (keys[hole] == EMPTY)
+                return;
+            hole = (hole + 1) & mask;
+        }
+
+        for (int i = (hole + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+            //本来の位置から見て穴がiより手前にあるキーだけを穴へ移せる
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+
+    /**
+     * ハッシュ表の大きさを変える.
+     *
+     * @param capacity 新しい大きさ. 2の累乗.
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY)
+                continue;
+
+            int i = hash(oldKeys[j]) & mask;
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int hash(int position) {
+        int hash = position * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * TrafficManagerの状態をすべて写し取ったチェックポイント.
+ * capture()はシミュレーションを進めているスレッドで状態を配列に写すだけなので短時間で済み,
+ * ファイルへの書き出しwrite()は別のスレッドから行える. ルール184やBatchRuleでまとめて進めている道も, 車の状態に戻さずに写す.
+ * <p>
+ * 保存するもの: ステップ数, 使っている車のIDの最大値, 並列更新などの設定, 乱数の種, TrafficManagerのルール, 道ごとの長さとセルの持ち方,
+ * 進んだ距離の合計, 車ごとのID・位置・スピード・ルール・isRuleSustainable・前のセルが埋まっていたかどうかの履歴.
+ * ルールはRuleRegistryに登録した名前で保存する. TrafficManagerのBatchRuleも同様に名前で保存する.
+ * <p>
+ * 1車線ずつ順に更新する場合, 後の車線から前の車線への車線変更は次のステップまで反映されない.
+ * そのような反映待ちの変更も, 前ステップの状態との差分(消えた車と加わった車)として保存する.
+ * <p>
+ * ファイルの形式(数値はビッグエンディアン):
+ * <pre>
+ * マジックナンバー, 形式のバージョン, ステップ数, 使っている車のIDの最大値, 設定のフラグ, 乱数の種(バージョン2から),
+ * ルール名の数と各ルール名, TrafficManagerのルール番号(なければ-1),
+ * BatchRuleがあるかどうかとその名前(バージョン3から), 道の数,
+ * 道ごとに: 長さ, セルの持ち方(0: 配列, 1: 疎, 2: ヒープ外), 進んだ距離の合計,
+ *   前ステップの状態の車の数と, 車ごとに: ID, 位置, スピード, ルール番号(なければ-1), フラグ
+ *   反映待ちで消えた車の数と各ID
+ *   反映待ちで加わった車の数と, 車ごとに: ID, 位置, スピード, ルール番号(なければ-1), フラグ
+ * 最後に, それまでのCRC32
+ * </pre>
+ */
+public final class Checkpoint {
+    static final int MAGIC = 0x544A4350;
+    static final int VERSION = 3;
+    private static final int FLAG_PARALLEL = 1;
+    private static final int FLAG_ACTIVE_SET_SCHEDULING = 1 << 1;
+    private static final int FLAG_DEFERRED_LANE_CHANGES = 1 << 2;
+    private static final int STORAGE_SPARSE = 1;
+    private static final int STORAGE_OFF_HEAP = 2;
+    private static final int CAR_RULE_SUSTAINABLE = 1;
+    private static final int CAR_NEXT_FILLED = 1 << 1;
+    private static final int CAR_WAS_NEXT_FILLED = 1 << 2;
+
+    private final long steps;
+    private final int maxCarID;
+    private final int flags;
+    private final long seed;
+    private final String[] ruleNames;
+    private final int managerRule;
+    @Nullable
+    private final String batchRuleName;
+    private final RoadState[] roads;
+
+    private Checkpoint(long steps, int maxCarID, int flags, long seed, String[] ruleNames, int managerRule,
+                       @Nullable String batchRuleName, RoadState[] roads) {
+        this.steps = steps;
+        this.maxCarID = maxCarID;
+        this.flags = flags;
+        this.seed = seed;
+        this.ruleNames = ruleNames;
+        this.managerRule = managerRule;
+        this.batchRuleName = batchRuleName;
+        this.roads = roads;
+    }
+
+    /**
+     * TrafficManagerの現在の状態を写し取る. update()の合間に, シミュレーションを進めているスレッドから呼ぶ.
+     * TrafficManagerのBatchRuleもRuleRegistryに登録しておく必要がある.
+     *
+     * @param manager  TrafficManager
+     * @param registry 使っているルールを登録したRuleRegistry
+     * @return チェックポイント
+     */
+    public static Checkpoint capture(TrafficManager manager, RuleRegistry registry) {
+        manager.checkNotMovingInParallel();
+        BatchRule batchRule = manager.getBatchRule();
+        String batchRuleName = batchRule == null ? null : registry.nameOf(batchRule);
+
+        List<String> ruleNames = new ArrayList<>();
+        Map<String, Integer> ruleIndexes = new HashMap<>();
+
+        List<Road> managedRoads = manager.getRoads();
+        RoadState[] roads = new RoadState[managedRoads.size()];
+        for (int i = 0; i < roads.length; i++) {
+            Road road = managedRoads.get(i);
+            RoadState state = new RoadState(road.length,
+                    road.isSparse() ? STORAGE_SPARSE : road.isOffHeap() ? STORAGE_OFF_HEAP : 0, road.movedLength());
+            CarList reflected = new CarList(road.carCount());
+            road.forEachReflectedCarWithHistory((car, position, isNextFilled, wasNextFilled) ->
+                    reflected.add(car, position, indexOf(car.rule(), registry, ruleNames, ruleIndexes),
+                            isNextFilled, wasNextFilled));
+            state.reflected = reflected;
+
+            if (road.hasPendingChanges()) {
+                //前ステップの状態と同じ位置にいる車以外を差分として残す
+                Map<Car, Integer> reflectedPositions = new HashMap<>();
+                road.forEachReflectedCar(reflectedPositions::put);
+                CarList added = new CarList(0);
+                road.forEachBufferedCar((car, position) -> {
+                    Integer reflectedPosition = reflectedPositions.get(car);
+                    if (reflectedPosition != null && reflectedPosition == position) {
+                        reflectedPositions.remove(car);
+                    } else {
+                        added.add(car, position, indexOf(car.rule(), registry, ruleNames, ruleIndexes),
+                                car.isNextFilled(), car.wasNextFilled());
+                    }
+                });
+                state.removedIds = new int[reflectedPositions.size()];
+                int count = 0;
+                for (Car car : reflectedPositions.keySet()) {
+                    state.removedIds[count++] = car.id;
+                }
+                state.added = added;
+            }
+            roads[i] = state;
+        }
+
+        int managerRule = indexOf(manager.getRule(), registry, ruleNames, ruleIndexes);
+        int flags = (manager.isParallel() ? FLAG_PARALLEL : 0)
+                | (manager.isActiveSetScheduling() ? FLAG_ACTIVE_SET_SCHEDULING : 0)
+                | (manager.isDeferredLaneChanges() ? FLAG_DEFERRED_LANE_CHANGES : 0);
+        return new Checkpoint(manager.getSteps(), manager.maxCarID(), flags, manager.getSeed(),
+                ruleNames.toArray(new String[0]), managerRule, batchRuleName, roads);
+    }
+
+    /**
+     * ルールの番号を返す. 初めて出てきたルールは名前を加える.
+     *
+     * @param rule        ルール. nullならルールなし.
+     * @param registry    ルールを登録したRuleRegistry
+     * @param ruleNames   これまでに出てきたルールの名前
+     * @param ruleIndexes ルールの名前→番号
+     * @return 番号. ルールなしなら-1.
+     */
+    private static int indexOf(Car.Rule rule, RuleRegistry registry, List<String> ruleNames, Map<String, Integer> ruleIndexes) {
+        if (rule == null)
+            return -1;
+
+        String name = registry.nameOf(rule);
+        Integer index = ruleIndexes.get(name);
+        if (index == null) {
+            index = ruleNames.size();
+            ruleNames.add(name);
+            ruleIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * チェックポイントを取った時点のステップ数を返す.
+     *
+     * @return ステップ数
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * ファイルに書き出す. 一時ファイルに書いてから置き換えるので, 途中で止まっても元のファイルは壊れない.
+     *
+     * @param file ファイル
+     * @throws IOException 書き込めなかった場合
+     */
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                writeTo(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * ストリームに書き出す.
+     *
+     * @param out ストリーム. 閉じない.
+     * @throws IOException 書き込めなかった場合
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(steps);
+        data.writeInt(maxCarID);
+        data.writeInt(flags);
+        data.writeLong(seed);
+        data.writeInt(ruleNames.length);
+        for (String name : ruleNames) {
+            data.writeUTF(name);
+        }
+        data.writeInt(managerRule);
+        data.writeBoolean(batchRuleName != null);
+        if (batchRuleName != null) {
+            data.writeUTF(batchRuleName);
+        }
+
+        data.writeInt(roads.length);
+        for (RoadState road : roads) {
+            data.writeInt(road.length);
+            data.writeByte(road.storage);
+            data.writeLong(road.movedLength);
+            road.reflected.writeTo(data);
+            data.writeInt(road.removedIds.length);
+            for (int id : road.removedIds) {
+                data.writeInt(id);
+            }
+            road.added.writeTo(data);
+        }
+        data.flush();
+
+        new DataOutputStream(out).writeLong(checked.getChecksum().getValue());
+        out.flush();
+    }
+
+    /**
+     * ファイルから読み込む.
+     *
+     * @param file ファイル
+     * @return チェックポイント
+     * @throws IOException 読み込めなかった場合, または形式が正しくない場合
+     */
+    public static Checkpoint read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            return readFrom(in);
+        }
+    }
+
+    /**
+     * ストリームから読み込む.
+     *
+     * @param in ストリーム. 閉じない.
+     * @return チェックポイント
+     * @throws IOException 読み込めなかった場合, または形式が正しくない場合
+     */
+    public static Checkpoint readFrom(InputStream in) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(in, new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a checkpoint file.");
+        int version = data.readInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException("Unsupported checkpoint version.");
+
+        long steps = data.readLong();
+        int maxCarID = data.readInt();
+        int flags = data.readInt();
+        long seed = version >= 2 ? data.readLong() : 0;
+        String[] ruleNames = new String[data.readInt()];
+        for (int i = 0; i < ruleNames.length; i++) {
+            ruleNames[i] = data.readUTF();
+        }
+        int managerRule = data.readInt();
+        String batchRuleName = version >= 3 && data.readBoolean() ? data.readUTF() : null;
+
+        RoadState[] roads = new RoadState[data.readInt()];
+        for (int i = 0; i < roads.length; i++) {
+            int length = data.readInt();
+            int storage = data.readUnsignedByte();
+            if (storage > STORAGE_OFF_HEAP)
+                throw new IOException("Unknown road storage: " + storage);
+            long movedLength = data.readLong();
+            RoadState road = new RoadState(length, storage, movedLength);
+            road.reflected = CarList.readFrom(data);
+            road.removedIds = new int[data.readInt()];
+            for (int j = 0; j < road.removedIds.length; j++) {
+                road.removedIds[j] = data.readInt();
+            }
+            road.added = CarList.readFrom(data);
+            roads[i] = road;
+        }
+
+        long checksum = checked.getChecksum().getValue();
+        if (new DataInputStream(in).readLong() != checksum)
+            throw new IOException("Checkpoint is corrupted.");
+
+        return new Checkpoint(steps, maxCarID, flags, seed, ruleNames, managerRule, batchRuleName, roads);
+    }
+
+    /**
+     * チェックポイントを取った時点の状態のTrafficManagerを作る.
+     *
+     * @param registry ルールを登録したRuleRegistry. チェックポイントを取った時と同じ名前で登録されていなければならない.
+     * @return TrafficManager
+     */
+    public TrafficManager restore(RuleRegistry registry) {
+        Car.Rule[] rules = new Car.Rule[ruleNames.length];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = registry.get(ruleNames[i]);
+        }
+        BatchRule batchRule = batchRuleName == null ? null : registry.getBatchRule(batchRuleName);
+
+        TrafficManager manager = new TrafficManager();
+        manager.restoreCounters(steps, maxCarID);
+        manager.setParallel((flags & FLAG_PARALLEL) != 0);
+        manager.setActiveSetScheduling((flags & FLAG_ACTIVE_SET_SCHEDULING) != 0);
+        manager.setDeferredLaneChanges((flags & FLAG_DEFERRED_LANE_CHANGES) != 0);
+        manager.setSeed(seed);
+        if (managerRule >= 0) {
+            manager.addRule(rules[managerRule]);
+        }
+        if (batchRule != null) {
+            manager.addBatchRule(batchRule);
+        }
+
+        //前ステップの状態を作ってから, 反映待ちの変更をバッファに加える
+        Map<Integer, Car> cars = new HashMap<>();
+        Road[] restored = new Road[roads.length];
+        for (int i = 0; i < roads.length; i++) {
+            RoadState state = roads[i];
+            Road road = new Road(state.length, manager,
+                    state.storage == STORAGE_SPARSE, state.storage == STORAGE_OFF_HEAP);
+            state.reflected.addTo(road, manager, cars, rules);
+            road.reflesh();
+            road.restoreMovedLength(state.movedLength);
+            restored[i] = road;
+        }
+        for (int i = 0; i < roads.length; i++) {
+            for (int id : roads[i].removedIds) {
+                restored[i].removeCar(cars.get(id));
+            }
+        }
+        for (int i = 0; i < roads.length; i++) {
+            roads[i].added.addTo(restored[i], manager, cars, rules);
+            manager.addRestoredRoad(restored[i]);
+        }
+        return manager;
+    }
+
+    /**
+     * 1本の道の状態.
+     */
+    private static final class RoadState {
+        final int length;
+        //セルの持ち方. 0なら配列, STORAGE_SPARSEなら疎, STORAGE_OFF_HEAPならヒープ外
+        final int storage;
+        final long movedLength;
+        //前ステップの状態の車. 位置の昇順に並ぶ
+        CarList reflected;
+        //反映待ちの変更で消えた車と加わった車
+        int[] removedIds = new int[0];
+        CarList added = new CarList(0);
+
+        RoadState(int length, int storage, long movedLength) {
+            this.length = length;
+            this.storage = storage;
+            this.movedLength = movedLength;
+        }
+    }
+
+    /**
+     * 車と位置の列.
+     */
+    private static final class CarList {
+        int count;
+        int[] ids;
+        int[] positions;
+        int[] speeds;
+        int[] rules;
+        byte[] flags;
+
+        CarList(int capacity) {
+            ids = new int[capacity];
+            positions = new int[capacity];
+            speeds = new int[capacity];
+            rules = new int[capacity];
+            flags = new byte[capacity];
+        }
+
+        /**
+         * 車を加える.
+         *
+         * @param car           車
+         * @param position      位置
+         * @param rule          ルール番号. なければ-1.
+         * @param isNextFilled  前のセルが埋まっているかどうか
+         * @param wasNextFilled 1ステップ前に前のセルが埋まっていたかどうか
+         */
+        void add(Car car, int position, int rule, boolean isNextFilled, boolean wasNextFilled) {
+            if (count == ids.length) {
+                int capacity = Math.max(4, count * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                speeds = Arrays.copyOf(speeds, capacity);
+                rules = Arrays.copyOf(rules, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+
+            ids[count] = car.id;
+            positions[count] = position;
+            speeds[count] = car.getSpeed();
+            rules[count] = rule;
+            flags[count] = (byte) ((car.isRuleSustainable() ? CAR_RULE_SUSTAINABLE : 0)
+                    | (isNextFilled ? CAR_NEXT_FILLED : 0)
+                    | (wasNextFilled ? CAR_WAS_NEXT_FILLED : 0));
+            count++;
+        }
+
+        /**
+         * 道に車を置く. 初めて出てきたIDの車は作る.
+         *
+         * @param road    道
+         * @param manager 車を管理するTrafficManager
+         * @param cars    ID→作った車
+         * @param rules   ルール番号→ルール
+         */
+        void addTo(Road road, TrafficManager manager, Map<Integer, Car> cars, Car.Rule[] rules) {
+            for (int i = 0; i < count; i++) {
+                Car car = cars.get(ids[i]);
+                if (car == null) {
+                    car = new Car(manager, ids[i]);
+                    car.setSpeed(speeds[i]);
+                    if (this.rules[i] >= 0) {
+                        car.addRule(rules[this.rules[i]]);
+                    }
+                    car.setIsRuleSustainable((flags[i] & CAR_RULE_SUSTAINABLE) != 0);
+                    car.restoreNextFilled((flags[i] & CAR_NEXT_FILLED) != 0, (flags[i] & CAR_WAS_NEXT_FILLED) != 0);
+                    cars.put(ids[i], car);
+                }
+                if (!road.addCar(car, positions[i]))
+                    throw new IllegalStateException("Two cars share position " + positions[i] + ".");
+            }
+        }
+
+        void writeTo(DataOutputStream data) throws IOException {
+            data.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                data.writeInt(ids[i]);
+                data.writeInt(positions[i]);
+                data.writeInt(speeds[i]);
+                data.writeInt(rules[i]);
+                data.writeByte(flags[i]);
+            }
+        }
+
+        static CarList readFrom(DataInputStream data) throws IOException {
+            int count = data.readInt();
+            if (count < 0)
+                throw new IOException("Checkpoint is corrupted.");
+
+            CarList list = new CarList(count);
+            for (int i = 0; i < count; i++) {
+                list.ids[i] = data.readInt();
+                list.positions[i] = data.readInt();
+                list.speeds[i] = data.readInt();
+                list.rules[i] = data.readInt();
+                list.flags[i] = data.readByte();
+            }
+            list.count = count;
+            return list;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一定のステップごとにチェックポイントを取り, 別のスレッドでファイルに書き出すクラス.
+ * シミュレーションを進めているスレッドは状態を写し取る間だけ止まり, 書き出しは待たない.
+ * 前の書き出しが終わっていない場合, そのチェックポイントは飛ばす.
+ * <p>
+ * ファイルはディレクトリの中にcheckpoint-(ステップ数).binという名前で作り, 新しいものから指定した数だけ残す.
+ */
+public class Checkpointer implements Closeable {
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bin";
+
+    private final TrafficManager manager;
+    private final RuleRegistry registry;
+    private final Path directory;
+    private final long interval;
+    private int retainedCount = 2;
+    private final ExecutorService writer;
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private volatile long skippedCount;
+    private volatile Path latest;
+    private volatile IOException failure;
+
+    /**
+     * チェックポイントを取る準備をする.
+     *
+     * @param manager   TrafficManager
+     * @param registry  使っているルールを登録したRuleRegistry
+     * @param directory 書き出すディレクトリ. なければ作る.
+     * @param interval  チェックポイントを取る間隔(ステップ数)
+     * @throws IOException ディレクトリを作れなかった場合
+     */
+    public Checkpointer(TrafficManager manager, RuleRegistry registry, Path directory, long interval) throws IOException {
+        if (interval < 1)
+            throw new IllegalArgumentException("interval must be bigger than 0.");
+
+        this.manager = manager;
+        this.registry = registry;
+        this.directory = Files.createDirectories(directory);
+        this.interval = interval;
+        writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 残すチェックポイントの数を設定する.
+     *
+     * @param retainedCount 残す数. 初期値は2.
+     */
+    public void setRetainedCount(int retainedCount) {
+        if (retainedCount < 1)
+            throw new IllegalArgumentException("retainedCount must be bigger than 0.");
+
+        this.retainedCount = retainedCount;
+    }
+
+    /**
+     * TrafficManager.update()の後に呼ぶ. ステップ数が間隔の倍数ならチェックポイントを取る.
+     *
+     * @return チェックポイントを取って書き出しを始めたらtrue
+     * @throws IOException 前回の書き出しに失敗していた場合
+     */
+    public boolean afterUpdate() throws IOException {
+        if (manager.getSteps() % interval != 0)
+            return false;
+
+        return checkpoint();
+    }
+
+    /**
+     * すぐにチェックポイントを取り, 書き出しを始める.
+     *
+     * @return 書き出しを始めたらtrue. 前の書き出しが終わっていなければfalse.
+     * @throws IOException 前回の書き出しに失敗していた場合
+     */
+    public boolean checkpoint() throws IOException {
+        throwIfFailed();
+
+        if (!writing.compareAndSet(false, true)) {
+            skippedCount++;
+            return false;
+        }
+
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.capture(manager, registry);
+        } catch (RuntimeException e) {
+            writing.set(false);
+            throw e;
+        }
+
+        writer.execute(() -> {
+            try {
+                Path file = directory.resolve(String.format("%s%019d%s", PREFIX, checkpoint.getSteps(), SUFFIX));
+                checkpoint.write(file);
+                latest = file;
+                deleteOldCheckpoints();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                writing.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 前の書き出しが終わっていなかったために飛ばしたチェックポイントの数を返す.
+     *
+     * @return 飛ばした数
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * 最後に書き出したチェックポイントのファイルを返す.
+     *
+     * @return ファイル. まだ書き出していなければnull.
+     */
+    @Nullable
+    public Path getLatest() {
+        return latest;
+    }
+
+    /**
+     * 書き出し中のチェックポイントを待ってから終了する.
+     *
+     * @throws IOException 書き出しに失敗していた場合
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                //書き出しが終わるまで待つ
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing a checkpoint.", e);
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * 指定したディレクトリにある最新のチェックポイントのファイルを返す.
+     *
+     * @param directory ディレクトリ
+     * @return ファイル. なければnull.
+     * @throws IOException ディレクトリを読めなかった場合
+     */
+    @Nullable
+    public static Path findLatest(Path directory) throws IOException {
+        List<Path> files = listCheckpoints(directory);
+        return files.isEmpty() ? null : files.get(files.size() - 1);
+    }
+
+    /**
+     * 古いチェックポイントを消す.
+     *
+     * @throws IOException 消せなかった場合
+     */
+    private void deleteOldCheckpoints() throws IOException {
+        List<Path> files = listCheckpoints(directory);
+        for (int i = 0; i < files.size() - retainedCount; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    /**
+     * ディレクトリにあるチェックポイントのファイルを古い順に返す.
+     *
+     * @param directory ディレクトリ
+     * @return ファイル
+     * @throws IOException ディレクトリを読めなかった場合
+     */
+    private static List<Path> listCheckpoints(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory))
+            return files;
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        //ステップ数は0埋めしているので名前順が古い順になる
+        Collections.sort(files);
+        return files;
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            failure = null;
+            throw e;
+        }
+    }
+}
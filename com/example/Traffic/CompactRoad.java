@@ -0,0 +1,107 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ルールが一切ない間, 車の位置だけをまとめて保持してルール184で進める道路の状態.
+ * 車はお互いを追い越さないので, 車の並び順は一番後ろの車が周期境界を越えた回数(wraps)だけで決まる.
+ */
+abstract class CompactRoad {
+    /**
+     * 道の長さ
+     */
+    final int length;
+    /**
+     * 道路上の車の数
+     */
+    final int carCount;
+
+    CompactRoad(int length, int carCount) {
+        this.length = length;
+        this.carCount = carCount;
+    }
+
+    /**
+     * 指定したセルが埋まっているかどうか返す.
+     *
+     * @param position 位置. 0以上length未満.
+     * @return 埋まっていればtrue
+     */
+    abstract boolean get(int position);
+
+    /**
+     * 指定した位置以降で最初に埋まっているセルを返す.
+     *
+     * @param from 探し始める位置
+     * @return 埋まっているセルの位置. 存在しなければ-1.
+     */
+    abstract int nextFilled(int from);
+
+    /**
+     * 一番後ろの車が周期境界を越えて先頭に回った回数を, 車の数を法として返す.
+     * 最初に位置順でi番目だった車は, 現在(i + wraps) % carCount番目にいる.
+     *
+     * @return 回った回数
+     */
+    abstract int wraps();
+
+    /**
+     * ルール184で1ステップ進める.
+     * 前のセルが空いている車だけが1セル進む.
+     * 車が1台以下の場合, 前後の車間距離が0として扱われるので何も動かない.
+     *
+     * @param pool 並列に進める際に使うプール. nullなら1スレッドで進める.
+     * @return 進んだ車の数
+     */
+    abstract long step(@Nullable ForkJoinPool pool);
+
+    /**
+     * 状態を1セル1ビットで書き写す.
+     *
+     * @param destination 書き込み先. (length + 63) / 64個以上の要素が必要.
+     */
+    abstract void copyTo(long[] destination);
+
+    /**
+     * 占有状態のハッシュを返す. 埋まっているセルごとの鍵のXORをとる.
+     *
+     * @return ハッシュ
+     */
+    long stateHash() {
+        long hash = 0;
+        for (int position = nextFilled(0); position >= 0; position = nextFilled(position + 1)) {
+            hash ^= CycleDetector.mix(position + 1);
+        }
+        return hash;
+    }
+
+    /**
+     * 渋滞(2台以上連続して並んでいる車)の数を返す.
+     *
+     * @return 渋滞の数
+     */
+    abstract int jamCount();
+
+    /**
+     * 前のセルが埋まっている車の数を返す.
+     *
+     * @return 車の数
+     */
+    abstract int blockedCarCount();
+
+    /**
+     * 道の状態を出力する.
+     *
+     * @return 車あり：■, 車なし：□
+     */
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = get(i) ? '■' : '□';
+        }
+        return new String(chars);
+    }
+}
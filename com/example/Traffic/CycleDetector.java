@@ -0,0 +1,353 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 決定的なルールで周期境界の道を進めると, 状態はいずれ周期的になる.
+ * その周期を見つけ, 残りのステップのうち周期の整数倍を飛ばして指定したステップまで進めるクラス.
+ * <p>
+ * 毎ステップ, 状態全体のハッシュ(セルと車の状態ごとの鍵のXOR, Zobristハッシュ)を計算し,
+ * Brentの方法で同じハッシュが再び現れるまでの間隔を探す. 候補の周期が見つかったら,
+ * 状態を写し取ってからもう1周期進め, 完全に一致することを確かめてから飛ばす.
+ * ハッシュが衝突しても, 確かめに失敗するだけで結果は変わらない.
+ * <p>
+ * 状態として比べるのは, 道ごとの車・位置・スピード・ルール・isRuleSustainable・前のセルが埋まっていたかどうかの履歴,
+ * 反映待ちのバッファの状態. ルールはこれ以外の状態を持たず, 同じ状態からは必ず同じ動きをする必要がある.
+ * <p>
+ * 車ごとの乱数列はステップ数ごとに変わるので, 乱数を使うルールは同じ状態からでも同じ動きになるとは限らない.
+ * そこでルールが乱数を引いたら(TrafficManager.isRandomDrawn()), 周期を探すのをやめて残りをそのまま進める.
+ * 乱数を引かなかった間の動きは状態だけで決まるので, その間に確かめた周期は正しい.
+ */
+final class CycleDetector {
+    private final TrafficManager manager;
+    private long period;
+    private long cycleStart = -1;
+
+    CycleDetector(TrafficManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * 指定したステップ数になるまで進める.
+     *
+     * @param targetSteps 進めた後のステップ数
+     */
+    void updateTo(long targetSteps) {
+        period = 0;
+        cycleStart = -1;
+        manager.clearRandomDrawn();
+
+        long savedHash = hash();
+        long savedSteps = manager.getSteps();
+        long power = 1;
+        while (manager.getSteps() < targetSteps) {
+            manager.update();
+            if (manager.isRandomDrawn()) {
+                //乱数を使うルールでは周期を確かめられない
+                while (manager.getSteps() < targetSteps) {
+                    manager.update();
+                }
+                return;
+            }
+
+            long hash = hash();
+            long distance = manager.getSteps() - savedSteps;
+            if (hash == savedHash && skipCycles(distance, targetSteps))
+                return;
+
+            //Brentの方法: 比べる相手を2の冪ごとに更新する
+            if (distance >= power) {
+                savedHash = hash;
+                savedSteps = manager.getSteps();
+                power <<= 1;
+            }
+        }
+    }
+
+    /**
+     * 前回のupdateTo()で確かめた周期を返す.
+     *
+     * @return 周期. 見つからなかった場合は0.
+     */
+    long period() {
+        return period;
+    }
+
+    /**
+     * 前回のupdateTo()で, 周期的になっていることを確かめた状態のステップ数を返す.
+     * 過渡期間はこれ以下である.
+     *
+     * @return ステップ数. 見つからなかった場合は-1.
+     */
+    long cycleStart() {
+        return cycleStart;
+    }
+
+    /**
+     * 候補の周期だけ進めて元の状態に戻ることを確かめ, 戻れば周期の整数倍を飛ばしてから残りを進める.
+     *
+     * @param candidate   候補の周期
+     * @param targetSteps 進めた後のステップ数
+     * @return 周期を確かめて指定したステップ数まで進めたらtrue
+     */
+    private boolean skipCycles(long candidate, long targetSteps) {
+        long start = manager.getSteps();
+        if (targetSteps - start < candidate) {
+            //確かめる前に目的のステップ数に届くので, 飛ばす意味がない
+            return false;
+        }
+
+        List<Road> roads = manager.getRoads();
+        State before = new State(roads);
+        long[] movedLengths = new long[roads.size()];
+        for (int i = 0; i < movedLengths.length; i++) {
+            movedLengths[i] = roads.get(i).movedLength();
+        }
+
+        for (long i = 0; i < candidate; i++) {
+            manager.update();
+        }
+        if (manager.isRandomDrawn() || !before.equals(new State(roads)))
+            return false;
+
+        period = candidate;
+        cycleStart = start;
+
+        long cycles = (targetSteps - manager.getSteps()) / candidate;
+        if (cycles > 0) {
+            for (int i = 0; i < movedLengths.length; i++) {
+                Road road = roads.get(i);
+                road.skipMovedLength(cycles * (road.movedLength() - movedLengths[i]));
+            }
+            manager.skipSteps(cycles * candidate);
+        }
+
+        while (manager.getSteps() < targetSteps) {
+            manager.update();
+        }
+        return true;
+    }
+
+    /**
+     * 管理している道すべての状態のハッシュを返す.
+     *
+     * @return ハッシュ
+     */
+    private long hash() {
+        long hash = 0;
+        for (Road road : manager.getRoads()) {
+            hash = hash * 0x9E3779B97F4A7C15L + road.stateHash();
+        }
+        return hash;
+    }
+
+    /**
+     * 指定したセルにいる車の状態に対応する鍵を返す.
+     *
+     * @param car      車
+     * @param position 位置
+     * @return 鍵
+     */
+    static long carKey(Car car, int position) {
+        long key = position;
+        key = key * 0x9E3779B97F4A7C15L + car.id;
+        key = key * 0x9E3779B97F4A7C15L + car.getSpeed();
+        key = key * 0x9E3779B97F4A7C15L + flags(car);
+        key = key * 0x9E3779B97F4A7C15L + System.identityHashCode(car.rule());
+        return mix(key);
+    }
+
+    /**
+     * 64ビットの値をかき混ぜる. SplittableRandomと同じ関数.
+     *
+     * @param value 値
+     * @return かき混ぜた値
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private static int flags(Car car) {
+        return (car.isRuleSustainable() ? 1 : 0)
+                | (car.isNextFilled() ? 1 << 1 : 0)
+                | (car.wasNextFilled() ? 1 << 2 : 0);
+    }
+
+    /**
+     * 周期を確かめるために写し取った, 管理している道すべての状態.
+     */
+    private static final class State {
+        private final RoadState[] roads;
+
+        State(List<Road> roads) {
+            this.roads = new RoadState[roads.size()];
+            for (int i = 0; i < this.roads.length; i++) {
+                this.roads[i] = new RoadState(roads.get(i));
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof State && Arrays.equals(roads, ((State) o).roads);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(roads);
+        }
+    }
+
+    /**
+     * 1本の道の状態.
+     * まとめて進めている間は, まとめた状態と占有状態(LocalRuleの場合は車の履歴も)・周期境界を越えた回数で表す.
+     * 同じまとめた状態の中では, 車の並びは占有状態と周期境界を越えた回数で決まる.
+     */
+    private static final class RoadState {
+        @Nullable
+        private final CompactRoad compact;
+        private final long[] words;
+        private final int wraps;
+        private final Cars reflected;
+        private final Cars buffered;
+
+        RoadState(Road road) {
+            compact = road.compact();
+            if (compact != null) {
+                int wordCount = (road.length + 63) >>> 6;
+                if (compact instanceof PackedRoad && ((PackedRoad) compact).hasHistory()) {
+                    //LocalRuleで進めている間は, 車の履歴も状態に含める
+                    words = new long[wordCount * 3];
+                    long[] nextFilled = new long[wordCount];
+                    long[] wasNextFilled = new long[wordCount];
+                    ((PackedRoad) compact).copyHistoryTo(nextFilled, wasNextFilled);
+                    System.arraycopy(nextFilled, 0, words, wordCount, wordCount);
+                    System.arraycopy(wasNextFilled, 0, words, wordCount * 2, wordCount);
+                } else {
+                    words = new long[wordCount];
+                }
+                compact.copyTo(words);
+                wraps = compact.wraps();
+                reflected = new Cars();
+                buffered = new Cars();
+                return;
+            }
+
+            words = new long[0];
+            wraps = 0;
+            reflected = new Cars();
+            road.forEachReflectedCar(reflected::add);
+            buffered = new Cars();
+            if (road.hasPendingChanges()) {
+                road.forEachBufferedCar(buffered::add);
+                buffered.sortByPosition();
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RoadState))
+                return false;
+
+            RoadState other = (RoadState) o;
+            return compact == other.compact
+                    && wraps == other.wraps
+                    && Arrays.equals(words, other.words)
+                    && reflected.equals(other.reflected)
+                    && buffered.equals(other.buffered);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(words) * 31 + reflected.hashCode();
+        }
+    }
+
+    /**
+     * 車とその位置・状態の列.
+     */
+    private static final class Cars {
+        private int count;
+        private Car[] cars = new Car[4];
+        private int[] positions = new int[4];
+        private int[] speeds = new int[4];
+        private Car.Rule[] rules = new Car.Rule[4];
+        private int[] flags = new int[4];
+
+        void add(Car car, int position) {
+            if (count == cars.length) {
+                int capacity = count * 2;
+                cars = Arrays.copyOf(cars, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+                speeds = Arrays.copyOf(speeds, capacity);
+                rules = Arrays.copyOf(rules, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+
+            cars[count] = car;
+            positions[count] = position;
+            speeds[count] = car.getSpeed();
+            rules[count] = car.rule();
+            flags[count] = CycleDetector.flags(car);
+            count++;
+        }
+
+        /**
+         * 位置の昇順に並べ替える. 同じ道の中で位置は重複しない.
+         */
+        void sortByPosition() {
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = (long) positions[i] << 32 | i;
+            }
+            Arrays.sort(keys);
+
+            Car[] sortedCars = new Car[count];
+            int[] sortedPositions = new int[count];
+            int[] sortedSpeeds = new int[count];
+            Car.Rule[] sortedRules = new Car.Rule[count];
+            int[] sortedFlags = new int[count];
+            for (int i = 0; i < count; i++) {
+                int index = (int) keys[i];
+                sortedCars[i] = cars[index];
+                sortedPositions[i] = positions[index];
+                sortedSpeeds[i] = speeds[index];
+                sortedRules[i] = rules[index];
+                sortedFlags[i] = flags[index];
+            }
+            cars = sortedCars;
+            positions = sortedPositions;
+            speeds = sortedSpeeds;
+            rules = sortedRules;
+            flags = sortedFlags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Cars))
+                return false;
+
+            Cars other = (Cars) o;
+            if (count != other.count)
+                return false;
+            for (int i = 0; i < count; i++) {
+                if (cars[i] != other.cars[i]
+                        || positions[i] != other.positions[i]
+                        || speeds[i] != other.speeds[i]
+                        || rules[i] != other.rules[i]
+                        || flags[i] != other.flags[i])
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(Arrays.copyOf(positions, count));
+        }
+    }
+}
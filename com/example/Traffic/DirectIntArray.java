@@ -0,0 +1,173 @@
+package com.example.Traffic;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Javaヒープの外(ダイレクトバッファ)に置くint配列.
+ * 1つのダイレクトバッファは2GB未満なので, 1GBずつの塊に分けて持つ.
+ * 確保したメモリはrelease()で解放する. 解放しなくてもガベージコレクションで回収されるが, 時期は決まらない.
+ * 確保できる量の上限は-XX:MaxDirectMemorySizeで決まる.
+ */
+final class DirectIntArray {
+    //1つの塊に入る要素数の2を底とする対数
+    private static final int CHUNK_BITS = 28;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    //ダイレクトバッファを直ちに解放する方法. 使えなければnull
+    private static final Releaser RELEASER = Releaser.find();
+
+    private final int length;
+    private ByteBuffer[] buffers;
+    private IntBuffer[] chunks;
+
+    /**
+     * 0で初期化した配列を確保する.
+     *
+     * @param length 要素数
+     */
+    DirectIntArray(int length) {
+        if (length < 0)
+            throw new IllegalArgumentException("length must be bigger than or equal to 0.");
+
+        this.length = length;
+        int chunkCount = (int) (((long) length + CHUNK_MASK) >>> CHUNK_BITS);
+        buffers = new ByteBuffer[chunkCount];
+        chunks = new IntBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            int size = Math.min(length - (i << CHUNK_BITS), 1 << CHUNK_BITS);
+            buffers[i] = ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder());
+            chunks[i] = buffers[i].asIntBuffer();
+        }
+    }
+
+    /**
+     * 要素数を返す.
+     *
+     * @return 要素数
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * 指定した要素を返す.
+     *
+     * @param index 番号. 0以上length()未満.
+     * @return 値
+     */
+    int get(int index) {
+        return chunks()[index >>> CHUNK_BITS].get(index & CHUNK_MASK);
+    }
+
+    /**
+     * 指定した要素を設定する.
+     *
+     * @param index 番号. 0以上length()未満.
+     * @param value 値
+     */
+    void set(int index, int value) {
+        chunks()[index >>> CHUNK_BITS].put(index & CHUNK_MASK, value);
+    }
+
+    /**
+     * すべての要素を0にする.
+     */
+    void clear() {
+        for (ByteBuffer buffer : buffers()) {
+            //8バイトずつ書く. 要素数が奇数の場合は残りの4バイトを書く
+            int bytes = buffer.capacity();
+            int i = 0;
+            for (; i + Long.BYTES <= bytes; i += Long.BYTES) {
+                buffer.putLong(i, 0);
+            }
+            if (i < bytes) {
+                buffer.putInt(i, 0);
+            }
+        }
+    }
+
+    /**
+     * 確保したメモリを解放する. 解放した後は使えない.
+     */
+    void release() {
+        ByteBuffer[] released = buffers;
+        buffers = null;
+        chunks = null;
+        if (released == null || RELEASER == null)
+            return;
+
+        for (ByteBuffer buffer : released) {
+            RELEASER.release(buffer);
+        }
+    }
+
+    private IntBuffer[] chunks() {
+        IntBuffer[] chunks = this.chunks;
+        if (chunks == null)
+            throw new IllegalStateException("Off-heap storage has been released.");
+
+        return chunks;
+    }
+
+    private ByteBuffer[] buffers() {
+        if (buffers == null)
+            throw new IllegalStateException("Off-heap storage has been released.");
+
+        return buffers;
+    }
+
+    /**
+     * ダイレクトバッファを直ちに解放する. 標準のAPIにはないので, JDKの内部の方法をリフレクションで呼ぶ.
+     */
+    private static final class Releaser {
+        private final Object unsafe;
+        private final Method method;
+
+        private Releaser(Object unsafe, Method method) {
+            this.unsafe = unsafe;
+            this.method = method;
+        }
+
+        /**
+         * 使える解放の方法を探す.
+         *
+         * @return 解放の方法. 見つからなければnull.
+         */
+        static Releaser find() {
+            try {
+                //Java 9以降: sun.misc.Unsafe.invokeCleaner(ByteBuffer)
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Releaser(field.get(null), invokeCleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                //Java 8: sun.nio.ch.DirectBuffer.cleaner().clean()
+            }
+            try {
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                return new Releaser(null, cleaner);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        void release(ByteBuffer buffer) {
+            try {
+                if (unsafe != null) {
+                    method.invoke(unsafe, buffer);
+                } else {
+                    Object cleaner = method.invoke(buffer);
+                    if (cleaner != null) {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                //解放できなければガベージコレクションに任せる
+            }
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 密度・乱数の種・ルールの組み合わせごとに独立したTrafficManagerでシミュレーションを行い,
+ * 基本図(密度と流量の関係)を求めるクラス.
+ * 各実行はワークスティーリングのプールで並列に行われ, 終わり次第集計される. 実行ごとの履歴は保持しない.
+ */
+public class Ensemble {
+    private final Sweep sweep;
+    private ForkJoinPool pool;
+    private Consumer<Point> listener;
+
+    /**
+     * 指定した条件で実行するEnsembleを生成する.
+     *
+     * @param sweep 条件
+     */
+    public Ensemble(Sweep sweep) {
+        if (sweep == null)
+            throw new IllegalArgumentException("sweep must not be null.");
+
+        this.sweep = sweep;
+    }
+
+    /**
+     * 実行に使うプールを設定する.
+     *
+     * @param pool プール. nullならForkJoinPool.commonPool()を使う.
+     */
+    public void setPool(@Nullable ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 1回の実行が終わるたびに, その実行を加えた集計結果を受け取るリスナーを設定する.
+     * リスナーは複数のスレッドから同時に呼ばれることがある.
+     *
+     * @param listener リスナー
+     */
+    public void setListener(@Nullable Consumer<Point> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * すべての組み合わせを実行し, 終わるまで待つ.
+     *
+     * @return ルールごと, 密度の順に並んだ集計結果
+     */
+    public List<Point> run() {
+        List<String> ruleNames = new ArrayList<>(sweep.rules.keySet());
+        List<Supplier<Car.Rule>> rules = new ArrayList<>(sweep.rules.values());
+        if (ruleNames.isEmpty()) {
+            ruleNames.add("none");
+            rules.add(() -> null);
+        }
+
+        double[] densities = sweep.densities;
+        Accumulator[][] accumulators = new Accumulator[rules.size()][densities.length];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int r = 0; r < rules.size(); r++) {
+            for (int d = 0; d < densities.length; d++) {
+                Accumulator accumulator = new Accumulator(ruleNames.get(r), densities[d]);
+                accumulators[r][d] = accumulator;
+
+                for (int s = 0; s < sweep.seeds; s++) {
+                    //同じ密度と種ではルールによらず同じ初期状態にする
+                    long seed = sweep.seed + 0x9E3779B97F4A7C15L * ((long) d * sweep.seeds + s + 1);
+                    Supplier<Car.Rule> rule = rules.get(r);
+                    double density = densities[d];
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        Point point = accumulator.add(runOnce(sweep, rule, density, seed));
+                        Consumer<Point> currentListener = listener;
+                        if (currentListener != null) {
+                            currentListener.accept(point);
+                        }
+                    }));
+                }
+            }
+        }
+
+        ForkJoinPool service = pool == null ? ForkJoinPool.commonPool() : pool;
+        for (ForkJoinTask<?> task : tasks) {
+            service.execute(task);
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        List<Point> points = new ArrayList<>(rules.size() * densities.length);
+        for (Accumulator[] row : accumulators) {
+            for (Accumulator accumulator : row) {
+                points.add(accumulator.snapshot());
+            }
+        }
+        return points;
+    }
+
+    /**
+     * 1回分のシミュレーションを行う.
+     *
+     * @param sweep   条件
+     * @param rule    ルールを生成するSupplier
+     * @param density 密度
+     * @param seed    初期状態を決める乱数の種
+     * @return 結果
+     */
+    static Run runOnce(Sweep sweep, Supplier<Car.Rule> rule, double density, long seed) {
+        TrafficManager manager = new TrafficManager();
+        SplittableRandom random = new SplittableRandom(seed);
+        int cars = (int) Math.round(density * sweep.length);
+        for (int lane = 0; lane < sweep.lanes; lane++) {
+            manager.addRoad(roadCondition(sweep.length, cars, random));
+        }
+        //2本目以降の道はrefleshするまで車が見えないので, ここで揃えておく
+        manager.reflesh();
+
+        if (sweep.speed != 1) {
+            manager.setSpeed(sweep.speed);
+        }
+        Car.Rule created = rule.get();
+        if (created != null) {
+            manager.addRule(created);
+        }
+
+        for (int i = 0; i < sweep.warmUpSteps; i++) {
+            manager.update();
+        }
+
+        List<Road> roads = manager.getRoads();
+        long movedBefore = 0;
+        for (Road road : roads) {
+            movedBefore += road.movedLength();
+        }
+
+        long jams = 0;
+        long blocked = 0;
+        for (int i = 0; i < sweep.measureSteps; i++) {
+            manager.update();
+            for (Road road : roads) {
+                jams += road.jamCount();
+                blocked += road.blockedCarCount();
+            }
+        }
+
+        long moved = -movedBefore;
+        int carCount = 0;
+        for (Road road : roads) {
+            moved += road.movedLength();
+            carCount += road.carCount();
+        }
+
+        double cells = (double) sweep.length * sweep.lanes;
+        double steps = sweep.measureSteps;
+        return new Run(
+                carCount / cells,
+                moved / (cells * steps),
+                carCount == 0 ? 0 : moved / (carCount * steps),
+                jams / (sweep.lanes * steps),
+                carCount == 0 ? 0 : blocked / (carCount * steps));
+    }
+
+    /**
+     * 指定した台数の車を無作為に置いた道路の文字列を返す.
+     *
+     * @param length 道路長
+     * @param cars   車の数
+     * @param random 乱数
+     * @return 0と1からなる文字列
+     */
+    private static String roadCondition(int length, int cars, SplittableRandom random) {
+        int[] cells = new int[length];
+        for (int i = 0; i < length; i++) {
+            cells[i] = i;
+        }
+
+        char[] roadCondition = new char[length];
+        Arrays.fill(roadCondition, '0');
+        for (int i = 0; i < cars && i < length; i++) {
+            int j = i + random.nextInt(length - i);
+            int cell = cells[j];
+            cells[j] = cells[i];
+            cells[i] = cell;
+            roadCondition[cell] = '1';
+        }
+        return new String(roadCondition);
+    }
+
+    /**
+     * 実行する条件.
+     */
+    public static class Sweep {
+        private int length = 100;
+        private int lanes = 1;
+        private double[] densities = {0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9};
+        private int seeds = 1;
+        private long seed;
+        private int warmUpSteps = 100;
+        private int measureSteps = 100;
+        private int speed = 1;
+        private final Map<String, Supplier<Car.Rule>> rules = new LinkedHashMap<>();
+
+        /**
+         * 道路長を設定する.
+         *
+         * @param length 道路長
+         * @return このSweep
+         */
+        public Sweep setLength(int length) {
+            if (length <= 0)
+                throw new IllegalArgumentException("length must be bigger than 0.");
+
+            this.length = length;
+            return this;
+        }
+
+        /**
+         * 車線の数を設定する.
+         *
+         * @param lanes 車線の数
+         * @return このSweep
+         */
+        public Sweep setLanes(int lanes) {
+            if (lanes <= 0)
+                throw new IllegalArgumentException("lanes must be bigger than 0.");
+
+            this.lanes = lanes;
+            return this;
+        }
+
+        /**
+         * 実行する密度を設定する.
+         *
+         * @param densities 密度. それぞれ0以上1以下.
+         * @return このSweep
+         */
+        public Sweep setDensities(double... densities) {
+            for (double density : densities) {
+                if (!(density >= 0 && density <= 1))
+                    throw new IllegalArgumentException("density must be between 0 and 1.");
+            }
+
+            this.densities = densities.clone();
+            return this;
+        }
+
+        /**
+         * 密度ごとに初期状態を変えて実行する回数を設定する.
+         *
+         * @param seeds 回数
+         * @return このSweep
+         */
+        public Sweep setSeeds(int seeds) {
+            if (seeds <= 0)
+                throw new IllegalArgumentException("seeds must be bigger than 0.");
+
+            this.seeds = seeds;
+            return this;
+        }
+
+        /**
+         * 初期状態を決める乱数の種の基準値を設定する.
+         *
+         * @param seed 乱数の種
+         * @return このSweep
+         */
+        public Sweep setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * 計測を始める前に進めるステップ数を設定する.
+         *
+         * @param warmUpSteps ステップ数
+         * @return このSweep
+         */
+        public Sweep setWarmUpSteps(int warmUpSteps) {
+            if (warmUpSteps < 0)
+                throw new IllegalArgumentException("warmUpSteps must be bigger than or equal to 0.");
+
+            this.warmUpSteps = warmUpSteps;
+            return this;
+        }
+
+        /**
+         * 計測するステップ数を設定する.
+         *
+         * @param measureSteps ステップ数
+         * @return このSweep
+         */
+        public Sweep setMeasureSteps(int measureSteps) {
+            if (measureSteps <= 0)
+                throw new IllegalArgumentException("measureSteps must be bigger than 0.");
+
+            this.measureSteps = measureSteps;
+            return this;
+        }
+
+        /**
+         * すべての車のスピードを設定する.
+         *
+         * @param speed スピード
+         * @return このSweep
+         */
+        public Sweep setSpeed(int speed) {
+            this.speed = speed;
+            return this;
+        }
+
+        /**
+         * 比較するルールを追加する. 1つも追加しない場合はルールなしで実行する.
+         * ルールは実行ごとに生成される.
+         *
+         * @param name ルールの名前
+         * @param rule ルールを生成するSupplier. nullを返すとルールなしで実行する.
+         * @return このSweep
+         */
+        public Sweep addRule(String name, Supplier<Car.Rule> rule) {
+            if (name == null || rule == null)
+                throw new IllegalArgumentException("name and rule must not be null.");
+
+            rules.put(name, rule);
+            return this;
+        }
+    }
+
+    /**
+     * ルールと密度の組み合わせごとの集計結果.
+     */
+    public static class Point {
+        /**
+         * ルールの名前
+         */
+        public final String ruleName;
+        /**
+         * 指定した密度
+         */
+        public final double density;
+        /**
+         * 集計した実行の数
+         */
+        public final int runs;
+        /**
+         * 実際に置いた車の密度の平均
+         */
+        public final double actualDensity;
+        /**
+         * 流量(1セル1ステップあたりに車が進んだ距離)の平均
+         */
+        public final double flow;
+        /**
+         * 実行ごとの流量の標準偏差
+         */
+        public final double flowStandardDeviation;
+        /**
+         * 車1台1ステップあたりに進んだ距離の平均
+         */
+        public final double meanVelocity;
+        /**
+         * 1車線1ステップあたりの渋滞の数の平均
+         */
+        public final double jamCount;
+        /**
+         * 前のセルが埋まっている車の割合の平均
+         */
+        public final double blockedRatio;
+
+        Point(String ruleName, double density, int runs, double actualDensity, double flow,
+              double flowStandardDeviation, double meanVelocity, double jamCount, double blockedRatio) {
+            this.ruleName = ruleName;
+            this.density = density;
+            this.runs = runs;
+            this.actualDensity = actualDensity;
+            this.flow = flow;
+            this.flowStandardDeviation = flowStandardDeviation;
+            this.meanVelocity = meanVelocity;
+            this.jamCount = jamCount;
+            this.blockedRatio = blockedRatio;
+        }
+
+        @Override
+        public String toString() {
+            return ruleName + "\t" + density + "\t" + runs + "\t" + actualDensity + "\t" + flow
+                    + "\t" + flowStandardDeviation + "\t" + meanVelocity + "\t" + jamCount + "\t" + blockedRatio;
+        }
+    }
+
+    /**
+     * 1回分の実行結果.
+     */
+    static class Run {
+        final double density;
+        final double flow;
+        final double meanVelocity;
+        final double jamCount;
+        final double blockedRatio;
+
+        Run(double density, double flow, double meanVelocity, double jamCount, double blockedRatio) {
+            this.density = density;
+            this.flow = flow;
+            this.meanVelocity = meanVelocity;
+            this.jamCount = jamCount;
+            this.blockedRatio = blockedRatio;
+        }
+    }
+
+    /**
+     * 実行結果を逐次集計する. 流量の分散はWelfordの方法で求める.
+     */
+    private static class Accumulator {
+        private final String ruleName;
+        private final double density;
+        private int runs;
+        private double densitySum;
+        private double flowMean;
+        private double flowSquaredDeviation;
+        private double velocitySum;
+        private double jamSum;
+        private double blockedSum;
+
+        Accumulator(String ruleName, double density) {
+            this.ruleName = ruleName;
+            this.density = density;
+        }
+
+        synchronized Point add(Run run) {
+            runs++;
+            densitySum += run.density;
+            double delta = run.flow - flowMean;
+            flowMean += delta / runs;
+            flowSquaredDeviation += delta * (run.flow - flowMean);
+            velocitySum += run.meanVelocity;
+            jamSum += run.jamCount;
+            blockedSum += run.blockedRatio;
+            return snapshot();
+        }
+
+        synchronized Point snapshot() {
+            if (runs == 0) {
+                return new Point(ruleName, density, 0, 0, 0, 0, 0, 0, 0);
+            }
+            return new Point(
+                    ruleName,
+                    density,
+                    runs,
+                    densitySum / runs,
+                    flowMean,
+                    runs > 1 ? Math.sqrt(flowSquaredDeviation / (runs - 1)) : 0,
+                    velocitySum / runs,
+                    jamSum / runs,
+                    blockedSum / runs);
+        }
+    }
+}
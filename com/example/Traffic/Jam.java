@@ -0,0 +1,67 @@
+package com.example.Traffic;
+
+/**
+ * 道路上の渋滞. 2台以上の車が隙間なく並んだ車列を渋滞とする.
+ * 周期境界をまたぐ場合, 最後尾の位置が先頭の位置より大きくなる.
+ */
+public final class Jam {
+    private final int tail;
+    private final int length;
+    private final int roadLength;
+
+    Jam(int tail, int length, int roadLength) {
+        this.tail = tail;
+        this.length = length;
+        this.roadLength = roadLength;
+    }
+
+    /**
+     * 最後尾の車の位置を返す.
+     *
+     * @return 位置
+     */
+    public int getTail() {
+        return tail;
+    }
+
+    /**
+     * 先頭の車の位置を返す.
+     *
+     * @return 位置
+     */
+    public int getHead() {
+        int head = tail + length - 1;
+        return head >= roadLength ? head - roadLength : head;
+    }
+
+    /**
+     * 渋滞している車の数を返す.
+     *
+     * @return 車の数
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        Jam other = (Jam) obj;
+        return tail == other.tail && length == other.length && roadLength == other.roadLength;
+    }
+
+    @Override
+    public int hashCode() {
+        return tail * 31 + length;
+    }
+
+    @Override
+    public String toString() {
+        return "Jam[tail=" + tail + ", head=" + getHead() + ", length=" + length + "]";
+    }
+}
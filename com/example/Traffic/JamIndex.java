@@ -0,0 +1,165 @@
+package com.example.Traffic;
+
+import java.util.Arrays;
+
+/**
+ * 道路上の渋滞を最後尾の位置順に並べた索引.
+ * 車を位置の昇順にaddCar()で渡すと, 隙間なく並んだ車列を区切りながら渋滞を集める.
+ * 周期境界をまたぐ車列は, 最後の車列と最初の車列をつないで1つの渋滞にする.
+ * <p>
+ * 作った後は, 任意の位置から次の渋滞までの距離を二分探索でO(log 渋滞の数)で求められる.
+ */
+final class JamIndex {
+    private final int roadLength;
+    //渋滞ごとの最後尾の位置と車の数. 最後尾の位置の昇順
+    private int[] tails = new int[0];
+    private int[] lengths = new int[0];
+    private int count;
+    //区切り途中の車列と, 最後の車列とつながる可能性があるので保留している最初の車列
+    private int runStart;
+    private int runLength;
+    private int firstRunStart;
+    private int firstRunLength;
+
+    JamIndex(int roadLength) {
+        this.roadLength = roadLength;
+        reset();
+    }
+
+    /**
+     * 空にする.
+     */
+    void reset() {
+        count = 0;
+        runLength = 0;
+        firstRunStart = -1;
+        firstRunLength = 0;
+    }
+
+    /**
+     * 車を加える.
+     *
+     * @param position 位置. 前に加えた車より大きいこと.
+     */
+    void addCar(int position) {
+        if (runLength > 0 && position == runStart + runLength) {
+            runLength++;
+            return;
+        }
+
+        closeRun();
+        runStart = position;
+        runLength = 1;
+    }
+
+    /**
+     * すべての車を加えた後に呼び, 周期境界をまたぐ車列をつなぐ.
+     */
+    void finish() {
+        if (firstRunStart < 0) {
+            //車列が1つだけ(または車がない)
+            addJam(runStart, runLength);
+            runLength = 0;
+            return;
+        }
+
+        if (firstRunStart == 0 && runStart + runLength == roadLength) {
+            //最後の車列が周期境界を越えて最初の車列につながる. 最後尾が一番後ろなので末尾に加える
+            addJam(runStart, runLength + firstRunLength);
+        } else {
+            addJam(runStart, runLength);
+            if (firstRunLength >= 2) {
+                //最初の車列の最後尾が一番前なので先頭に差し込む
+                ensureCapacity(count + 1);
+                System.arraycopy(tails, 0, tails, 1, count);
+                System.arraycopy(lengths, 0, lengths, 1, count);
+                tails[0] = firstRunStart;
+                lengths[0] = firstRunLength;
+                count++;
+            }
+        }
+        runLength = 0;
+    }
+
+    /**
+     * 区切り途中の車列を閉じる.
+     */
+    private void closeRun() {
+        if (runLength == 0)
+            return;
+
+        if (firstRunStart < 0) {
+            firstRunStart = runStart;
+            firstRunLength = runLength;
+        } else {
+            addJam(runStart, runLength);
+        }
+        runLength = 0;
+    }
+
+    /**
+     * 2台以上の車列を渋滞として末尾に加える.
+     *
+     * @param tail   最後尾の位置
+     * @param length 車の数
+     */
+    private void addJam(int tail, int length) {
+        if (length < 2)
+            return;
+
+        ensureCapacity(count + 1);
+        tails[count] = tail;
+        lengths[count] = length;
+        count++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > tails.length) {
+            int newCapacity = Math.max(capacity, Math.max(4, tails.length * 2));
+            tails = Arrays.copyOf(tails, newCapacity);
+            lengths = Arrays.copyOf(lengths, newCapacity);
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    int tail(int index) {
+        return tails[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * 指定した位置から前に進んで, 次の渋滞の最後尾に着くまでのセル数を返す.
+     *
+     * @param position 位置. 0以上道路長未満.
+     * @return セル数. 位置が渋滞の中なら0, 渋滞がなければInteger.MAX_VALUE.
+     */
+    int distanceTo(int position) {
+        if (count == 0)
+            return Integer.MAX_VALUE;
+
+        //最後尾がposition以下で最も前にある渋滞
+        int index = Arrays.binarySearch(tails, 0, count, position);
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        if (index >= 0) {
+            if (position - tails[index] < lengths[index])
+                return 0;
+        } else {
+            //最後の渋滞が周期境界をまたいで, positionを含む場合
+            int last = count - 1;
+            if (position < tails[last] + lengths[last] - roadLength)
+                return 0;
+        }
+
+        int next = index + 1;
+        return next < count ? tails[next] - position : tails[0] + roadLength - position;
+    }
+}
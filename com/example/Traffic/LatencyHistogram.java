@@ -0,0 +1,135 @@
+package com.example.Traffic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所要時間の分布を記録するヒストグラム.
+ * 2の累乗ごとの区間をさらに16等分した階級(HDRヒストグラムと同じ対数線形の階級)で数えるので,
+ * 値の大きさによらず相対誤差は約6%以内になる. 記録はロックを使わず, 複数のスレッドから同時に行える.
+ */
+final class LatencyHistogram {
+    //2の累乗ごとの区間を分ける数のビット数
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * 値を記録する.
+     *
+     * @param value 値. 負の値は0として扱う.
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * 記録した値の数を返す.
+     *
+     * @return 値の数
+     */
+    long count() {
+        return totalCount.sum();
+    }
+
+    /**
+     * 記録した値の平均を返す.
+     *
+     * @return 平均. 値がなければ0.
+     */
+    double mean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * 記録した値の合計を返す.
+     *
+     * @return 合計
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * 記録した値の最大値を返す.
+     *
+     * @return 最大値. 値がなければ0.
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * 指定した分位点の値を返す. 値はその値を含む階級の上限(ただし最大値を越えない)になる.
+     *
+     * @param quantile 分位. 0以上1以下.
+     * @return 分位点の値. 値がなければ0.
+     */
+    long valueAt(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("quantile must be between 0 and 1.");
+
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long currentMax = max.get();
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), currentMax);
+            }
+        }
+        return currentMax;
+    }
+
+    /**
+     * 値の属する階級を返す.
+     *
+     * @param value 0以上の値
+     * @return 階級
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    /**
+     * 階級に属する最大の値を返す.
+     *
+     * @param index 階級
+     * @return 最大の値
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
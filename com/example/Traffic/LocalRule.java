@@ -0,0 +1,300 @@
+package com.example.Traffic;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 車の周りの狭い範囲のセルと, 前のセルが埋まっていたかどうかの履歴だけで進むかどうかが決まる移動規則.
+ * compile()で, 近傍の半径rと履歴の深さhのすべての組み合わせについて進むかどうかを求め,
+ * 2^(2r + 1 + h)ビットの遷移表にまとめる.
+ * <p>
+ * TrafficManager.addBatchRule()で設定する. ルールを持つ車がなく, すべての車のスピードが1の間は,
+ * 疎な道路とヒープ外の道路以外は1セル1ビットにまとめたまま遷移表を引いて進める. それ以外の場合はBatchRuleとして車ごとに遷移表を引く.
+ * 車は前のセルが空いている場合にだけ1セル進む.
+ * <p>
+ * 遷移表は, 変数ごとに場合分けした決定グラフ(同じ部分表をまとめたもの)にも変換する.
+ * グラフが小さければ, 1セル1ビットの道路では64セル分の近傍を表すワード同士のAND/ORでグラフをたどり,
+ * 64台分の進むかどうかを一度に求める(SWAR). 大きければ車ごとに表を引く.
+ */
+public final class LocalRule implements BatchRule {
+    /**
+     * 近傍の半径の最大値
+     */
+    public static final int MAX_RADIUS = 8;
+    /**
+     * 履歴の深さの最大値. 車が持つ履歴は, 前のステップで前のセルが埋まっていたかどうかの1ビット.
+     */
+    public static final int MAX_HISTORY_DEPTH = 1;
+    //ワード単位で評価する決定グラフの節の数の上限. これより大きければ車ごとに表を引く
+    private static final int MAX_WORD_NODES = 64;
+    //決定グラフの定数の節
+    private static final int FALSE_NODE = 0;
+    private static final int TRUE_NODE = 1;
+
+    private final int radius;
+    private final int historyDepth;
+    //i番目のビットが, 表の番号iの状態で進むかどうか
+    private final long[] table;
+    //決定グラフ. 2番目以降の節は子より後ろに並ぶ. 大きすぎる場合はnull
+    private final int[] nodeVariables;
+    private final int[] lowNodes;
+    private final int[] highNodes;
+    private final int rootNode;
+
+    private LocalRule(int radius, int historyDepth, long[] table) {
+        this.radius = radius;
+        this.historyDepth = historyDepth;
+        this.table = table;
+
+        DiagramBuilder builder = new DiagramBuilder(table);
+        int root = builder.build(2 * radius + historyDepth, 0);
+        if (builder.overflowed) {
+            nodeVariables = null;
+            lowNodes = null;
+            highNodes = null;
+            rootNode = FALSE_NODE;
+        } else {
+            nodeVariables = Arrays.copyOf(builder.variables, builder.count);
+            lowNodes = Arrays.copyOf(builder.lows, builder.count);
+            highNodes = Arrays.copyOf(builder.highs, builder.count);
+            rootNode = root;
+        }
+    }
+
+    /**
+     * 移動規則を遷移表にまとめる.
+     *
+     * @param radius       近傍の半径. 1以上MAX_RADIUS以下.
+     * @param historyDepth 履歴の深さ. 0以上MAX_HISTORY_DEPTH以下.
+     * @param definition   移動規則
+     * @return まとめた移動規則
+     */
+    public static LocalRule compile(int radius, int historyDepth, Definition definition) {
+        if (radius < 1 || radius > MAX_RADIUS)
+            throw new IllegalArgumentException("radius must be between 1 and " + MAX_RADIUS + ".");
+        if (historyDepth < 0 || historyDepth > MAX_HISTORY_DEPTH)
+            throw new IllegalArgumentException("historyDepth must be between 0 and " + MAX_HISTORY_DEPTH + ".");
+
+        int windowBits = 2 * radius + 1;
+        int size = 1 << (windowBits + historyDepth);
+        long[] table = new long[(size + 63) >>> 6];
+        Neighbourhood neighbourhood = new Neighbourhood(radius, historyDepth);
+        for (int index = 0; index < size; index++) {
+            //自分のセルが空いている状態と, 前のセルが埋まっている状態では進まない
+            if ((index >>> radius & 1) == 0 || (index >>> (radius + 1) & 1) != 0)
+                continue;
+
+            neighbourhood.window = index & ((1 << windowBits) - 1);
+            neighbourhood.history = index >>> windowBits;
+            if (definition.moves(neighbourhood)) {
+                table[index >>> 6] |= 1L << index;
+            }
+        }
+        return new LocalRule(radius, historyDepth, table);
+    }
+
+    /**
+     * 近傍の半径を返す.
+     *
+     * @return 近傍の半径
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * 履歴の深さを返す.
+     *
+     * @return 履歴の深さ
+     */
+    public int getHistoryDepth() {
+        return historyDepth;
+    }
+
+    /**
+     * 遷移表を引く.
+     *
+     * @param window        近傍のセル. iビット目が, 車の位置 - radius + i番目のセル.
+     * @param wasNextFilled 前のステップで前のセルが埋まっていたかどうか
+     * @return 進むならtrue
+     */
+    boolean moves(int window, boolean wasNextFilled) {
+        int index = window;
+        if (historyDepth != 0 && wasNextFilled) {
+            index |= 1 << (2 * radius + 1);
+        }
+        return (table[index >>> 6] >>> index & 1) != 0;
+    }
+
+    /**
+     * 64セル分をまとめて評価できるかどうか返す.
+     *
+     * @return できればtrue
+     */
+    boolean hasWordProgram() {
+        return nodeVariables != null;
+    }
+
+    /**
+     * 64セル分の近傍から, 進むかどうかをまとめて求める.
+     * 前のセルが埋まっているかどうかや, そのセルに車がいるかどうかは呼び出し側で確かめる.
+     *
+     * @param planes 変数ごとの64セル分の値. i番目(0以上2 * radius以下)は各セルから見てi - radius番目のセル,
+     *               2 * radius + 1番目は前のステップで前のセルが埋まっていたかどうか.
+     * @param values 節ごとの値を書き込む作業領域. getWordNodeCount()個以上の要素が必要.
+     * @return 進むセルのビットが立ったワード
+     */
+    long evaluate(long[] planes, long[] values) {
+        values[FALSE_NODE] = 0;
+        values[TRUE_NODE] = -1L;
+        for (int node = 2; node < nodeVariables.length; node++) {
+            long variable = planes[nodeVariables[node]];
+            values[node] = (variable & values[highNodes[node]]) | (~variable & values[lowNodes[node]]);
+        }
+        return values[rootNode];
+    }
+
+    /**
+     * 決定グラフの節の数(定数の節を含む)を返す.
+     *
+     * @return 節の数
+     */
+    int getWordNodeCount() {
+        return nodeVariables.length;
+    }
+
+    /**
+     * 車ごとに近傍のセルを読み, 遷移表を引いて進む車を決める.
+     *
+     * @param batch 道路上の車の状態
+     * @param moves 進みたい距離の書き込み先
+     */
+    @Override
+    public void onMove(RoadBatch batch, int[] moves) {
+        Road road = batch.getRoad();
+        int[] positions = batch.getPositions();
+        int[] forwardFreeLengths = batch.getForwardFreeLengths();
+        boolean[] wasSecondOfJam = batch.getWasSecondOfJam();
+        for (int i = 0; i < batch.size(); i++) {
+            //車が1台だけの場合も含め, 前が空いていなければ進めない
+            if (forwardFreeLengths[i] == 0)
+                continue;
+
+            int window = 0;
+            for (int offset = -radius; offset <= radius; offset++) {
+                if (road.isFilled(positions[i] + offset)) {
+                    window |= 1 << (offset + radius);
+                }
+            }
+            //前のセルが空いているので, 渋滞の2番めの車だったかどうかは前のステップで前のセルが埋まっていたかどうかと同じ
+            if (moves(window, wasSecondOfJam[i])) {
+                moves[i] = 1;
+            }
+        }
+    }
+
+    /**
+     * 遷移表から, 同じ部分表をまとめた決定グラフを作る.
+     */
+    private static final class DiagramBuilder {
+        private final long[] table;
+        private final Map<Long, Integer> nodes = new HashMap<>();
+        private final int[] variables = new int[MAX_WORD_NODES + 2];
+        private final int[] lows = new int[MAX_WORD_NODES + 2];
+        private final int[] highs = new int[MAX_WORD_NODES + 2];
+        private int count = 2;
+        //節が多すぎて作るのをやめたかどうか
+        private boolean overflowed;
+
+        DiagramBuilder(long[] table) {
+            this.table = table;
+        }
+
+        /**
+         * 表の番号のうち, variable番目以下のビットだけが異なる範囲の部分表を表す節を返す.
+         *
+         * @param variable 変数(表の番号のビット). -1なら表の1要素.
+         * @param start    範囲の最初の番号
+         * @return 節. 作るのをやめた場合は意味を持たない.
+         */
+        int build(int variable, int start) {
+            if (variable < 0)
+                return (table[start >>> 6] >>> start & 1) != 0 ? TRUE_NODE : FALSE_NODE;
+
+            int low = build(variable - 1, start);
+            int high = build(variable - 1, start + (1 << variable));
+            if (overflowed || low == high)
+                return low;
+
+            long key = ((long) variable << 40) | ((long) low << 20) | high;
+            Integer node = nodes.get(key);
+            if (node != null)
+                return node;
+
+            if (count == variables.length) {
+                overflowed = true;
+                return low;
+            }
+            variables[count] = variable;
+            lows[count] = low;
+            highs[count] = high;
+            nodes.put(key, count);
+            return count++;
+        }
+    }
+
+    /**
+     * 車の周りの状態から進むかどうかを決める移動規則.
+     */
+    @FunctionalInterface
+    public interface Definition {
+        /**
+         * 進むかどうか返す. 前のセルが埋まっている場合は呼ばれない.
+         *
+         * @param neighbourhood 車の周りの状態
+         * @return 進むならtrue
+         */
+        boolean moves(Neighbourhood neighbourhood);
+    }
+
+    /**
+     * 遷移表を作るために, Definitionに渡す車の周りの状態.
+     */
+    public static final class Neighbourhood {
+        private final int radius;
+        private final int historyDepth;
+        private int window;
+        private int history;
+
+        private Neighbourhood(int radius, int historyDepth) {
+            this.radius = radius;
+            this.historyDepth = historyDepth;
+        }
+
+        /**
+         * 車から見て指定した距離にあるセルが埋まっているかどうか返す.
+         *
+         * @param offset 距離. 前が正. -radius以上radius以下.
+         * @return 埋まっていればtrue
+         */
+        public boolean isFilled(int offset) {
+            if (offset < -radius || offset > radius)
+                throw new IllegalArgumentException("offset must be between " + -radius + " and " + radius + ".");
+
+            return (window >>> (offset + radius) & 1) != 0;
+        }
+
+        /**
+         * 前のステップで前のセルが埋まっていたかどうか返す.
+         *
+         * @return 埋まっていればtrue
+         */
+        public boolean wasNextFilled() {
+            if (historyDepth == 0)
+                throw new IllegalStateException("This rule has no history.");
+
+            return (history & 1) != 0;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.Traffic;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SimulationMetricsの集計を, HTTPのGET /metricsでPrometheusのテキスト形式として返すエンドポイント.
+ * ループバックアドレスでのみ待ち受ける.
+ */
+public class MetricsEndpoint implements Closeable {
+    private final HttpServer server;
+
+    /**
+     * エンドポイントを起動する.
+     *
+     * @param metrics 返す集計
+     * @param port    ポート番号. 0なら空いているポートを使う.
+     * @throws IOException 起動できなかった場合
+     */
+    public MetricsEndpoint(SimulationMetrics metrics, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+
+                byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * 待ち受けているポート番号を返す.
+     *
+     * @return ポート番号
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * エンドポイントを停止する.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
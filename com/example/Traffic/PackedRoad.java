@@ -0,0 +1,517 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 道路の占有状態を1セル1ビットで保持し, ルール184で64セルずつまとめて進めるクラス.
+ */
+final class PackedRoad extends CompactRoad {
+    //並列に進める際, 1つのスレッドが受け持つワード数の目安
+    private static final int CHUNK_WORDS = 1 << 12;
+    //i番目のセルはwords[i >> 6]の(i & 63)ビット目
+    private long[] words;
+    private long[] nextWords;
+    //最後のワードのうち道路に含まれるビット
+    private final long lastMask;
+    private int wraps;
+    //LocalRuleで進める場合の, 各セルにいる車の前のセルが埋まっていたかどうかの履歴. 使わなければnull
+    private long[] nextFilledWords;
+    private long[] wasNextFilledWords;
+    private long[] moveWords;
+
+    /**
+     * 空の道路を初期化する.
+     *
+     * @param length   道路長
+     * @param carCount 道路上の車の数
+     */
+    PackedRoad(int length, int carCount) {
+        super(length, carCount);
+
+        int wordCount = (length + 63) >>> 6;
+        words = new long[wordCount];
+        nextWords = new long[wordCount];
+        lastMask = (length & 63) == 0 ? -1L : (1L << (length & 63)) - 1;
+    }
+
+    /**
+     * 指定したセルを埋める.
+     *
+     * @param position 位置. 0以上length未満.
+     */
+    void set(int position) {
+        words[position >>> 6] |= 1L << position;
+    }
+
+    /**
+     * 車ごとの前のセルが埋まっていたかどうかの履歴を持つようにする. LocalRuleで進める場合に使う.
+     */
+    void enableHistory() {
+        nextFilledWords = new long[words.length];
+        wasNextFilledWords = new long[words.length];
+        moveWords = new long[words.length];
+    }
+
+    /**
+     * 車ごとの履歴を持っているかどうか返す.
+     *
+     * @return 持っていればtrue
+     */
+    boolean hasHistory() {
+        return nextFilledWords != null;
+    }
+
+    /**
+     * 指定したセルにいる車の履歴を設定する.
+     *
+     * @param position      位置
+     * @param isNextFilled  最後のステップで前のセルが埋まっていたかどうか
+     * @param wasNextFilled その1つ前のステップで前のセルが埋まっていたかどうか
+     */
+    void setHistory(int position, boolean isNextFilled, boolean wasNextFilled) {
+        long bit = 1L << position;
+        if (isNextFilled) {
+            nextFilledWords[position >>> 6] |= bit;
+        }
+        if (wasNextFilled) {
+            wasNextFilledWords[position >>> 6] |= bit;
+        }
+    }
+
+    /**
+     * 指定したセルにいる車が, 最後のステップで前のセルが埋まっていたかどうか返す.
+     *
+     * @param position 位置
+     * @return 埋まっていればtrue
+     */
+    boolean isNextFilled(int position) {
+        return (nextFilledWords[position >>> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * 指定したセルにいる車が, その1つ前のステップで前のセルが埋まっていたかどうか返す.
+     *
+     * @param position 位置
+     * @return 埋まっていればtrue
+     */
+    boolean wasNextFilled(int position) {
+        return (wasNextFilledWords[position >>> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * 指定したセルが埋まっているかどうか返す.
+     *
+     * @param position 位置. 0以上length未満.
+     * @return 埋まっていればtrue
+     */
+    @Override
+    boolean get(int position) {
+        return (words[position >>> 6] & (1L << position)) != 0;
+    }
+
+    /**
+     * 指定した位置以降で最初に埋まっているセルを返す.
+     *
+     * @param from 探し始める位置
+     * @return 埋まっているセルの位置. 存在しなければ-1.
+     */
+    @Override
+    int nextFilled(int from) {
+        if (from >= length)
+            return -1;
+
+        int wordIndex = from >>> 6;
+        long word = words[wordIndex] & (-1L << from);
+        while (word == 0) {
+            if (++wordIndex == words.length)
+                return -1;
+            word = words[wordIndex];
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * 一番後ろの車が周期境界を越えて先頭に回った回数を, 車の数を法として返す.
+     * 最初に位置順でi番目だった車は, 現在(i + wraps) % carCount番目にいる.
+     *
+     * @return 回った回数
+     */
+    @Override
+    int wraps() {
+        return wraps;
+    }
+
+    /**
+     * ルール184で1ステップ進める.
+     * 前のセルが空いている車だけが1セル進む.
+     * 車が1台以下の場合, 前後の車間距離が0として扱われるので何も動かない.
+     */
+    long step() {
+        return step((ForkJoinPool) null);
+    }
+
+    /**
+     * ルール184で1ステップ進める.
+     * poolが指定されていて道が十分に長い場合, 道をワード単位の区間に分けて並列に進める.
+     * 各区間は前後のワードを読むだけで, 書き込み先は区間ごとに分かれているので結果は1スレッドの場合と同じになる.
+     *
+     * @param pool 並列に進める際に使うプール. nullなら1スレッドで進める.
+     * @return 進んだ車の数
+     */
+    @Override
+    long step(@Nullable ForkJoinPool pool) {
+        if (carCount <= 1)
+            return 0;
+
+        long firstBit = firstBit();
+        long lastBit = lastBit();
+
+        long moved;
+        if (pool == null || words.length < CHUNK_WORDS * 2) {
+            moved = stepWords(0, words.length, firstBit, lastBit);
+        } else {
+            StepTask task = new StepTask(0, words.length, firstBit, lastBit);
+            if (ForkJoinTask.inForkJoinPool()) {
+                moved = task.invoke();
+            } else {
+                moved = pool.invoke(task);
+            }
+        }
+
+        if (lastBit == 1 && firstBit == 0) {
+            wraps = wraps + 1 == carCount ? 0 : wraps + 1;
+        }
+
+        long[] swap = words;
+        words = nextWords;
+        nextWords = swap;
+        return moved;
+    }
+
+    /**
+     * LocalRuleの遷移表を引いて1ステップ進める.
+     * 前のセルが空いていて, 遷移表が進むとした車だけが1セル進む. 車の履歴も一緒に動かす.
+     * 車が1台以下の場合, 前後の車間距離が0として扱われるので何も動かない.
+     *
+     * @param rule 移動規則
+     * @return 進んだ車の数
+     */
+    long step(LocalRule rule) {
+        long firstBit = firstBit();
+        long lastBit = lastBit();
+        int last = words.length - 1;
+
+        //進む車を決める. 前が空いている車についてだけ遷移表を引く
+        int radius = rule.getRadius();
+        long[] planes = null;
+        long[] values = null;
+        if (rule.hasWordProgram()) {
+            planes = new long[2 * radius + 2];
+            values = new long[rule.getWordNodeCount()];
+        }
+        long moved = 0;
+        for (int i = 0; i <= last; i++) {
+            long candidates = carCount <= 1 ? 0 : words[i] & ~ahead(i, firstBit);
+            int from = i << 6;
+            if (candidates != 0 && planes != null && from - radius >= 0 && from + 63 + radius < length) {
+                //近傍が周期境界をまたがないワードは, 64セル分まとめて決定グラフをたどる
+                long move = candidates & rule.evaluate(neighbourPlanes(i, radius, planes), values);
+                moveWords[i] = move;
+                moved += Long.bitCount(move);
+                continue;
+            }
+
+            long move = 0;
+            while (candidates != 0) {
+                int bit = Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                if (moves(rule, (i << 6) + bit)) {
+                    move |= 1L << bit;
+                }
+            }
+            moveWords[i] = move;
+            moved += Long.bitCount(move);
+        }
+
+        //進む車は1つ前のセルへ, それ以外の車はそのまま. 履歴も車と一緒に動かす
+        int lastShift = (length - 1) & 63;
+        long lastMoveBit = (moveWords[last] >>> lastShift) & 1L;
+        long carriedNextFilled = ((nextFilledWords[last] & moveWords[last]) >>> lastShift) & 1L;
+        for (int i = 0; i <= last; i++) {
+            long current = words[i];
+            long move = moveWords[i];
+            long moveCarry = i == 0 ? lastMoveBit : moveWords[i - 1] >>> 63;
+            long stay = current & ~move;
+            long nextFilled = nextFilledWords[i];
+
+            nextWords[i] = mask(i, stay | (move << 1) | moveCarry);
+            //1つ前のステップの履歴は, これまでの最後のステップの履歴
+            wasNextFilledWords[i] = mask(i, (nextFilled & stay) | ((nextFilled & move) << 1) | carriedNextFilled);
+            carriedNextFilled = (nextFilled & move) >>> 63;
+            //進めない車は前が埋まっていて, 進む車は前が空いている
+            nextFilledWords[i] = current & ahead(i, firstBit);
+        }
+
+        if (lastMoveBit == 1) {
+            wraps = wraps + 1 == carCount ? 0 : wraps + 1;
+        }
+
+        long[] swap = words;
+        words = nextWords;
+        nextWords = swap;
+        return moved;
+    }
+
+    /**
+     * LocalRuleの遷移表を引いて, 指定したセルにいる車が進むかどうか返す.
+     * 前のセルが埋まっているかどうかは確かめない.
+     *
+     * @param rule     移動規則
+     * @param position 車の位置
+     * @return 進むならtrue
+     */
+    boolean moves(LocalRule rule, int position) {
+        int radius = rule.getRadius();
+        int width = 2 * radius + 1;
+        int from = position - radius;
+        int window;
+        if (from >= 0 && from + width <= length) {
+            int word = from >>> 6;
+            int offset = from & 63;
+            long bits = words[word] >>> offset;
+            if (offset + width > 64) {
+                bits |= words[word + 1] << (64 - offset);
+            }
+            window = (int) (bits & ((1L << width) - 1));
+        } else {
+            //周期境界をまたぐ場合は1セルずつ読む
+            window = 0;
+            for (int i = 0; i < width; i++) {
+                int cell = Math.floorMod(from + i, length);
+                if (get(cell)) {
+                    window |= 1 << i;
+                }
+            }
+        }
+        return rule.moves(window, isNextFilled(position));
+    }
+
+    /**
+     * i番目のワードの各セルから見た近傍のセルと履歴を, 変数ごとのワードにまとめる.
+     * 近傍がi - 1番目からi + 1番目のワードに収まっている必要がある.
+     *
+     * @param i      ワード
+     * @param radius 近傍の半径
+     * @param planes 書き込み先. 2 * radius + 2個以上の要素が必要.
+     * @return planes
+     */
+    private long[] neighbourPlanes(int i, int radius, long[] planes) {
+        long word = words[i];
+        planes[radius] = word;
+        for (int offset = 1; offset <= radius; offset++) {
+            planes[radius + offset] = (word >>> offset) | (words[i + 1] << (64 - offset));
+            planes[radius - offset] = (word << offset) | (words[i - 1] >>> (64 - offset));
+        }
+        planes[2 * radius + 1] = nextFilledWords[i];
+        return planes;
+    }
+
+    /**
+     * 最後のワードのうち道路に含まれないビットを落とす.
+     *
+     * @param i    ワード
+     * @param word 値
+     * @return 落とした値
+     */
+    private long mask(int i, long word) {
+        return i == words.length - 1 ? word & lastMask : word;
+    }
+
+    private static long bitAt(long[] bits, int position) {
+        return (bits[position >>> 6] >>> position) & 1L;
+    }
+
+    /**
+     * 状態を1セル1ビットで書き写す.
+     *
+     * @param destination 書き込み先. (length + 63) / 64個以上の要素が必要.
+     */
+    @Override
+    void copyTo(long[] destination) {
+        System.arraycopy(words, 0, destination, 0, words.length);
+    }
+
+    /**
+     * 占有状態と車の履歴のハッシュを返す. 64セルごとに, ワードの値と位置から作った鍵のXORをとる.
+     *
+     * @return ハッシュ
+     */
+    @Override
+    long stateHash() {
+        long hash = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (words[i] != 0) {
+                long key = CycleDetector.mix(words[i]);
+                if (nextFilledWords != null) {
+                    key = CycleDetector.mix(key + nextFilledWords[i]) + wasNextFilledWords[i];
+                }
+                hash ^= CycleDetector.mix(key + i);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 車の履歴を1セル1ビットで書き写す.
+     *
+     * @param nextFilled    最後のステップで前のセルが埋まっていたかどうかの書き込み先
+     * @param wasNextFilled その1つ前のステップで前のセルが埋まっていたかどうかの書き込み先
+     */
+    void copyHistoryTo(long[] nextFilled, long[] wasNextFilled) {
+        System.arraycopy(nextFilledWords, 0, nextFilled, 0, words.length);
+        System.arraycopy(wasNextFilledWords, 0, wasNextFilled, 0, words.length);
+    }
+
+    /**
+     * 渋滞(2台以上連続して並んでいる車)の数を返す.
+     *
+     * @return 渋滞の数
+     */
+    @Override
+    int jamCount() {
+        if (carCount == length)
+            return length >= 2 ? 1 : 0;
+
+        long firstBit = firstBit();
+        long lastBit = lastBit();
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            //前が埋まっていて, 後ろが空いている車が渋滞の最後尾
+            count += Long.bitCount(words[i] & ahead(i, firstBit) & ~behind(i, lastBit));
+        }
+        return count;
+    }
+
+    /**
+     * 前のセルが埋まっている車の数を返す.
+     *
+     * @return 車の数
+     */
+    @Override
+    int blockedCarCount() {
+        long firstBit = firstBit();
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            count += Long.bitCount(words[i] & ahead(i, firstBit));
+        }
+        return count;
+    }
+
+    /**
+     * 先頭のセルの状態を返す.
+     *
+     * @return 埋まっていれば1, 空いていれば0
+     */
+    private long firstBit() {
+        return words[0] & 1L;
+    }
+
+    /**
+     * 最後のセルの状態を返す.
+     *
+     * @return 埋まっていれば1, 空いていれば0
+     */
+    private long lastBit() {
+        return (words[words.length - 1] >>> ((length - 1) & 63)) & 1L;
+    }
+
+    /**
+     * 各セルの1つ前のセルの状態を, 指定したワードの位置に並べて返す.
+     *
+     * @param i        ワード
+     * @param firstBit 先頭のセルの状態
+     * @return 1つ前のセルの状態
+     */
+    private long ahead(int i, long firstBit) {
+        long current = words[i];
+        if (i == words.length - 1) {
+            return (current >>> 1) | firstBit << ((length - 1) & 63);
+        }
+        return (current >>> 1) | words[i + 1] << 63;
+    }
+
+    /**
+     * 各セルの1つ後ろのセルの状態を, 指定したワードの位置に並べて返す.
+     *
+     * @param i       ワード
+     * @param lastBit 最後のセルの状態
+     * @return 1つ後ろのセルの状態
+     */
+    private long behind(int i, long lastBit) {
+        long current = words[i];
+        if (i == 0) {
+            return (current << 1) | lastBit;
+        }
+        return (current << 1) | words[i - 1] >>> 63;
+    }
+
+    /**
+     * 指定した範囲のワードを1ステップ進め, nextWordsに書き込む.
+     * 範囲の両端では隣のワード(のりしろ)を読み, 道の両端では周期境界条件から反対側のセルを使う.
+     *
+     * @param from     開始ワード
+     * @param to       終了ワード(含まない)
+     * @param firstBit 先頭のセルの状態
+     * @param lastBit  最後のセルの状態
+     * @return 進んだ車の数
+     */
+    private long stepWords(int from, int to, long firstBit, long lastBit) {
+        int last = words.length - 1;
+        long moved = 0;
+
+        for (int i = from; i < to; i++) {
+            long current = words[i];
+            long ahead = ahead(i, firstBit);
+            long next = (current & ahead) | (behind(i, lastBit) & ~current);
+            nextWords[i] = i == last ? next & lastMask : next;
+            moved += Long.bitCount(current & ~ahead);
+        }
+        return moved;
+    }
+
+    /**
+     * ワードの区間を二分しながら並列に進めるタスク.
+     */
+    private final class StepTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final long firstBit;
+        private final long lastBit;
+
+        StepTask(int from, int to, long firstBit, long lastBit) {
+            this.from = from;
+            this.to = to;
+            this.firstBit = firstBit;
+            this.lastBit = lastBit;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= CHUNK_WORDS) {
+                return stepWords(from, to, firstBit, lastBit);
+            }
+
+            int middle = (from + to) >>> 1;
+            StepTask former = new StepTask(from, middle, firstBit, lastBit);
+            StepTask latter = new StepTask(middle, to, firstBit, lastBit);
+            invokeAll(former, latter);
+            return former.join() + latter.join();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.example.Traffic;
 
+import javax.annotation.Nullable;
+
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
 
 /**
  * 道路クラス.
@@ -15,9 +17,67 @@ public class Road {
      */
     public final int length;
     private final TrafficManager manager;
-    //車のIDと位置を保持
-    private HashMap<Car, Integer> carList;
-    private HashMap<Car, Integer> carListBuffer;
+    //セル→スロット. 空きは-1. cellsは前ステップの状態, bufferCellsは書き込み中の状態. refleshで入れ替える
+    private CellMap cells;
+    private CellMap bufferCells;
+    //スロット→車, 位置. 位置が-1のスロットには車がいない
+    private Car[] slotCars;
+    private int[] positions;
+    private int[] bufferPositions;
+    private int slotCount;
+    //前回のrefleshの後にバッファで変更したセルとスロット. 入れ替えた後にこれらだけを新しいバッファへ写す
+    private int[] changedCells;
+    private int changedCellCount;
+    private int[] changedSlots;
+    private int changedSlotCount;
+    private boolean[] isSlotChanged;
+    //新しく並びに加わる車の(位置 << 32 | スロット)
+    private long[] addedSlots;
+    //再利用可能なスロット
+    private int[] freeSlots;
+    private int freeSlotCount;
+    //前ステップの状態を位置順に並べたもの
+    private int carCount;
+    private int[] sortedSlots;
+    //スロット→sortedSlots内の順位. 前ステップに存在しない場合は-1
+    private int[] ranks;
+    //順位→直後のセルが埋まっている車まで何台先か. 存在しなければInteger.MAX_VALUE
+    private int[] jamIndexes;
+    //update中に走らせる車のスナップショット
+    private Car[] stepCars;
+    //BatchRuleに渡す状態. 使うまで作らない
+    private RoadBatch batch;
+    //ルール184で進めている間の状態. nullでなければcells以下の配列より優先される
+    private CompactRoad packed;
+    //前ステップの状態の渋滞. 車ごとの状態では状態が変わるたびにupdateJamIndexes()で作り直す.
+    //まとめて進めている間は無効にしておき, 問い合わせがあった時に作る
+    private JamIndex jams;
+    private volatile boolean jamsValid;
+    //これまでに車が進んだ距離の合計
+    private long movedLength;
+    //前回集計した時点でのmovedLengthと, それ以降に進んだ車の数・断面を通過した車の数
+    private long drainedMovedLength;
+    private long movedCarCount;
+    private long[] crossingCounts = new long[0];
+    //TrafficManager内での車線番号と左右の車線. 管理対象外なら-1
+    private int laneIndex = -1;
+    private Road leftLane;
+    private Road rightLane;
+    //並列に車を動かしている間, この道を担当しているスレッド
+    private volatile Thread updatingThread;
+    //このステップで要求された車線変更と, 移動先で受け入れられたかどうか. ステップの最後にまとめて反映する
+    private Car[] laneChangeCars;
+    private Road[] laneChangeTargets;
+    private boolean[] laneChangeAccepted;
+    private int laneChangeCount;
+    //この道へ入る車線変更の候補. incomingOrderは並べ替えに使い, 決めた後は受け入れた候補の番号を先頭から持つ
+    private Car[] incomingCars;
+    private int[] incomingPositions;
+    private Road[] incomingSources;
+    private int[] incomingIndexes;
+    private long[] incomingOrder;
+    private int incomingCount;
+    private int acceptedIncomingCount;
     private Car.Rule rule;
 
     /**
@@ -28,14 +88,64 @@ public class Road {
      * @param manager この道を管理するTrafficManager
      */
     Road(int length, TrafficManager manager) {
+        this(length, manager, false);
+    }
+
+    /**
+     * コンストラクタ.
+     * 空の道路を初期化する.
+     * 疎な道路はセルごとの配列を持たず, メモリと1ステップの時間が道路長ではなく車の数(ルールがなければ車列の数)に比例する.
+     *
+     * @param length  道路長
+     * @param manager この道を管理するTrafficManager
+     * @param sparse  疎な道路にするかどうか
+     */
+    Road(int length, TrafficManager manager, boolean sparse) {
+        this(length, manager, sparse, false);
+    }
+
+    /**
+     * コンストラクタ.
+     * 空の道路を初期化する.
+     * ヒープ外の道路はセルごとの配列をJavaヒープの外に置き, ルール184でまとめて進める間も車列ごとにまとめるので,
+     * Javaヒープの使用量が道路長によらない. 確保したメモリはrelease()で解放する.
+     *
+     * @param length  道路長
+     * @param manager この道を管理するTrafficManager
+     * @param sparse  疎な道路にするかどうか
+     * @param offHeap ヒープ外の道路にするかどうか. sparseと同時には指定できない.
+     */
+    Road(int length, TrafficManager manager, boolean sparse, boolean offHeap) {
         if (length < 0)
             throw new IllegalArgumentException("length must be bigger than or equal to 0.");
 
-        carList = new HashMap<>(length);
-        carListBuffer = new HashMap<>(length);
-
         this.length = length;
         this.manager = manager;
+
+        cells = new CellMap(length, sparse, offHeap);
+        bufferCells = new CellMap(length, sparse, offHeap);
+
+        int initialSlots = Math.max(1, Math.min(length, 16));
+        slotCars = new Car[initialSlots];
+        positions = new int[initialSlots];
+        bufferPositions = new int[initialSlots];
+        ranks = new int[initialSlots];
+        changedCells = new int[initialSlots];
+        changedSlots = new int[initialSlots];
+        isSlotChanged = new boolean[initialSlots];
+        addedSlots = new long[initialSlots];
+        freeSlots = new int[initialSlots];
+        sortedSlots = new int[initialSlots];
+        jamIndexes = new int[initialSlots];
+        stepCars = new Car[initialSlots];
+        laneChangeCars = new Car[0];
+        laneChangeTargets = new Road[0];
+        laneChangeAccepted = new boolean[0];
+        incomingCars = new Car[0];
+        incomingPositions = new int[0];
+        incomingSources = new Road[0];
+        incomingIndexes = new int[0];
+        incomingOrder = new long[0];
     }
 
     /**
@@ -49,8 +159,30 @@ public class Road {
      * @param manager       この道を管理するTrafficManager
      */
     Road(String roadCondition, TrafficManager manager) {
+        this(RoadFile.parse(roadCondition), manager);
+    }
+
+    /**
+     * コンストラクタ.
+     * 読み込んだ道路の状態から道路と車を初期化する.
+     *
+     * @param file    道路の状態
+     * @param manager この道を管理するTrafficManager
+     */
+    Road(RoadFile file, TrafficManager manager) {
+        this(file.length, manager);
+        addCarsInOrder(file.carPositions, file.carCount);
+    }
+
+    /**
+     * 道路を表す文字列から■, □, 1, 0以外の文字を取り除く.
+     *
+     * @param roadCondition 文字列. nullは空文字列として扱う.
+     * @return 取り除いた後の文字列
+     */
+    static String cleanRoadCondition(String roadCondition) {
         if (roadCondition == null)
-            roadCondition = "";
+            return "";
 
         StringBuilder cleanedRoadCondition = new StringBuilder();
         for (int i = 0; i < roadCondition.length(); i++) {
@@ -62,80 +194,849 @@ public class Road {
                 cleanedRoadCondition.append(roadChar);
             }
         }
+        return cleanedRoadCondition.toString();
+    }
 
-        length = cleanedRoadCondition.length();
-        this.manager = manager;
-        carList = new HashMap<>(length);
-        carListBuffer = new HashMap<>(length);
+    /**
+     * 車の配列を返す.
+     * 車は位置の昇順に並ぶ.
+     *
+     * @return 車の配列
+     */
+    public Car[] getCars() {
+        unpack();
+        Car[] cars = new Car[carCount];
+        for (int i = 0; i < carCount; i++) {
+            cars[i] = slotCars[sortedSlots[i]];
+        }
+        return cars;
+    }
 
-        for (int i = 0; i < cleanedRoadCondition.length(); i++) {
-            if (cleanedRoadCondition.charAt(i) == '■'
-                    || cleanedRoadCondition.charAt(i) == '1') {
-                addCar(new Car(this.manager), i);
-            }
+    /**
+     * 疎な道路かどうか返す.
+     *
+     * @return 疎な道路ならtrue
+     */
+    public boolean isSparse() {
+        return cells.isSparse();
+    }
+
+    /**
+     * セルごとの配列をJavaヒープの外に置いた道路かどうか返す.
+     *
+     * @return ヒープ外の道路ならtrue
+     */
+    public boolean isOffHeap() {
+        return cells.isOffHeap();
+    }
+
+    /**
+     * Javaヒープの外に置いたメモリを解放する. 解放した後の道路は使えない.
+     * ヒープ外の道路でなければ何もしない.
+     */
+    void release() {
+        cells.release();
+        bufferCells.release();
+    }
+
+    /**
+     * 指定した車がこの道を走っているかどうか返す.
+     *
+     * @param car 車
+     * @return 走っているならtrue, いなければfalse
+     */
+    public boolean contains(Car car) {
+        return car.road() == this;
+    }
+
+    /**
+     * この道路上のすべての車のスピードを設定する.
+     *
+     * @param speed スピード
+     */
+    public void setSpeed(int speed) {
+        unpack();
+        for (int i = 0; i < carCount; i++) {
+            slotCars[sortedSlots[i]].setSpeed(speed);
         }
+    }
+
+    /**
+     * 車を走らせる.
+     *
+     * @param rule 上位のルール
+     */
+    public void update(Car.Rule rule) {
+        moveCars(rule);
         reflesh();
     }
 
     /**
-     * 車の配列を返す.
+     * 車を走らせる. 結果はバッファに書き込まれ, reflesh()するまで反映されない.
+     *
+     * @param rule 上位のルール
+     */
+    void moveCars(Car.Rule rule) {
+        unpack();
+
+        Car.Rule currentRule;
+
+        if (this.rule == null && rule == null) {
+            currentRule = null;
+        } else if (this.rule != null) {
+            currentRule = this.rule;
+        } else {
+            currentRule = rule;
+        }
+
+        BatchRule batchRule = currentRule == null ? manager.getBatchRule() : null;
+        if (batchRule != null) {
+            moveCarsInBatch(batchRule);
+            return;
+        }
+
+        //ルールの中からreflesh()が呼ばれても影響されないように, 走らせる車を先に確定させる.
+        //前のセルが埋まっている車は進めないので, ルールを適用する必要がなければ飛ばす
+        boolean skipsAllBlocked = !manager.hasRuledCars() && manager.canSkipBlockedCars(currentRule);
+        if (stepCars.length < carCount) {
+            stepCars = new Car[sortedSlots.length];
+        }
+        int count = 0;
+        for (int i = 0; i < carCount; i++) {
+            Car car = slotCars[sortedSlots[i]];
+            if (jamIndexes[i] == 0 && (skipsAllBlocked || car.canSkipWhenBlocked(currentRule))) {
+                car.skipWhenBlocked(currentRule);
+                continue;
+            }
+
+            stepCars[count++] = car;
+        }
+
+        for (int i = 0; i < count; i++) {
+            Car car = stepCars[i];
+            stepCars[i] = null;
+            car.move(currentRule, left(), right(), forwardFreeLength(car), backFreeLength(car), nextJamLength(car));
+        }
+    }
+
+    /**
+     * 固有のルールを持たない車をBatchRuleでまとめて走らせ, 固有のルールを持つ車はそのルールで走らせる.
+     * 結果はバッファに書き込まれ, reflesh()するまで反映されない.
+     *
+     * @param rule BatchRule
+     */
+    private void moveCarsInBatch(BatchRule rule) {
+        if (batch == null) {
+            batch = new RoadBatch(this);
+        }
+        Road left = left();
+        Road right = right();
+        batch.reset(carCount, left, right);
+        if (stepCars.length < carCount) {
+            stepCars = new Car[sortedSlots.length];
+        }
+
+        //進めない車を飛ばすかどうかは, 車ごとのルールと同じく決める
+        boolean skipsBlocked = manager.isActiveSetScheduling() && !rule.needsEveryStep();
+        int count = 0;
+        for (int i = 0; i < carCount; i++) {
+            int slot = sortedSlots[i];
+            Car car = slotCars[slot];
+            if (car.rule() == null && jamIndexes[i] == 0 && skipsBlocked) {
+                car.restoreNextFilled(true, car.isNextFilled());
+                continue;
+            }
+            if (car.rule() != null) {
+                if (jamIndexes[i] == 0 && car.canSkipWhenBlocked(null)) {
+                    car.skipWhenBlocked(null);
+                    continue;
+                }
+                stepCars[count++] = car;
+                continue;
+            }
+
+            //Car.wasSecondOfJam()と同じく, 前のセルが埋まっているかどうかの履歴を更新する
+            int position = positions[slot];
+            boolean wasNextFilled = car.isNextFilled();
+            boolean isNextFilled = isFilled(position + 1);
+            car.restoreNextFilled(isNextFilled, wasNextFilled);
+            batch.add(car, position, forwardFreeLengthAt(i), backFreeLengthAt(i), nextJamLengthAt(i),
+                    wasNextFilled && !isNextFilled);
+        }
+
+        int[] moves = batch.moves();
+        int[] batchPositions = batch.getPositions();
+        int[] forwardFreeLengths = batch.getForwardFreeLengths();
+        rule.onMove(batch, moves);
+        for (int i = 0; i < batch.size(); i++) {
+            if (moves[i] == 0)
+                continue;
+            if (moves[i] < 0)
+                throw new IllegalArgumentException("moves must be bigger than or equal to 0.");
+
+            Car car = batch.getCar(i);
+            int position = batchPositions[i];
+            if (!contains(car) || bufferPositions[car.slot()] != position)
+                throw new IllegalStateException("Car " + car.id + " has already been moved in this step.");
+
+            int length = Math.min(moves[i], forwardFreeLengths[i]);
+            removeCar(car);
+            addCar(car, position + length);
+            countMovedLength(position, length);
+        }
+
+        for (int i = 0; i < count; i++) {
+            Car car = stepCars[i];
+            stepCars[i] = null;
+            car.move(null, left, right, forwardFreeLength(car), backFreeLength(car), nextJamLength(car));
+        }
+    }
+
+    /**
+     * 並列に車を動かしている間, この道を担当するスレッドを設定する.
+     *
+     * @param updatingThread 担当するスレッド. 担当を外す場合はnull.
+     */
+    void setUpdatingThread(@Nullable Thread updatingThread) {
+        this.updatingThread = updatingThread;
+    }
+
+    /**
+     * 並列に車を動かしている間に, 担当していないスレッドからこの道が変更されないことを確認する.
+     */
+    private void checkUpdatingThread() {
+        Thread thread = updatingThread;
+        if (thread != null && thread != Thread.currentThread())
+            throw new IllegalStateException("This road is being updated by another thread.");
+    }
+
+    /**
+     * 車線変更の要求を記録する. 車線変更をまとめて反映するステップの間に使う.
+     * 同じ車が続けて要求した場合, 2回目以降は受け付けない.
+     *
+     * @param car 車
+     * @param to  移動先の道
+     * @return 受け付けた場合true
+     */
+    boolean requestLaneChange(Car car, Road to) {
+        checkUpdatingThread();
+
+        if (laneChangeCount > 0 && laneChangeCars[laneChangeCount - 1] == car)
+            return false;
+
+        if (laneChangeCount == laneChangeCars.length) {
+            int capacity = Math.max(4, laneChangeCount * 2);
+            laneChangeCars = Arrays.copyOf(laneChangeCars, capacity);
+            laneChangeTargets = Arrays.copyOf(laneChangeTargets, capacity);
+            laneChangeAccepted = Arrays.copyOf(laneChangeAccepted, capacity);
+        }
+        laneChangeCars[laneChangeCount] = car;
+        laneChangeTargets[laneChangeCount] = to;
+        laneChangeAccepted[laneChangeCount] = false;
+        laneChangeCount++;
+        return true;
+    }
+
+    /**
+     * 車線変更の要求があるかどうか返す.
+     *
+     * @return あればtrue
+     */
+    boolean hasLaneChangeRequests() {
+        return laneChangeCount > 0;
+    }
+
+    /**
+     * この道へ入る車線変更の要求のうち, 受け入れるものを決める.
+     * 移動先のセルは, すべての道で車を動かした後, 車線変更を反映する前のバッファで判定する.
+     * 同じセルへの要求が重なった場合は, 移動元の車線番号が小さいもの, 同じ車線なら先に要求したものを受け入れる.
+     * <p>
+     * この道の状態と, 移動元の道の受け入れたかどうかの印だけを書き換えるので, 移動先ごとに並列に呼べる.
+     *
+     * @param roads 管理しているすべての道. 車線番号順.
+     */
+    void resolveLaneChanges(List<Road> roads) {
+        int count = 0;
+        for (Road from : roads) {
+            for (int i = 0; i < from.laneChangeCount; i++) {
+                Car car = from.laneChangeCars[i];
+                if (from.laneChangeTargets[i] != this || !from.contains(car))
+                    continue;
+
+                if (count == incomingCars.length) {
+                    int capacity = Math.max(4, count * 2);
+                    incomingCars = Arrays.copyOf(incomingCars, capacity);
+                    incomingPositions = Arrays.copyOf(incomingPositions, capacity);
+                    incomingSources = Arrays.copyOf(incomingSources, capacity);
+                    incomingIndexes = Arrays.copyOf(incomingIndexes, capacity);
+                    incomingOrder = Arrays.copyOf(incomingOrder, capacity);
+                }
+                int position = from.bufferPositions[car.slot()];
+                incomingCars[count] = car;
+                incomingPositions[count] = position;
+                incomingSources[count] = from;
+                incomingIndexes[count] = i;
+                //位置, 優先順位の順に並べる
+                incomingOrder[count] = (long) position << 32 | count;
+                count++;
+            }
+        }
+        incomingCount = count;
+
+        Arrays.sort(incomingOrder, 0, count);
+        int accepted = 0;
+        int lastPosition = -1;
+        for (int i = 0; i < count; i++) {
+            int position = (int) (incomingOrder[i] >>> 32);
+            int index = (int) incomingOrder[i];
+            if (position == lastPosition)
+                continue;
+            lastPosition = position;
+
+            if (isBufferFilled(position))
+                continue;
+
+            incomingSources[index].laneChangeAccepted[incomingIndexes[index]] = true;
+            incomingOrder[accepted++] = index;
+        }
+        acceptedIncomingCount = accepted;
+    }
+
+    /**
+     * 受け入れられた車線変更について, この道から車を外す. 移動元ごとに並列に呼べる.
+     * 同じ車の要求が複数受け入れられた場合は, 最初のものだけを残す.
+     */
+    void removeLeavingCars() {
+        for (int i = 0; i < laneChangeCount; i++) {
+            if (!laneChangeAccepted[i])
+                continue;
+
+            Car car = laneChangeCars[i];
+            if (contains(car)) {
+                removeCar(car);
+            } else {
+                laneChangeAccepted[i] = false;
+            }
+        }
+    }
+
+    /**
+     * 受け入れた車線変更について, この道に車を置く. removeLeavingCars()をすべての道で終えてから, 移動先ごとに並列に呼べる.
+     */
+    void addEnteringCars() {
+        for (int i = 0; i < acceptedIncomingCount; i++) {
+            int index = (int) incomingOrder[i];
+            if (incomingSources[index].laneChangeAccepted[incomingIndexes[index]]) {
+                addCar(incomingCars[index], incomingPositions[index]);
+            }
+        }
+    }
+
+    /**
+     * このステップの車線変更の要求と受け入れの記録を消す. addEnteringCars()をすべての道で終えてから呼ぶ.
+     */
+    void clearLaneChanges() {
+        Arrays.fill(laneChangeCars, 0, laneChangeCount, null);
+        Arrays.fill(laneChangeTargets, 0, laneChangeCount, null);
+        laneChangeCount = 0;
+        Arrays.fill(incomingCars, 0, incomingCount, null);
+        Arrays.fill(incomingSources, 0, incomingCount, null);
+        incomingCount = 0;
+        acceptedIncomingCount = 0;
+    }
+
+    public boolean isFilled(int position) {
+        position = normalize(position);
+
+        if (packed != null) {
+            return packed.get(position);
+        }
+        return cells.get(position) >= 0;
+    }
+
+    /**
+     * ルールが一切なく, すべての車のスピードが1の場合の更新.
+     * この時の動きはルール184と同じなので, 64セルずつまとめて進める.
+     * 車の位置は必要になるまで反映しない.
+     */
+    void updateWithoutRule() {
+        if (rule != null || changedSlotCount != 0) {
+            //前回のrefleshの後に追加・削除された車がある場合は通常通り進める
+            update(null);
+            return;
+        }
+
+        if (packed instanceof PackedRoad && ((PackedRoad) packed).hasHistory()) {
+            //LocalRuleで進めていた場合は, 車の履歴を戻してからまとめ直す
+            unpack();
+        }
+        if (packed == null) {
+            packed = pack();
+        }
+
+        int[] crossSections = manager.crossSections();
+        if (crossSections.length != 0 && carCount > 1) {
+            //ルール184では, 断面の後ろに車がいて前が空いていれば通過する
+            long[] counts = crossingCounts(crossSections.length);
+            for (int i = 0; i < crossSections.length; i++) {
+                int position = normalize(crossSections[i]);
+                if (packed.get(normalize(position - 1)) && !packed.get(position)) {
+                    counts[i]++;
+                }
+            }
+        }
+
+        long moved = packed.step(manager.decompositionPool());
+        jamsValid = false;
+        movedLength += moved;
+        movedCarCount += moved;
+    }
+
+    /**
+     * LocalRuleで進める. 疎な道路とヒープ外の道路以外は1セル1ビットにまとめ, 遷移表を引いて進める.
+     * 車の位置と履歴は必要になるまで反映しない.
+     *
+     * @param rule 移動規則
+     */
+    void updateWithLocalRule(LocalRule rule) {
+        if (this.rule != null || changedSlotCount != 0 || cells.isSparse() || cells.isOffHeap()) {
+            //道路のルールがある場合などは, BatchRuleとして車ごとに進める
+            update(null);
+            return;
+        }
+
+        if (packed != null && !((PackedRoad) packed).hasHistory()) {
+            unpack();
+        }
+        if (packed == null) {
+            PackedRoad packedRoad = (PackedRoad) pack();
+            packedRoad.enableHistory();
+            for (int i = 0; i < carCount; i++) {
+                Car car = slotCars[sortedSlots[i]];
+                packedRoad.setHistory(positions[sortedSlots[i]], car.isNextFilled(), car.wasNextFilled());
+            }
+            packed = packedRoad;
+        }
+        PackedRoad packedRoad = (PackedRoad) packed;
+
+        int[] crossSections = manager.crossSections();
+        if (crossSections.length != 0 && carCount > 1) {
+            //断面の後ろに車がいて, その車が進めば通過する
+            long[] counts = crossingCounts(crossSections.length);
+            for (int i = 0; i < crossSections.length; i++) {
+                int position = normalize(crossSections[i]);
+                int behind = normalize(position - 1);
+                if (packedRoad.get(behind) && !packedRoad.get(position) && packedRoad.moves(rule, behind)) {
+                    counts[i]++;
+                }
+            }
+        }
+
+        long moved = packedRoad.step(rule);
+        jamsValid = false;
+        movedLength += moved;
+        movedCarCount += moved;
+    }
+
+    /**
+     * 前ステップの状態をルール184で進めるためにまとめる.
+     * 疎な道路とヒープ外の道路では車列ごと, それ以外では1セル1ビットでまとめる.
+     *
+     * @return まとめた状態
+     */
+    private CompactRoad pack() {
+        if (cells.isSparse() || cells.isOffHeap()) {
+            int[] sortedPositions = new int[carCount];
+            for (int i = 0; i < carCount; i++) {
+                sortedPositions[i] = positions[sortedSlots[i]];
+            }
+            return new RunLengthRoad(length, sortedPositions, carCount);
+        }
+
+        PackedRoad packedRoad = new PackedRoad(length, carCount);
+        for (int i = 0; i < carCount; i++) {
+            packedRoad.set(positions[sortedSlots[i]]);
+        }
+        return packedRoad;
+    }
+
+    /**
+     * ルール184で進めた結果を車の位置に反映する.
+     */
+    void unpack() {
+        if (packed == null)
+            return;
+
+        CompactRoad unpacking = packed;
+        packed = null;
+
+        //一番後ろの車が周期境界を越えた回数だけ, 位置順の並びがずれている
+        int wraps = unpacking.wraps();
+        if (wraps != 0) {
+            reverse(sortedSlots, 0, carCount);
+            reverse(sortedSlots, 0, wraps);
+            reverse(sortedSlots, wraps, carCount);
+        }
+
+        cells.clear();
+        bufferCells.clear();
+        int position = unpacking.nextFilled(0);
+        for (int i = 0; i < carCount; i++) {
+            int slot = sortedSlots[i];
+            cells.put(position, slot);
+            bufferCells.put(position, slot);
+            positions[slot] = position;
+            bufferPositions[slot] = position;
+            ranks[slot] = i;
+            position = unpacking.nextFilled(position + 1);
+        }
+
+        if (unpacking instanceof PackedRoad && ((PackedRoad) unpacking).hasHistory()) {
+            PackedRoad packedRoad = (PackedRoad) unpacking;
+            for (int i = 0; i < carCount; i++) {
+                int slot = sortedSlots[i];
+                slotCars[slot].restoreNextFilled(
+                        packedRoad.isNextFilled(positions[slot]), packedRoad.wasNextFilled(positions[slot]));
+            }
+        }
+
+        updateJamIndexes();
+    }
+
+    /**
+     * 配列の指定した範囲を反転する.
+     *
+     * @param array 配列
+     * @param from  開始位置
+     * @param to    終了位置(含まない)
+     */
+    private static void reverse(int[] array, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int swap = array[i];
+            array[i] = array[j];
+            array[j] = swap;
+        }
+    }
+
+    /**
+     * TrafficManager内での車線番号と左右の車線を設定する.
+     *
+     * @param laneIndex 車線番号
+     * @param leftLane  左の車線
+     * @param rightLane 右の車線
+     */
+    void link(int laneIndex, @Nullable Road leftLane, @Nullable Road rightLane) {
+        this.laneIndex = laneIndex;
+        this.leftLane = leftLane;
+        this.rightLane = rightLane;
+    }
+
+    /**
+     * TrafficManagerの管理対象から外れたことを設定する.
+     */
+    void unlink() {
+        link(-1, null, null);
+    }
+
+    /**
+     * 車が進んだ距離を記録する.
+     *
+     * @param from   進む前の位置
+     * @param length 進んだ距離
+     */
+    void countMovedLength(int from, int length) {
+        if (length == 0)
+            return;
+
+        movedLength += length;
+        movedCarCount++;
+
+        int[] crossSections = manager.crossSections();
+        if (crossSections.length != 0) {
+            long[] counts = crossingCounts(crossSections.length);
+            for (int i = 0; i < crossSections.length; i++) {
+                //断面xはセルx - 1とxの間にあるので, fromより後ろでfrom + length以前なら通過している
+                if (normalize(crossSections[i] - from - 1) < length) {
+                    counts[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 断面ごとの通過台数を返す. 断面の数が変わった場合は数え直す.
+     *
+     * @param sectionCount 断面の数
+     * @return 通過台数
+     */
+    private long[] crossingCounts(int sectionCount) {
+        if (crossingCounts.length != sectionCount) {
+            crossingCounts = new long[sectionCount];
+        }
+        return crossingCounts;
+    }
+
+    /**
+     * 前回集計してからの移動を集計に加え, 記録をリセットする.
+     *
+     * @param counts [進んだ距離, 進んだ車の数, 断面ごとの通過台数...]
+     */
+    void drainMoveCounts(long[] counts) {
+        counts[0] += movedLength - drainedMovedLength;
+        drainedMovedLength = movedLength;
+        counts[1] += movedCarCount;
+        movedCarCount = 0;
+        for (int i = 0; i < crossingCounts.length && 2 + i < counts.length; i++) {
+            counts[2 + i] += crossingCounts[i];
+            crossingCounts[i] = 0;
+        }
+    }
+
+    /**
+     * これまでに車が進んだ距離の合計を設定する. チェックポイントから復元する時に使う.
+     *
+     * @param movedLength 進んだ距離の合計
+     */
+    void restoreMovedLength(long movedLength) {
+        this.movedLength = movedLength;
+        drainedMovedLength = movedLength;
+    }
+
+    /**
+     * 周期を飛ばした分, 車が進んだ距離の合計を増やす. 集計にはまとめて加えず, 飛ばしたステップは数えない.
+     *
+     * @param length 増やす距離
+     */
+    void skipMovedLength(long length) {
+        movedLength += length;
+        drainedMovedLength += length;
+    }
+
+    /**
+     * ルール184でまとめて進めている状態を返す.
+     *
+     * @return まとめた状態. まとめていなければnull.
+     */
+    @Nullable
+    CompactRoad compact() {
+        return packed;
+    }
+
+    /**
+     * 周期を探すために, 状態のハッシュを返す.
+     * 前ステップの状態とバッファの状態の車について, セルと車の状態ごとの鍵のXORをとる.
+     * まとめて進めている間は, 占有状態と周期境界を越えた回数から計算する.
+     *
+     * @return ハッシュ
+     */
+    long stateHash() {
+        if (packed != null) {
+            return CycleDetector.mix(packed.stateHash() + packed.wraps());
+        }
+
+        long hash = 0;
+        for (int i = 0; i < carCount; i++) {
+            int slot = sortedSlots[i];
+            hash ^= CycleDetector.carKey(slotCars[slot], positions[slot]);
+        }
+        if (changedSlotCount != 0) {
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (bufferPositions[slot] >= 0) {
+                    //前ステップの状態と区別するため, 鍵をもう一度かき混ぜる
+                    hash ^= CycleDetector.mix(CycleDetector.carKey(slotCars[slot], bufferPositions[slot]));
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 前ステップの状態の車とその位置を, 位置の昇順に渡す.
+     *
+     * @param action 車と位置を受け取る処理
+     */
+    void forEachReflectedCar(ObjIntConsumer<Car> action) {
+        unpack();
+        for (int i = 0; i < carCount; i++) {
+            int slot = sortedSlots[i];
+            action.accept(slotCars[slot], positions[slot]);
+        }
+    }
+
+    /**
+     * 前ステップの状態の車とその位置, 前のセルが埋まっていたかどうかの履歴を, 位置の昇順に渡す.
+     * ルール184やBatchRuleでまとめて進めている間も車の状態には戻さず, 占有状態と周期境界を越えた回数から求める.
+     *
+     * @param action 車と位置と履歴を受け取る処理
+     */
+    void forEachReflectedCarWithHistory(ReflectedCarAction action) {
+        if (packed == null) {
+            for (int i = 0; i < carCount; i++) {
+                Car car = slotCars[sortedSlots[i]];
+                action.accept(car, positions[sortedSlots[i]], car.isNextFilled(), car.wasNextFilled());
+            }
+            return;
+        }
+
+        //unpack()で並びを回した後にi番目になる車は, sortedSlotsの(i - wraps)番目にいる
+        int wraps = packed.wraps();
+        PackedRoad history = packed instanceof PackedRoad && ((PackedRoad) packed).hasHistory()
+                ? (PackedRoad) packed : null;
+        int position = packed.nextFilled(0);
+        for (int i = 0; i < carCount; i++) {
+            int rank = i - wraps;
+            if (rank < 0) {
+                rank += carCount;
+            }
+            Car car = slotCars[sortedSlots[rank]];
+            if (history != null) {
+                action.accept(car, position, history.isNextFilled(position), history.wasNextFilled(position));
+            } else {
+                action.accept(car, position, car.isNextFilled(), car.wasNextFilled());
+            }
+            position = packed.nextFilled(position + 1);
+        }
+    }
+
+    /**
+     * forEachReflectedCarWithHistory()で車を受け取る処理.
+     */
+    interface ReflectedCarAction {
+        void accept(Car car, int position, boolean isNextFilled, boolean wasNextFilled);
+    }
+
+    /**
+     * バッファの状態の車とその位置を渡す. 順序は決まっていない.
+     *
+     * @param action 車と位置を受け取る処理
+     */
+    void forEachBufferedCar(ObjIntConsumer<Car> action) {
+        unpack();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (bufferPositions[slot] >= 0) {
+                action.accept(slotCars[slot], bufferPositions[slot]);
+            }
+        }
+    }
+
+    /**
+     * 前回のrefleshの後に追加・削除・移動した車があるかどうか返す.
+     *
+     * @return あればtrue
+     */
+    boolean hasPendingChanges() {
+        return changedSlotCount != 0;
+    }
+
+    /**
+     * これまでに車が進んだ距離の合計を返す. 車線変更は含まない.
      *
-     * @return 車の配列
+     * @return 進んだ距離の合計
      */
-    public Car[] getCars() {
-        Set<Car> carSet = carList.keySet();
-        return carSet.toArray(new Car[carSet.size()]);
+    long movedLength() {
+        return movedLength;
     }
 
     /**
-     * 指定した車がこの道を走っているかどうか返す.
+     * 前ステップの状態での車の数を返す.
      *
-     * @param car 車
-     * @return 走っているならtrue, いなければfalse
+     * @return 車の数
      */
-    public boolean contains(Car car) {
-        return carListBuffer.containsKey(car);
+    int carCount() {
+        return carCount;
     }
 
     /**
-     * この道路上のすべての車のスピードを設定する.
+     * 前ステップの状態を1セル1ビットで書き写す.
+     * i番目のセルはwords[i / 64]の(i % 64)ビット目になる.
      *
-     * @param speed スピード
+     * @param words 書き込み先. (length + 63) / 64個以上の要素が必要.
      */
-    public void setSpeed(int speed) {
-        Car[] cars = getCars();
-        for (Car car : cars) {
-            car.setSpeed(speed);
+    void copyOccupancy(long[] words) {
+        if (packed != null) {
+            packed.copyTo(words);
+            return;
+        }
+
+        Arrays.fill(words, 0, (length + 63) >>> 6, 0L);
+        for (int i = 0; i < carCount; i++) {
+            int position = positions[sortedSlots[i]];
+            words[position >>> 6] |= 1L << position;
         }
     }
 
     /**
-     * 車を走らせる.
+     * 前ステップの状態での渋滞(2台以上連続して並んでいる車)の数を返す.
      *
-     * @param rule 上位のルール
+     * @return 渋滞の数
      */
-    public void update(Car.Rule rule) {
-        Car[] cars = getCars();
+    int jamCount() {
+        if (jamsValid) {
+            return jams.count();
+        }
+        if (packed != null) {
+            return packed.jamCount();
+        }
+        if (carCount == length) {
+            return length >= 2 ? 1 : 0;
+        }
 
-        Car.Rule currentRule;
+        int count = 0;
+        for (int i = 0; i < carCount; i++) {
+            //前が埋まっていて, 後ろが空いている車が渋滞の最後尾
+            if (isNextCellFilled(i) && !isNextCellFilled(i == 0 ? carCount - 1 : i - 1)) {
+                count++;
+            }
+        }
+        return count;
+    }
 
-        if (this.rule == null && rule == null) {
-            currentRule = null;
-        } else if (this.rule != null) {
-            currentRule = this.rule;
-        } else {
-            currentRule = rule;
+    /**
+     * 前ステップの状態で前のセルが埋まっている車の数を返す.
+     *
+     * @return 車の数
+     */
+    int blockedCarCount() {
+        if (packed != null) {
+            return packed.blockedCarCount();
         }
 
-        for (Car car : cars) {
-            car.move(currentRule, left(), right(), forwardFreeLength(car), backFreeLength(car), nextJamLength(car));
+        int count = 0;
+        for (int i = 0; i < carCount; i++) {
+            if (isNextCellFilled(i)) {
+                count++;
+            }
         }
-        reflesh();
+        return count;
     }
 
-    public boolean isFilled(int position) {
-        ArrayList<Integer> sortedPositions = getSortedPositions();
-        return sortedPositions.contains(normalize(position));
+    /**
+     * TrafficManager内での車線番号を返す.
+     *
+     * @return 車線番号. 管理対象外なら-1.
+     */
+    int laneIndex() {
+        return laneIndex;
+    }
+
+    /**
+     * 設定されている左の車線を返す.
+     *
+     * @return 左の車線
+     */
+    @Nullable
+    Road leftLane() {
+        return leftLane;
+    }
+
+    /**
+     * 設定されている右の車線を返す.
+     *
+     * @return 右の車線
+     */
+    @Nullable
+    Road rightLane() {
+        return rightLane;
     }
 
     /**
@@ -180,11 +1081,196 @@ public class Road {
     }
 
     /**
-     * carListBufferをcarListに反映
+     * バッファをこのステップの状態として反映する.
+     * 状態とバッファを入れ替え, 変更したセルとスロットだけを新しいバッファへ写す.
      */
     public void reflesh() {
-        carList.clear();
-        carList.putAll(carListBuffer);
+        checkUpdatingThread();
+        unpack();
+
+        if (changedSlotCount == 0)
+            return;
+
+        CellMap swapCells = cells;
+        cells = bufferCells;
+        bufferCells = swapCells;
+        for (int i = 0; i < changedCellCount; i++) {
+            int position = changedCells[i];
+            bufferCells.put(position, cells.get(position));
+        }
+        changedCellCount = 0;
+
+        int[] swapPositions = positions;
+        positions = bufferPositions;
+        bufferPositions = swapPositions;
+        for (int i = 0; i < changedSlotCount; i++) {
+            int slot = changedSlots[i];
+            bufferPositions[slot] = positions[slot];
+        }
+
+        updateOrder();
+
+        //このステップ中に空いたスロットは前ステップの状態から参照されうるので, ここで初めて再利用可能にする
+        for (int i = 0; i < changedSlotCount; i++) {
+            int slot = changedSlots[i];
+            isSlotChanged[slot] = false;
+            if (positions[slot] < 0 && slotCars[slot] != null) {
+                slotCars[slot] = null;
+                ranks[slot] = -1;
+                freeSlots[freeSlotCount++] = slot;
+            }
+        }
+        changedSlotCount = 0;
+
+        updateJamIndexes();
+    }
+
+    /**
+     * 位置順の並びを更新する.
+     * 車は追い越さないので, 前ステップの並びは周期境界で切れ目が1つずれるだけでほぼ昇順のまま使える.
+     * 新しく加わった車だけを並べ替えて差し込む.
+     */
+    private void updateOrder() {
+        //残っている車を前ステップの順に詰め, 位置が減るところ(周期境界の切れ目)を数える
+        int count = 0;
+        int descents = 0;
+        int start = 0;
+        for (int i = 0; i < carCount; i++) {
+            int slot = sortedSlots[i];
+            if (positions[slot] < 0) {
+                ranks[slot] = -1;
+                continue;
+            }
+
+            if (count > 0 && positions[slot] < positions[sortedSlots[count - 1]]) {
+                descents++;
+                start = count;
+            }
+            sortedSlots[count++] = slot;
+        }
+
+        if (descents > 1
+                || (descents == 1 && positions[sortedSlots[count - 1]] > positions[sortedSlots[0]])) {
+            //追い越しが起きた場合は作り直す
+            rebuildOrder();
+            return;
+        }
+
+        if (start != 0) {
+            reverse(sortedSlots, 0, count);
+            reverse(sortedSlots, 0, count - start);
+            reverse(sortedSlots, count - start, count);
+        }
+
+        int addedCount = 0;
+        for (int i = 0; i < changedSlotCount; i++) {
+            int slot = changedSlots[i];
+            if (positions[slot] >= 0 && ranks[slot] < 0) {
+                addedSlots[addedCount++] = (long) positions[slot] << 32 | slot;
+            }
+        }
+
+        if (addedCount != 0) {
+            Arrays.sort(addedSlots, 0, addedCount);
+
+            //後ろから併合する
+            int i = count - 1;
+            int j = addedCount - 1;
+            for (int k = count + addedCount - 1; j >= 0; k--) {
+                int addedSlot = (int) addedSlots[j];
+                if (i >= 0 && positions[sortedSlots[i]] > positions[addedSlot]) {
+                    sortedSlots[k] = sortedSlots[i--];
+                } else {
+                    sortedSlots[k] = addedSlot;
+                    j--;
+                }
+            }
+        }
+
+        carCount = count + addedCount;
+        for (int i = 0; i < carCount; i++) {
+            ranks[sortedSlots[i]] = i;
+        }
+    }
+
+    /**
+     * 状態をすべて走査して位置順の並びを作り直す.
+     */
+    private void rebuildOrder() {
+        Arrays.fill(ranks, 0, slotCount, -1);
+        carCount = 0;
+
+        if (cells.isSparse()) {
+            //疎な道路ではセルを走査せず, 車を位置で並べ替える
+            int count = 0;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (positions[slot] >= 0) {
+                    addedSlots[count++] = (long) positions[slot] << 32 | slot;
+                }
+            }
+            Arrays.sort(addedSlots, 0, count);
+            for (int i = 0; i < count; i++) {
+                int slot = (int) addedSlots[i];
+                ranks[slot] = carCount;
+                sortedSlots[carCount++] = slot;
+            }
+            return;
+        }
+
+        for (int position = 0; position < length; position++) {
+            int slot = cells.get(position);
+            if (slot >= 0) {
+                ranks[slot] = carCount;
+                sortedSlots[carCount++] = slot;
+            }
+        }
+    }
+
+    /**
+     * 順位ごとに, 直後のセルが埋まっている車まで何台先かを計算する.
+     * 周期境界条件があるので, そのような車から後ろ向きに一周して求める.
+     */
+    private void updateJamIndexes() {
+        jamsValid = false;
+        buildJams();
+
+        int start = -1;
+        for (int i = 0; i < carCount; i++) {
+            if (isNextCellFilled(i)) {
+                start = i;
+                break;
+            }
+        }
+
+        if (start == -1) {
+            Arrays.fill(jamIndexes, 0, carCount, Integer.MAX_VALUE);
+            return;
+        }
+
+        jamIndexes[start] = 0;
+        for (int i = 1; i < carCount; i++) {
+            int index = start - i;
+            if (index < 0)
+                index += carCount;
+
+            if (isNextCellFilled(index)) {
+                jamIndexes[index] = 0;
+            } else {
+                int nextIndex = index + 1 == carCount ? 0 : index + 1;
+                jamIndexes[index] = jamIndexes[nextIndex] + 1;
+            }
+        }
+    }
+
+    /**
+     * 指定した順位の車の1つ前のセルが, 次の順位の車で埋まっているかどうか返す.
+     *
+     * @param rank 順位
+     * @return 埋まっていればtrue
+     */
+    private boolean isNextCellFilled(int rank) {
+        int nextRank = rank + 1 == carCount ? 0 : rank + 1;
+        return positions[sortedSlots[nextRank]] == normalize(positions[sortedSlots[rank]] + 1);
     }
 
     /**
@@ -196,7 +1282,7 @@ public class Road {
     private boolean isBufferFilled(int position) {
         position = normalize(position);
 
-        return carListBuffer.containsValue(position);
+        return bufferCells.get(position) >= 0;
     }
 
     /**
@@ -206,13 +1292,45 @@ public class Road {
      * @return 位置
      */
     public int positionOf(Car car) {
+        unpack();
+
         if (contains(car)) {
-            return carListBuffer.get(car);
+            return bufferPositions[car.slot()];
         } else {
             return -1;
         }
     }
 
+    /**
+     * 指定した車を前の車間距離を超えない範囲で進める. removeCar()とaddCar()で動かすのと同じ結果になる.
+     * 車がこの道を走っているかどうかは一度だけ確かめる.
+     *
+     * @param car    車
+     * @param length 進める長さ. 0以上.
+     */
+    void moveCar(Car car, int length) {
+        int rank = rankOf(car);
+        checkUpdatingThread();
+
+        length = Math.min(length, forwardFreeLengthAt(rank));
+        int slot = car.slot();
+        int from = bufferPositions[slot];
+        int to = normalize(from + length);
+
+        markChanged(from, slot);
+        bufferCells.put(from, -1);
+        bufferPositions[slot] = -1;
+        if (isBufferFilled(to)) {
+            //反映待ちの変更で移動先が埋まっている場合は, 加え直せずに消える
+            car.place(null, slot);
+        } else {
+            bufferPositions[slot] = to;
+            bufferCells.put(to, slot);
+            markChanged(to, slot);
+        }
+        countMovedLength(from, length);
+    }
+
     /**
      * 指定した車を道路から消す.
      * 既に車がない場合は無視される.
@@ -220,7 +1338,17 @@ public class Road {
      * @param car 車
      */
     public void removeCar(Car car) {
-        carListBuffer.remove(car);
+        if (!contains(car))
+            return;
+
+        checkUpdatingThread();
+        unpack();
+
+        int slot = car.slot();
+        markChanged(bufferPositions[slot], slot);
+        bufferCells.put(bufferPositions[slot], -1);
+        bufferPositions[slot] = -1;
+        car.place(null, slot);
     }
 
     /**
@@ -233,19 +1361,152 @@ public class Road {
     public boolean addCar(Car car, int position) {
         position = normalize(position);
 
+        if (!car.isAlive())
+            throw new IllegalStateException("Car " + car.id + " has been discarded.");
         //すでに同じ車が走っている時
         if (contains(car))
             throw new IllegalArgumentException("This car is already running on this road.");
+        if (car.road() != null)
+            throw new IllegalArgumentException("This car is running on another road.");
+
+        checkUpdatingThread();
+        unpack();
 
 
         if (isBufferFilled(position)) {
             return false;
         }
 
-        carListBuffer.put(car, position);
+        int slot = car.slot();
+        //このステップ中に消した車を戻す場合は同じスロットを使い, 前ステップの状態との対応を保つ
+        if (slot < 0 || slot >= slotCount || slotCars[slot] != car) {
+            slot = acquireSlot();
+        }
+
+        slotCars[slot] = car;
+        bufferPositions[slot] = position;
+        bufferCells.put(position, slot);
+        markChanged(position, slot);
+        car.place(this, slot);
         return true;
     }
 
+    /**
+     * 空の道に, 昇順に並んだ位置へまとめて新しい車を置き, すぐに反映する.
+     * addCar()を繰り返してreflesh()するのと同じ結果になるが, 変更の記録や並べ替えをせずに1回の走査で済ませる.
+     *
+     * @param carPositions 車の位置. 0以上道路長未満で, 狭義の昇順に並んでいること.
+     * @param count        carPositionsの先頭から使う数
+     */
+    void addCarsInOrder(int[] carPositions, int count) {
+        checkUpdatingThread();
+        if (slotCount != 0 || packed != null)
+            throw new IllegalStateException("Cars can be added in order only to an empty road.");
+
+        ensureSlotCapacity(count);
+        //車の表も先に広げておき, 車を作るたびに配列を作り直さないようにする
+        CarTable table = manager.cars();
+        table.ensureCapacity(table.maxId() + 1 + count);
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int position = carPositions[i];
+            if (position <= previous || position >= length)
+                throw new IllegalArgumentException("carPositions must be sorted and within the road.");
+            previous = position;
+
+            Car car = new Car(manager);
+            slotCars[i] = car;
+            positions[i] = position;
+            bufferPositions[i] = position;
+            cells.put(position, i);
+            bufferCells.put(position, i);
+            sortedSlots[i] = i;
+            ranks[i] = i;
+            car.place(this, i);
+        }
+        slotCount = count;
+        carCount = count;
+        updateJamIndexes();
+    }
+
+    /**
+     * バッファで変更したセルとスロットを記録する.
+     *
+     * @param position セル
+     * @param slot     スロット
+     */
+    private void markChanged(int position, int slot) {
+        if (changedCellCount == changedCells.length) {
+            changedCells = Arrays.copyOf(changedCells, changedCellCount * 2);
+        }
+        changedCells[changedCellCount++] = position;
+
+        if (!isSlotChanged[slot]) {
+            isSlotChanged[slot] = true;
+            changedSlots[changedSlotCount++] = slot;
+        }
+    }
+
+    /**
+     * 空いているスロットを確保する.
+     *
+     * @return スロット
+     */
+    private int acquireSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+
+        if (slotCount == slotCars.length) {
+            ensureSlotCapacity(slotCount * 2);
+        }
+
+        int slot = slotCount++;
+        positions[slot] = -1;
+        bufferPositions[slot] = -1;
+        ranks[slot] = -1;
+        return slot;
+    }
+
+    /**
+     * 少なくとも指定した数のスロットを使えるようにする.
+     *
+     * @param capacity スロットの数
+     */
+    private void ensureSlotCapacity(int capacity) {
+        if (capacity > slotCars.length) {
+            slotCars = Arrays.copyOf(slotCars, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            bufferPositions = Arrays.copyOf(bufferPositions, capacity);
+            ranks = Arrays.copyOf(ranks, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+            changedSlots = Arrays.copyOf(changedSlots, capacity);
+            isSlotChanged = Arrays.copyOf(isSlotChanged, capacity);
+            addedSlots = Arrays.copyOf(addedSlots, capacity);
+            sortedSlots = Arrays.copyOf(sortedSlots, capacity);
+            jamIndexes = Arrays.copyOf(jamIndexes, capacity);
+        }
+    }
+
+    /**
+     * 前ステップの状態における指定した車の順位を返す.
+     *
+     * @param car 車
+     * @return 順位
+     */
+    private int rankOf(Car car) {
+        if (!contains(car))
+            throw new IllegalArgumentException("This car is not running on this road.");
+
+        unpack();
+
+        int rank = ranks[car.slot()];
+        if (rank < 0)
+            throw new IllegalArgumentException("This car has not been reflected on this road yet.");
+
+        return rank;
+    }
+
     /**
      * 現時点から移動可能なセルの長さを返す
      *
@@ -253,25 +1514,22 @@ public class Road {
      * @return 移動可能なセルの数
      */
     public int forwardFreeLength(Car car) {
-        if (!contains(car))
-            throw new IllegalArgumentException("This car is not running on this road.");
+        return forwardFreeLengthAt(rankOf(car));
+    }
 
+    /**
+     * 前ステップの状態で指定した順位にいる車が移動可能なセルの長さを返す.
+     *
+     * @param positionIndex 順位
+     * @return 移動可能なセルの数
+     */
+    private int forwardFreeLengthAt(int positionIndex) {
         //車の位置
-        int position = carList.get(car);
-        //車の位置のインデックス
-        int positionIndex;
-
-        ArrayList<Integer> sortedPositions = getSortedPositions();
-        positionIndex = sortedPositions.indexOf(position);
+        int position = positions[sortedSlots[positionIndex]];
 
-        int nextPositionIndex;
-        if (positionIndex + 1 == sortedPositions.size()) {
-            nextPositionIndex = 0;
-        } else {
-            nextPositionIndex = positionIndex + 1;
-        }
+        int nextPositionIndex = positionIndex + 1 == carCount ? 0 : positionIndex + 1;
 
-        int nextPosition = sortedPositions.get(nextPositionIndex);
+        int nextPosition = positions[sortedSlots[nextPositionIndex]];
         if (nextPosition > position) {
             return nextPosition - position - 1;
         } else if (nextPosition == position) {
@@ -288,25 +1546,22 @@ public class Road {
      * @return 後ろの車間距離
      */
     public int backFreeLength(Car car) {
-        if (!contains(car))
-            throw new IllegalArgumentException("This car is not running on this road.");
+        return backFreeLengthAt(rankOf(car));
+    }
 
+    /**
+     * 前ステップの状態で指定した順位にいる車の後ろの車間距離を返す.
+     *
+     * @param positionIndex 順位
+     * @return 後ろの車間距離
+     */
+    private int backFreeLengthAt(int positionIndex) {
         //車の位置
-        int position = carList.get(car);
-        //車の位置のインデックス
-        int positionIndex;
-
-        ArrayList<Integer> sortedPositions = getSortedPositions();
-        positionIndex = sortedPositions.indexOf(position);
+        int position = positions[sortedSlots[positionIndex]];
 
-        int beforePositionIndex;
-        if (positionIndex - 1 == -1) {
-            beforePositionIndex = sortedPositions.size() - 1;
-        } else {
-            beforePositionIndex = positionIndex - 1;
-        }
+        int beforePositionIndex = positionIndex == 0 ? carCount - 1 : positionIndex - 1;
 
-        int beforePosition = sortedPositions.get(beforePositionIndex);
+        int beforePosition = positions[sortedSlots[beforePositionIndex]];
         if (beforePosition < position) {
             return position - beforePosition - 1;
         } else if (beforePosition == position) {
@@ -317,43 +1572,102 @@ public class Road {
     }
 
     /**
-     * 指定した車の次の渋滞までの距離を返す.
-     * ■□□■■なら2となる.
+     * 前ステップの状態の渋滞を, 最後尾の位置の昇順に返す.
+     * 2台以上の車が隙間なく並んだ車列を渋滞とし, 周期境界をまたぐ車列は1つの渋滞として扱う.
+     * 道路長が2以上ですべてのセルが埋まっている場合は, 位置0を最後尾とする1つの渋滞とする. 道路長が1の場合は車が1台なので渋滞はない.
      *
-     * @param car 車
-     * @return 次の渋滞までの距離. 0なら渋滞の中. Integer.MAX_VALUEなら渋滞が存在しない.
+     * @return 渋滞のリスト
      */
-    public int nextJamLength(Car car) {
-        if (!contains(car))
-            throw new IllegalArgumentException("This car is not running on this road.");
+    public List<Jam> getJams() {
+        JamIndex index = jams();
+        List<Jam> list = new ArrayList<>(index.count());
+        for (int i = 0; i < index.count(); i++) {
+            list.add(new Jam(index.tail(i), index.length(i), length));
+        }
+        return list;
+    }
 
-        ArrayList<Integer> sortedPositions = getSortedPositions();
-        final int index = sortedPositions.indexOf(positionOf(car));
+    /**
+     * 前ステップの状態の渋滞の数を返す.
+     *
+     * @return 渋滞の数
+     */
+    public int getJamCount() {
+        return jams().count();
+    }
 
-        int nextJam = Integer.MAX_VALUE;
+    /**
+     * 指定した位置から前に進んで, 前ステップの状態で次の渋滞の最後尾に着くまでのセル数を返す.
+     * 渋滞の索引は状態が変わってから最初の問い合わせで作り直し, 以降は二分探索で求める.
+     *
+     * @param position 位置
+     * @return セル数. 位置が渋滞の中なら0, 渋滞がなければInteger.MAX_VALUE.
+     */
+    public int distanceToNextJam(int position) {
+        return jams().distanceTo(normalize(position));
+    }
 
-        for (int i = 0; i < sortedPositions.size(); i++) {
-            int normalizedIndex = index + i;
-            int normalizedIndexP = index + i + 1;
-            if (normalizedIndex >= sortedPositions.size())
-                normalizedIndex -= sortedPositions.size();
-            if (normalizedIndexP >= sortedPositions.size())
-                normalizedIndexP -= sortedPositions.size();
+    /**
+     * 渋滞の索引を返す. 無効になっていれば作り直す.
+     *
+     * @return 索引
+     */
+    private JamIndex jams() {
+        if (!jamsValid) {
+            buildJams();
+        }
+        return jams;
+    }
 
-            int position = sortedPositions.get(normalizedIndex);
-            int positionP = sortedPositions.get(normalizedIndexP);
+    /**
+     * 無効になっていれば, 前ステップの状態から渋滞の索引を作り直す.
+     * 並列に更新している間は, 他の車線のルールから同時に問い合わせられることがあるので同期する.
+     */
+    private synchronized void buildJams() {
+        if (jamsValid)
+            return;
 
-            if (normalize(position + 1) == normalize(positionP)) {
-                nextJam = i - 1;
-                break;
+        if (jams == null) {
+            jams = new JamIndex(length);
+        }
+        jams.reset();
+        if (packed != null) {
+            for (int position = packed.nextFilled(0); position >= 0; position = packed.nextFilled(position + 1)) {
+                jams.addCar(position);
+            }
+        } else {
+            for (int i = 0; i < carCount; i++) {
+                jams.addCar(positions[sortedSlots[i]]);
             }
         }
+        jams.finish();
+        jamsValid = true;
+    }
+
+    /**
+     * 指定した車の次の渋滞までの距離を返す.
+     * ■□□■■なら2となる.
+     *
+     * @param car 車
+     * @return 次の渋滞までの距離. 0なら渋滞の中. Integer.MAX_VALUEなら渋滞が存在しない.
+     */
+    public int nextJamLength(Car car) {
+        return nextJamLengthAt(rankOf(car));
+    }
 
-        if (sortedPositions.contains(normalize(positionOf(car) - 1))) {
-            nextJam = 0;
+    /**
+     * 前ステップの状態で指定した順位にいる車の次の渋滞までの距離を返す.
+     *
+     * @param index 順位
+     * @return 次の渋滞までの距離. 0なら渋滞の中. Integer.MAX_VALUEなら渋滞が存在しない.
+     */
+    private int nextJamLengthAt(int index) {
+        if (isFilled(positions[sortedSlots[index]] - 1)) {
+            return 0;
         }
 
-        return nextJam;
+        int jamIndex = jamIndexes[index];
+        return jamIndex == Integer.MAX_VALUE ? Integer.MAX_VALUE : jamIndex - 1;
     }
 
     /**
@@ -363,35 +1677,16 @@ public class Road {
      */
     @Override
     public String toString() {
-        StringBuilder stringBuilder = new StringBuilder();
-        ArrayList<Integer> sortedPositions = getSortedPositions();
-
-        int j = 0;
-        for (int i = 0; i < length; i++) {
-            if (j < sortedPositions.size()) {
-                if (i == sortedPositions.get(j)) {
-                    stringBuilder.append("■");
-                    j++;
-                } else {
-                    stringBuilder.append("□");
-                }
-            } else {
-                stringBuilder.append("□");
-            }
+        if (packed != null) {
+            return packed.toString();
         }
 
-        return stringBuilder.toString();
-    }
-
-    /**
-     * ソートされた位置のArrayListを返す.
-     *
-     * @return ソートされた位置のArrayList
-     */
-    private ArrayList<Integer> getSortedPositions() {
-        ArrayList<Integer> values = new ArrayList<>(carList.values());
-        values.sort(Comparator.naturalOrder());
-        return values;
+        char[] chars = new char[length];
+        Arrays.fill(chars, '□');
+        for (int i = 0; i < carCount; i++) {
+            chars[positions[sortedSlots[i]]] = '■';
+        }
+        return new String(chars);
     }
 
     /**
@@ -401,11 +1696,7 @@ public class Road {
      * @return 正規化後のposition.
      */
     private int normalize(int position) {
-        if (position < 0) {
-            do {
-                position += length;
-            } while (position <= 0);
-        }
-        return position % length;
+        position %= length;
+        return position < 0 ? position + length : position;
     }
 }
@@ -0,0 +1,200 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * BatchRuleに渡す, 道路1本分の車の前ステップの状態.
+ * 配列は車の数より長い場合があり, 0番目からsize() - 1番目までが位置の昇順に並んだ車に対応する.
+ * 配列はステップをまたいで使い回すので, BatchRule.onMove()の外で保持しないこと.
+ */
+public final class RoadBatch {
+    private final Road road;
+    private Road left;
+    private Road right;
+    private int size;
+    private Car[] cars = new Car[0];
+    private int[] positions = new int[0];
+    private int[] forwardFreeLengths = new int[0];
+    private int[] backFreeLengths = new int[0];
+    private int[] nextJamLengths = new int[0];
+    private boolean[] wasSecondOfJam = new boolean[0];
+    private int[] speeds = new int[0];
+    private int[] moves = new int[0];
+
+    RoadBatch(Road road) {
+        this.road = road;
+    }
+
+    /**
+     * 空にして, 少なくとも指定した台数を入れられるようにする.
+     *
+     * @param capacity 台数
+     * @param left     左の車線
+     * @param right    右の車線
+     */
+    void reset(int capacity, @Nullable Road left, @Nullable Road right) {
+        this.left = left;
+        this.right = right;
+        Arrays.fill(cars, 0, size, null);
+        size = 0;
+
+        if (cars.length < capacity) {
+            cars = new Car[capacity];
+            positions = new int[capacity];
+            forwardFreeLengths = new int[capacity];
+            backFreeLengths = new int[capacity];
+            nextJamLengths = new int[capacity];
+            wasSecondOfJam = new boolean[capacity];
+            speeds = new int[capacity];
+            moves = new int[capacity];
+        }
+    }
+
+    /**
+     * 車を加える.
+     *
+     * @param car               車
+     * @param position          位置
+     * @param forwardFreeLength 前の車間距離
+     * @param backFreeLength    後ろの車間距離
+     * @param nextJamLength     次の渋滞までの距離
+     * @param wasSecondOfJam    1ステップ前に渋滞の2番めの車だったかどうか
+     */
+    void add(Car car, int position, int forwardFreeLength, int backFreeLength, int nextJamLength, boolean wasSecondOfJam) {
+        cars[size] = car;
+        positions[size] = position;
+        forwardFreeLengths[size] = forwardFreeLength;
+        backFreeLengths[size] = backFreeLength;
+        nextJamLengths[size] = nextJamLength;
+        this.wasSecondOfJam[size] = wasSecondOfJam;
+        speeds[size] = car.getSpeed();
+        moves[size] = 0;
+        size++;
+    }
+
+    /**
+     * 指定した車の, 現在のステップ用の乱数列から次の値を返す. Car.nextRandom()と同じ.
+     *
+     * @param index 番号. 0以上size()未満.
+     * @return 0以上1未満の値
+     */
+    public double nextRandom(int index) {
+        return cars[index].nextRandom();
+    }
+
+    /**
+     * 進みたい距離の書き込み先を返す.
+     *
+     * @return 進みたい距離
+     */
+    int[] moves() {
+        return moves;
+    }
+
+    /**
+     * 対象の道路を返す.
+     *
+     * @return 道路
+     */
+    public Road getRoad() {
+        return road;
+    }
+
+    /**
+     * 左の車線を返す.
+     *
+     * @return 左の車線. なければnull.
+     */
+    @Nullable
+    public Road getLeft() {
+        return left;
+    }
+
+    /**
+     * 右の車線を返す.
+     *
+     * @return 右の車線. なければnull.
+     */
+    @Nullable
+    public Road getRight() {
+        return right;
+    }
+
+    /**
+     * 車の数を返す.
+     *
+     * @return 車の数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 指定した番号の車を返す.
+     *
+     * @param index 番号
+     * @return 車
+     */
+    public Car getCar(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+
+        return cars[index];
+    }
+
+    /**
+     * 車の位置を返す.
+     *
+     * @return 位置
+     */
+    public int[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * 前の車間距離(今走っている位置より先の空いている道路の長さ)を返す.
+     *
+     * @return 前の車間距離
+     */
+    public int[] getForwardFreeLengths() {
+        return forwardFreeLengths;
+    }
+
+    /**
+     * 後ろの車間距離を返す.
+     *
+     * @return 後ろの車間距離
+     */
+    public int[] getBackFreeLengths() {
+        return backFreeLengths;
+    }
+
+    /**
+     * 次の渋滞までの距離を返す. 0なら渋滞の中. Integer.MAX_VALUEなら渋滞が存在しない.
+     *
+     * @return 次の渋滞までの距離
+     */
+    public int[] getNextJamLengths() {
+        return nextJamLengths;
+    }
+
+    /**
+     * 1ステップ前に渋滞の2番めの車だったかどうかを返す.
+     *
+     * @return 1ステップ前に渋滞の2番めの車だったかどうか
+     */
+    public boolean[] getWasSecondOfJam() {
+        return wasSecondOfJam;
+    }
+
+    /**
+     * 車のスピードを返す.
+     *
+     * @return スピード
+     */
+    public int[] getSpeeds() {
+        return speeds;
+    }
+}
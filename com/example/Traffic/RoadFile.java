@@ -0,0 +1,338 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 道路の状態を文字列またはファイルから読み, 道路長と昇順に並んだ車の位置にしたもの.
+ * <p>
+ * ファイルはメモリマップして先頭から順に走査する. 1回目で車の数を数え, 2回目で位置を書き込むので,
+ * 文字列やセルごとの配列を作らずに, 車の位置の配列だけを確保する.
+ * <p>
+ * 文字の形式: ■または1が車, □または0が空き. これら以外の文字は無視する. ファイルはUTF-8.
+ * ビットの形式: i番目のセルは(i / 8)バイト目の(i % 8)ビット目. SpaceTimeRecorderの1行と同じ.
+ */
+final class RoadFile {
+    //一度にメモリマップする大きさ. 8の倍数にしておく
+    private static final long WINDOW_SIZE = 1L << 30;
+    //■と□のUTF-8表現は E2 96 A0 と E2 96 A1
+    private static final int SQUARE_LEAD = 0xE2;
+    private static final int SQUARE_SECOND = 0x96;
+    private static final int FILLED_SQUARE_LAST = 0xA0;
+    private static final int EMPTY_SQUARE_LAST = 0xA1;
+    //8バイトをまとめて見る時の, '0'が並んだ値と'0'と'1'で異なるビット
+    private static final long ZEROS_BYTES = 0x3030303030303030L;
+    private static final long ONES_BYTES = 0x0101010101010101L;
+
+    /**
+     * 道路長
+     */
+    final int length;
+    /**
+     * 車の位置. 先頭からcarCount個が昇順に並ぶ.
+     */
+    final int[] carPositions;
+    final int carCount;
+
+    private RoadFile(int length, int[] carPositions, int carCount) {
+        this.length = length;
+        this.carPositions = carPositions;
+        this.carCount = carCount;
+    }
+
+    /**
+     * 道路の状態を表す文字列を読む.
+     *
+     * @param roadCondition 文字列. nullは空文字列として扱う.
+     * @return 読んだ結果
+     */
+    static RoadFile parse(@Nullable String roadCondition) {
+        if (roadCondition == null)
+            return new RoadFile(0, new int[0], 0);
+
+        int carCount = 0;
+        for (int i = 0; i < roadCondition.length(); i++) {
+            char roadChar = roadCondition.charAt(i);
+            if (roadChar == '■' || roadChar == '1') {
+                carCount++;
+            }
+        }
+
+        int[] carPositions = new int[carCount];
+        int length = 0;
+        carCount = 0;
+        for (int i = 0; i < roadCondition.length(); i++) {
+            char roadChar = roadCondition.charAt(i);
+            if (roadChar == '■' || roadChar == '1') {
+                carPositions[carCount++] = length++;
+            } else if (roadChar == '□' || roadChar == '0') {
+                length++;
+            }
+        }
+        return new RoadFile(length, carPositions, carCount);
+    }
+
+    /**
+     * 文字の形式のファイルを読む.
+     *
+     * @param file ファイル
+     * @return 読んだ結果
+     * @throws IOException 読めなかった場合
+     */
+    static RoadFile readText(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            TextScanner counter = new TextScanner(null);
+            for (long start = 0; start < size; start += WINDOW_SIZE) {
+                counter.scan(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start)));
+            }
+
+            TextScanner scanner = new TextScanner(new int[counter.carCount]);
+            for (long start = 0; start < size; start += WINDOW_SIZE) {
+                scanner.scan(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start)));
+            }
+            return new RoadFile((int) scanner.length, scanner.carPositions, scanner.carCount);
+        }
+    }
+
+    /**
+     * ビットの形式のファイルを読む.
+     *
+     * @param file   ファイル
+     * @param length 道路長. ファイルは少なくとも(length + 7) / 8バイトなければならない.
+     * @return 読んだ結果
+     * @throws IOException 読めなかった場合
+     */
+    static RoadFile readBits(Path file, int length) throws IOException {
+        if (length < 0)
+            throw new IllegalArgumentException("length must be bigger than or equal to 0.");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long bytes = (length + 7L) / 8;
+            if (channel.size() < bytes)
+                throw new IllegalArgumentException("The file is shorter than " + bytes + " bytes.");
+
+            int carCount = 0;
+            for (long start = 0; start < bytes; start += WINDOW_SIZE) {
+                carCount = scanBits(channel, start, Math.min(WINDOW_SIZE, bytes - start), length, null, carCount);
+            }
+
+            int[] carPositions = new int[carCount];
+            carCount = 0;
+            for (long start = 0; start < bytes; start += WINDOW_SIZE) {
+                carCount = scanBits(channel, start, Math.min(WINDOW_SIZE, bytes - start), length, carPositions, carCount);
+            }
+            return new RoadFile(length, carPositions, carCount);
+        }
+    }
+
+    /**
+     * 文字の形式の行をストリームから順に読む. 1行が1本の道路で, 空白だけの行は飛ばす.
+     * 行全体を文字列にせず, 読みながら車の位置だけを集める.
+     *
+     * @param in       ストリーム. UTF-8.
+     * @param maxCells すべての行のセルの数の合計の上限. 超えた時点で読むのをやめる.
+     * @return 読んだ結果. 1つが1行.
+     * @throws IOException 読めなかった場合
+     */
+    static List<RoadFile> readLines(InputStream in, long maxCells) throws IOException {
+        List<RoadFile> roads = new ArrayList<>();
+        byte[] buffer = new byte[8192];
+        int[] carPositions = new int[64];
+        int carCount = 0;
+        int length = 0;
+        long cells = 0;
+        boolean blank = true;
+        //■または□の途中まで読んだバイト数
+        int squareBytes = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                int b = buffer[i] & 0xFF;
+                if (b == '\n') {
+                    if (!blank) {
+                        roads.add(new RoadFile(length, Arrays.copyOf(carPositions, carCount), carCount));
+                    }
+                    carCount = 0;
+                    length = 0;
+                    blank = true;
+                    squareBytes = 0;
+                    continue;
+                }
+                if (b > ' ') {
+                    blank = false;
+                }
+
+                boolean filled;
+                if (b == '1' || b == '0') {
+                    filled = b == '1';
+                } else if (b == SQUARE_LEAD) {
+                    squareBytes = 1;
+                    continue;
+                } else if (squareBytes == 1 && b == SQUARE_SECOND) {
+                    squareBytes = 2;
+                    continue;
+                } else if (squareBytes == 2 && (b == FILLED_SQUARE_LAST || b == EMPTY_SQUARE_LAST)) {
+                    filled = b == FILLED_SQUARE_LAST;
+                } else {
+                    squareBytes = 0;
+                    continue;
+                }
+                squareBytes = 0;
+
+                if (++cells > maxCells)
+                    throw new IllegalArgumentException("Roads must have at most " + maxCells + " cells.");
+                if (length == Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("The road is longer than " + Integer.MAX_VALUE + " cells.");
+
+                if (filled) {
+                    if (carCount == carPositions.length) {
+                        carPositions = Arrays.copyOf(carPositions, carCount * 2);
+                    }
+                    carPositions[carCount++] = length;
+                }
+                length++;
+            }
+        }
+        if (!blank) {
+            roads.add(new RoadFile(length, Arrays.copyOf(carPositions, carCount), carCount));
+        }
+        return roads;
+    }
+
+    /**
+     * ビットの形式のファイルの一部を走査する. 64セルずつまとめて読み, 車のいないワードは飛ばす.
+     *
+     * @param channel      ファイル
+     * @param start        開始位置(バイト). 8の倍数.
+     * @param size         大きさ(バイト)
+     * @param length       道路長. これ以降のビットは無視する.
+     * @param carPositions 車の位置の書き込み先. nullなら数えるだけ.
+     * @param carCount     これまでに見つけた車の数
+     * @return 走査した後の車の数
+     * @throws IOException 読めなかった場合
+     */
+    private static int scanBits(FileChannel channel, long start, long size, int length,
+                                @Nullable int[] carPositions, int carCount) throws IOException {
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        long base = start * 8;
+        int offset = 0;
+        while (offset < size) {
+            long wordBase = base + offset * 8L;
+            long word;
+            if (size - offset >= Long.BYTES) {
+                word = window.getLong(offset);
+                offset += Long.BYTES;
+            } else {
+                //末尾の端数は1バイトずつ読む
+                word = window.get(offset) & 0xFFL;
+                offset++;
+            }
+            //道路長を超えるビットを落とす
+            if (wordBase + 64 > length) {
+                long valid = length - wordBase;
+                word &= valid <= 0 ? 0 : valid >= 64 ? -1L : (1L << valid) - 1;
+            }
+
+            if (carPositions == null) {
+                carCount += Long.bitCount(word);
+                continue;
+            }
+            while (word != 0) {
+                carPositions[carCount++] = (int) (wordBase + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return carCount;
+    }
+
+    /**
+     * 文字の形式のファイルを先頭から順に走査する. メモリマップした範囲の境界をまたぐ文字も扱えるよう, 状態を持ち越す.
+     */
+    private static final class TextScanner {
+        @Nullable
+        final int[] carPositions;
+        long length;
+        int carCount;
+        //■または□の途中まで読んだバイト数
+        private int squareBytes;
+
+        TextScanner(@Nullable int[] carPositions) {
+            this.carPositions = carPositions;
+        }
+
+        void scan(MappedByteBuffer window) {
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = window.limit();
+            int i = 0;
+            while (i < limit) {
+                //8バイトがすべて0か1なら, まとめて数える
+                if (squareBytes == 0 && limit - i >= Long.BYTES && length <= Integer.MAX_VALUE - Long.BYTES) {
+                    long word = window.getLong(i);
+                    if ((word & ~ONES_BYTES) == ZEROS_BYTES) {
+                        addCells(word & ONES_BYTES);
+                        i += Long.BYTES;
+                        continue;
+                    }
+                }
+
+                int b = window.get(i++) & 0xFF;
+                if (b == '1') {
+                    addCell(true);
+                } else if (b == '0') {
+                    addCell(false);
+                } else if (b == SQUARE_LEAD) {
+                    squareBytes = 1;
+                    continue;
+                } else if (squareBytes == 1 && b == SQUARE_SECOND) {
+                    squareBytes = 2;
+                    continue;
+                } else if (squareBytes == 2 && (b == FILLED_SQUARE_LAST || b == EMPTY_SQUARE_LAST)) {
+                    addCell(b == FILLED_SQUARE_LAST);
+                }
+                squareBytes = 0;
+            }
+        }
+
+        /**
+         * 0か1だけが並ぶ8バイトを数える.
+         *
+         * @param filled 各バイトの最下位ビットだけを残したもの. 1が車.
+         */
+        private void addCells(long filled) {
+            if (carPositions == null) {
+                carCount += Long.bitCount(filled);
+            } else {
+                while (filled != 0) {
+                    carPositions[carCount++] = (int) length + (Long.numberOfTrailingZeros(filled) >>> 3);
+                    filled &= filled - 1;
+                }
+            }
+            length += Long.BYTES;
+        }
+
+        private void addCell(boolean filled) {
+            if (length == Integer.MAX_VALUE)
+                throw new IllegalArgumentException("The road is longer than " + Integer.MAX_VALUE + " cells.");
+
+            if (filled) {
+                if (carPositions != null) {
+                    carPositions[carCount] = (int) length;
+                }
+                carCount++;
+            }
+            length++;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.Traffic;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * 移動規則に名前をつけて登録しておくクラス.
+ * チェックポイントには規則そのものではなく登録した名前を保存し, 復元する時に同じ名前で登録した規則を割り当てる.
+ * Car.RuleとBatchRuleは同じ名前の空間に登録する.
+ */
+public class RuleRegistry {
+    private final Map<String, Car.Rule> rules = new HashMap<>();
+    private final Map<Car.Rule, String> names = new IdentityHashMap<>();
+    private final Map<String, BatchRule> batchRules = new HashMap<>();
+    private final Map<BatchRule, String> batchNames = new IdentityHashMap<>();
+
+    /**
+     * 規則を登録する.
+     *
+     * @param name 名前
+     * @param rule 規則
+     * @return このインスタンス
+     */
+    public synchronized RuleRegistry register(String name, Car.Rule rule) {
+        if (name == null || rule == null)
+            throw new IllegalArgumentException("name and rule must not be null.");
+        if (rules.containsKey(name) || batchRules.containsKey(name))
+            throw new IllegalArgumentException("Rule name " + name + " is already registered.");
+        if (names.containsKey(rule))
+            throw new IllegalArgumentException("This rule is already registered as " + names.get(rule) + ".");
+
+        rules.put(name, rule);
+        names.put(rule, name);
+        return this;
+    }
+
+    /**
+     * 指定した名前で登録した規則を返す.
+     *
+     * @param name 名前
+     * @return 規則
+     */
+    public synchronized Car.Rule get(String name) {
+        Car.Rule rule = rules.get(name);
+        if (rule == null)
+            throw new IllegalArgumentException("Rule " + name + " is not registered.");
+        return rule;
+    }
+
+    /**
+     * 指定した規則を登録した名前を返す.
+     *
+     * @param rule 規則
+     * @return 名前
+     */
+    public synchronized String nameOf(Car.Rule rule) {
+        String name = names.get(rule);
+        if (name == null)
+            throw new IllegalArgumentException("Rule " + rule + " is not registered.");
+        return name;
+    }
+
+    /**
+     * 道路ごとにまとめて適用する規則を登録する.
+     *
+     * @param name      名前
+     * @param batchRule 規則
+     * @return このインスタンス
+     */
+    public synchronized RuleRegistry register(String name, BatchRule batchRule) {
+        if (name == null || batchRule == null)
+            throw new IllegalArgumentException("name and batchRule must not be null.");
+        if (rules.containsKey(name) || batchRules.containsKey(name))
+            throw new IllegalArgumentException("Rule name " + name + " is already registered.");
+        if (batchNames.containsKey(batchRule))
+            throw new IllegalArgumentException("This rule is already registered as " + batchNames.get(batchRule) + ".");
+
+        batchRules.put(name, batchRule);
+        batchNames.put(batchRule, name);
+        return this;
+    }
+
+    /**
+     * 指定した名前で登録した, 道路ごとにまとめて適用する規則を返す.
+     *
+     * @param name 名前
+     * @return 規則
+     */
+    public synchronized BatchRule getBatchRule(String name) {
+        BatchRule batchRule = batchRules.get(name);
+        if (batchRule == null)
+            throw new IllegalArgumentException("BatchRule " + name + " is not registered.");
+        return batchRule;
+    }
+
+    /**
+     * 指定した, 道路ごとにまとめて適用する規則を登録した名前を返す.
+     *
+     * @param batchRule 規則
+     * @return 名前
+     */
+    public synchronized String nameOf(BatchRule batchRule) {
+        String name = batchNames.get(batchRule);
+        if (name == null)
+            throw new IllegalArgumentException("BatchRule " + batchRule + " is not registered.");
+        return name;
+    }
+}
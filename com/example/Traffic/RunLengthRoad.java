@@ -0,0 +1,238 @@
+package com.example.Traffic;
+
+import javax.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 道路の占有状態を, 連続して並んだ車(車列)の開始位置と台数の列で保持し, ルール184で車列ごとに進めるクラス.
+ * メモリと1ステップの時間は道路長ではなく車列の数に比例するので, 非常に長く疎らな道路や, ほとんど詰まった道路に向く.
+ * <p>
+ * 車列は開始位置の昇順に並び, 周期境界をまたぐ車列は末尾と先頭の2つに分けて持つ.
+ * 隣り合う車列の間の空きが0でもよく, その場合は前の車列に詰まっているものとして扱う.
+ */
+final class RunLengthRoad extends CompactRoad {
+    //i番目の車列は[starts[i], starts[i] + sizes[i])を占める
+    private int[] starts;
+    private int[] sizes;
+    private int runCount;
+    private int[] nextStarts;
+    private int[] nextSizes;
+    private int nextRunCount;
+    private int wraps;
+    //nextFilledで最後に見つけた車列. 位置順に辿る場合に探索を省く
+    private int cursor;
+
+    /**
+     * 車の位置から道路を初期化する.
+     *
+     * @param length    道路長
+     * @param positions 車の位置. 0以上length未満で昇順に並んでいなければならない.
+     * @param count     車の数
+     */
+    RunLengthRoad(int length, int[] positions, int count) {
+        super(length, count);
+
+        int capacity = Math.max(1, count);
+        starts = new int[capacity];
+        sizes = new int[capacity];
+        nextStarts = new int[capacity];
+        nextSizes = new int[capacity];
+
+        for (int i = 0; i < count; i++) {
+            append(positions[i], 1);
+        }
+        swap();
+    }
+
+    @Override
+    boolean get(int position) {
+        int run = runAtOrBefore(position);
+        return run >= 0 && position < starts[run] + sizes[run];
+    }
+
+    @Override
+    int nextFilled(int from) {
+        if (from >= length || runCount == 0)
+            return -1;
+
+        int run;
+        if (cursor < runCount && starts[cursor] <= from
+                && (cursor + 1 == runCount || from < starts[cursor + 1])) {
+            run = cursor;
+        } else {
+            run = runAtOrBefore(from);
+        }
+
+        if (run >= 0 && from < starts[run] + sizes[run]) {
+            cursor = run;
+            return from;
+        }
+        if (++run == runCount)
+            return -1;
+        cursor = run;
+        return starts[run];
+    }
+
+    @Override
+    int wraps() {
+        return wraps;
+    }
+
+    /**
+     * ルール184で1ステップ進める.
+     * 前が空いている車列は先頭の1台だけが1セル進み, それ以外の車は動かない.
+     * 車列の数に比例する時間で済むので, poolは使わない.
+     *
+     * @param pool 使わない
+     * @return 進んだ車の数
+     */
+    @Override
+    long step(@Nullable ForkJoinPool pool) {
+        if (carCount <= 1)
+            return 0;
+
+        long moved = 0;
+        int last = runCount - 1;
+
+        //最後の車列の先頭が周期境界を越える場合, その車が位置順で最初になる
+        boolean wrapping = starts[last] + sizes[last] == length && gapAhead(last) > 0;
+        if (wrapping) {
+            append(0, 1);
+        }
+
+        for (int i = 0; i < runCount; i++) {
+            int start = starts[i];
+            int size = sizes[i];
+            if (gapAhead(i) == 0) {
+                append(start, size);
+                continue;
+            }
+
+            moved++;
+            if (size > 1) {
+                append(start, size - 1);
+            }
+            if (i != last || !wrapping) {
+                append(start + size, 1);
+            }
+        }
+
+        if (wrapping) {
+            wraps = wraps + 1 == carCount ? 0 : wraps + 1;
+        }
+        swap();
+        return moved;
+    }
+
+    @Override
+    void copyTo(long[] destination) {
+        Arrays.fill(destination, 0, (length + 63) >>> 6, 0L);
+        for (int i = 0; i < runCount; i++) {
+            int from = starts[i];
+            int to = from + sizes[i];
+            while (from < to) {
+                int word = from >>> 6;
+                int end = Math.min(to, (word + 1) << 6);
+                int bits = end - from;
+                long mask = bits == 64 ? -1L : ((1L << bits) - 1) << from;
+                destination[word] |= mask;
+                from = end;
+            }
+        }
+    }
+
+    @Override
+    int jamCount() {
+        if (carCount == length)
+            return length >= 2 ? 1 : 0;
+
+        int count = 0;
+        for (int i = 0; i < runCount; i++) {
+            //後ろが空いていて, 2台以上並んでいるか前の車列に詰まっている車列の最後尾が渋滞の最後尾
+            if (gapAhead(i == 0 ? runCount - 1 : i - 1) > 0
+                    && (sizes[i] >= 2 || gapAhead(i) == 0)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    int blockedCarCount() {
+        int count = 0;
+        for (int i = 0; i < runCount; i++) {
+            count += sizes[i] - 1;
+            if (gapAhead(i) == 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 指定した車列の先頭から, 次の車列の最後尾までの空きの長さを返す.
+     *
+     * @param run 車列
+     * @return 空きの長さ
+     */
+    private int gapAhead(int run) {
+        int end = starts[run] + sizes[run];
+        if (run + 1 == runCount) {
+            return starts[0] + length - end;
+        }
+        return starts[run + 1] - end;
+    }
+
+    /**
+     * 指定した位置以前に始まる最後の車列を返す.
+     *
+     * @param position 位置
+     * @return 車列. 存在しなければ-1.
+     */
+    private int runAtOrBefore(int position) {
+        int low = 0;
+        int high = runCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * 次の状態の末尾に車列を加える. 直前の車列と接していればつなげる.
+     *
+     * @param start 開始位置
+     * @param size  台数
+     */
+    private void append(int start, int size) {
+        if (nextRunCount > 0 && nextStarts[nextRunCount - 1] + nextSizes[nextRunCount - 1] == start) {
+            nextSizes[nextRunCount - 1] += size;
+            return;
+        }
+        nextStarts[nextRunCount] = start;
+        nextSizes[nextRunCount] = size;
+        nextRunCount++;
+    }
+
+    /**
+     * 次の状態を現在の状態にする.
+     */
+    private void swap() {
+        int[] swapStarts = starts;
+        starts = nextStarts;
+        nextStarts = swapStarts;
+        int[] swapSizes = sizes;
+        sizes = nextSizes;
+        nextSizes = swapSizes;
+        runCount = nextRunCount;
+        nextRunCount = 0;
+        cursor = 0;
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.Traffic;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * シミュレーションの実行中の状態を集計するクラス.
+ * TrafficManager.setMetrics()で設定すると, update()のたびに1ステップの所要時間, 進んだ車の数, 平均速度,
+ * 断面ごとの通過台数を集計する. 渋滞の数は道全体を数える必要があるので, 指定した間隔ごとに数える.
+ * <p>
+ * 車の移動は各Roadが自分のフィールドに数え, ステップの最後にまとめて集計する. 集計はLongAdderなどの
+ * ロックを使わないカウンタで行うので, 複数のTrafficManagerで1つのインスタンスを共有してもよい.
+ * その場合, 累計は全体の合計, 「最後のステップ」の値は最後に集計したTrafficManagerのものになる.
+ * <p>
+ * 値はregister()でJMXに公開するか, toText()またはMetricsEndpointでテキストとして取得する.
+ */
+public class SimulationMetrics implements SimulationMetricsMXBean {
+    private static final double NANOS_PER_MICRO = 1000.0;
+
+    private final int[] crossSections;
+    private final LatencyHistogram stepLatency = new LatencyHistogram();
+    private final LongAdder steps = new LongAdder();
+    private final LongAdder movedCars = new LongAdder();
+    private final LongAdder movedLength = new LongAdder();
+    private final LongAdder carSteps = new LongAdder();
+    private final LongAdder[] crossings;
+    //最初のステップを始めた時刻と, 最後のステップを終えた時刻
+    private final AtomicLong firstStepStart = new AtomicLong(Long.MIN_VALUE);
+    private volatile long lastStepEnd;
+    private volatile long lastMovedCars;
+    private volatile double lastMeanVelocity;
+    private volatile int jamCount;
+    private volatile int jamSampleInterval = 16;
+    private ObjectName registeredName;
+
+    /**
+     * 集計を生成する.
+     *
+     * @param crossSections 通過台数を数える断面. 位置xの断面はセルx - 1とxの間にあり, すべての車線で数える.
+     */
+    public SimulationMetrics(int... crossSections) {
+        this.crossSections = crossSections.clone();
+        crossings = new LongAdder[crossSections.length];
+        for (int i = 0; i < crossings.length; i++) {
+            crossings[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 通過台数を数える断面を返す.
+     *
+     * @return 断面の位置
+     */
+    int[] crossSections() {
+        return crossSections;
+    }
+
+    /**
+     * 渋滞の数を数える間隔を設定する.
+     *
+     * @param jamSampleInterval ステップ数. 1なら毎ステップ数える. 初期値は16.
+     */
+    public void setJamSampleInterval(int jamSampleInterval) {
+        if (jamSampleInterval < 1)
+            throw new IllegalArgumentException("jamSampleInterval must be bigger than 0.");
+
+        this.jamSampleInterval = jamSampleInterval;
+    }
+
+    /**
+     * 1ステップを集計する. TrafficManager.update()の最後に, 車を動かしたスレッドから呼ばれる.
+     *
+     * @param manager     ステップを進めたTrafficManager
+     * @param elapsedTime ステップの所要時間(ナノ秒)
+     */
+    void onStep(TrafficManager manager, long elapsedTime) {
+        long now = System.nanoTime();
+        firstStepStart.compareAndSet(Long.MIN_VALUE, now - elapsedTime);
+
+        //[進んだ距離, 進んだ車の数, 断面ごとの通過台数...]
+        long[] counts = new long[2 + crossSections.length];
+        long carCount = 0;
+        for (Road road : manager.getRoads()) {
+            road.drainMoveCounts(counts);
+            carCount += road.carCount();
+        }
+
+        long step = steps.sum();
+        stepLatency.record(elapsedTime);
+        steps.increment();
+        movedLength.add(counts[0]);
+        movedCars.add(counts[1]);
+        carSteps.add(carCount);
+        for (int i = 0; i < crossings.length; i++) {
+            crossings[i].add(counts[2 + i]);
+        }
+
+        lastMovedCars = counts[1];
+        lastMeanVelocity = carCount == 0 ? 0 : (double) counts[0] / carCount;
+        if (step % jamSampleInterval == 0) {
+            int jams = 0;
+            for (Road road : manager.getRoads()) {
+                jams += road.jamCount();
+            }
+            jamCount = jams;
+        }
+        lastStepEnd = now;
+    }
+
+    @Override
+    public long getSteps() {
+        return steps.sum();
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        long start = firstStepStart.get();
+        if (start == Long.MIN_VALUE)
+            return 0;
+
+        long elapsed = lastStepEnd - start;
+        return elapsed <= 0 ? 0 : steps.sum() * 1e9 / elapsed;
+    }
+
+    @Override
+    public double getStepLatencyMeanMicros() {
+        return stepLatency.mean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getStepLatencyP50Micros() {
+        return stepLatency.valueAt(0.5) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getStepLatencyP90Micros() {
+        return stepLatency.valueAt(0.9) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getStepLatencyP99Micros() {
+        return stepLatency.valueAt(0.99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getStepLatencyP999Micros() {
+        return stepLatency.valueAt(0.999) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getStepLatencyMaxMicros() {
+        return stepLatency.max() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getCarsMoved() {
+        return movedCars.sum();
+    }
+
+    @Override
+    public long getCarsMovedLastStep() {
+        return lastMovedCars;
+    }
+
+    @Override
+    public double getCarsMovedPerStep() {
+        long count = steps.sum();
+        return count == 0 ? 0 : (double) movedCars.sum() / count;
+    }
+
+    @Override
+    public double getMeanVelocity() {
+        return lastMeanVelocity;
+    }
+
+    @Override
+    public double getMeanVelocityOverall() {
+        long count = carSteps.sum();
+        return count == 0 ? 0 : (double) movedLength.sum() / count;
+    }
+
+    @Override
+    public Map<String, Double> getFlows() {
+        Map<String, Double> flows = new LinkedHashMap<>();
+        for (int i = 0; i < crossSections.length; i++) {
+            flows.put(String.valueOf(crossSections[i]), flowAt(i));
+        }
+        return flows;
+    }
+
+    @Override
+    public int getJamCount() {
+        return jamCount;
+    }
+
+    /**
+     * 指定した断面のこれまでの流量を返す.
+     *
+     * @param index 断面の番号
+     * @return 流量(台/ステップ)
+     */
+    private double flowAt(int index) {
+        long count = steps.sum();
+        return count == 0 ? 0 : (double) crossings[index].sum() / count;
+    }
+
+    /**
+     * プラットフォームのMBeanServerに登録する.
+     *
+     * @param name ObjectNameのnameキーの値
+     * @return 登録した名前
+     * @throws JMException 登録できなかった場合
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        if (registeredName != null)
+            throw new IllegalStateException("These metrics are already registered.");
+
+        ObjectName objectName = new ObjectName("com.example.Traffic:type=SimulationMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    /**
+     * MBeanServerへの登録を解除する. 登録していなければ何もしない.
+     *
+     * @throws JMException 解除できなかった場合
+     */
+    public synchronized void unregister() throws JMException {
+        if (registeredName == null)
+            return;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registeredName)) {
+            server.unregisterMBean(registeredName);
+        }
+        registeredName = null;
+    }
+
+    /**
+     * 集計をPrometheusのテキスト形式で返す.
+     *
+     * @return テキスト
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "traffic_steps_total", "counter", "Simulation steps.", getSteps());
+        appendMetric(text, "traffic_steps_per_second", "gauge", "Steps per second of wall-clock time.", getStepsPerSecond());
+
+        text.append("# HELP traffic_step_latency_seconds Time spent in TrafficManager.update().\n");
+        text.append("# TYPE traffic_step_latency_seconds summary\n");
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double quantile : quantiles) {
+            text.append("traffic_step_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(stepLatency.valueAt(quantile) / 1e9)).append('\n');
+        }
+        text.append("traffic_step_latency_seconds_sum ").append(format(stepLatency.sum() / 1e9)).append('\n');
+        text.append("traffic_step_latency_seconds_count ").append(stepLatency.count()).append('\n');
+        appendMetric(text, "traffic_step_latency_max_seconds", "gauge", "Longest step.", stepLatency.max() / 1e9);
+
+        appendMetric(text, "traffic_cars_moved_total", "counter", "Cars that moved, summed over steps.", getCarsMoved());
+        appendMetric(text, "traffic_cars_moved_last_step", "gauge", "Cars that moved in the last step.", getCarsMovedLastStep());
+        appendMetric(text, "traffic_mean_velocity", "gauge", "Mean velocity in the last step.", getMeanVelocity());
+        appendMetric(text, "traffic_mean_velocity_overall", "gauge", "Mean velocity over all steps.", getMeanVelocityOverall());
+
+        text.append("# HELP traffic_flow Cars crossing a cross-section per step, all lanes.\n");
+        text.append("# TYPE traffic_flow gauge\n");
+        for (int i = 0; i < crossSections.length; i++) {
+            text.append("traffic_flow{section=\"").append(crossSections[i]).append("\"} ")
+                    .append(format(flowAt(i))).append('\n');
+        }
+        appendMetric(text, "traffic_jam_clusters", "gauge", "Jam clusters at the last sample, all lanes.", getJamCount());
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help, double value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.Traffic;
+
+import java.util.Map;
+
+/**
+ * SimulationMetricsをJMXで公開するためのインターフェース.
+ * 時間の単位はマイクロ秒, 流量の単位は台/ステップ.
+ */
+public interface SimulationMetricsMXBean {
+    /**
+     * @return これまでに進めたステップ数
+     */
+    long getSteps();
+
+    /**
+     * @return 最初のステップを始めてから最後のステップを終えるまでの1秒あたりのステップ数
+     */
+    double getStepsPerSecond();
+
+    /**
+     * @return 1ステップの所要時間の平均
+     */
+    double getStepLatencyMeanMicros();
+
+    /**
+     * @return 1ステップの所要時間の中央値
+     */
+    double getStepLatencyP50Micros();
+
+    /**
+     * @return 1ステップの所要時間の90パーセンタイル
+     */
+    double getStepLatencyP90Micros();
+
+    /**
+     * @return 1ステップの所要時間の99パーセンタイル
+     */
+    double getStepLatencyP99Micros();
+
+    /**
+     * @return 1ステップの所要時間の99.9パーセンタイル
+     */
+    double getStepLatencyP999Micros();
+
+    /**
+     * @return 1ステップの所要時間の最大値
+     */
+    double getStepLatencyMaxMicros();
+
+    /**
+     * @return これまでに進んだ車の延べ台数
+     */
+    long getCarsMoved();
+
+    /**
+     * @return 最後のステップで進んだ車の数
+     */
+    long getCarsMovedLastStep();
+
+    /**
+     * @return 1ステップあたりに進んだ車の数の平均
+     */
+    double getCarsMovedPerStep();
+
+    /**
+     * @return 最後のステップでの平均速度(進んだ距離 / 車の数)
+     */
+    double getMeanVelocity();
+
+    /**
+     * @return これまでの平均速度
+     */
+    double getMeanVelocityOverall();
+
+    /**
+     * @return 断面の位置→これまでの流量(全車線の合計)
+     */
+    Map<String, Double> getFlows();
+
+    /**
+     * @return 最後に数えた渋滞の数(全車線の合計)
+     */
+    int getJamCount();
+}
@@ -0,0 +1,464 @@
+package com.example.Traffic;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 複数の利用者から同時にシミュレーションを受け付けるHTTPサーバー. ループバックアドレスでのみ待ち受ける.
+ * <p>
+ * POST /simulate の本文の各行, またはGET /simulate のroadパラメータ(複数指定可)が1車線分の道路を表す.
+ * パラメータ:
+ * <ul>
+ * <li>steps: 進めるステップ数. 省略時は10.</li>
+ * <li>rule: RuleRegistryに登録したルールの名前. 省略時はルールなし(ルール184).</li>
+ * <li>format: cells(■□, 省略時), bits(1と0), flow(ステップ数と車が進んだ距離の合計をタブ区切り).</li>
+ * </ul>
+ * cellsとbitsでは, 初期状態と各ステップの状態を1行ずつ, 車線を空白で区切って返す.
+ * 結果は計算しながら少しずつ返す.
+ * <p>
+ * リクエストごとに独立したTrafficManagerを作り, 使えればJava 21以降の仮想スレッド, 使えなければ通常のスレッドで処理する.
+ * 同時に計算するシミュレーションの数はmaxRunningまでに制限し, 超えた分は到着順に待たせる.
+ * 待っている数がmaxWaitingを超えた場合と, 待ち時間がsetQueueTimeout()の時間を超えた場合は503を返す.
+ * POSTの本文は計算の枠を得てから読むので, 断ったリクエストの本文は読まない.
+ * <p>
+ * 登録したルールは複数のリクエストから同時に使われるので, 状態を持たないものでなければならない.
+ */
+public class SimulationServer implements Closeable {
+    private static final int DEFAULT_STEPS = 10;
+    //計算中でもこの間隔で書き出す
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RuleRegistry registry;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore running;
+    private final int maxRunning;
+    private final int maxWaiting;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile long queueTimeoutMillis = 30_000;
+    private volatile int maxSteps = 1_000_000;
+    private volatile long maxCells = 1 << 24;
+
+    /**
+     * サーバーを起動する.
+     *
+     * @param registry   リクエストで指定できるルールを登録したRuleRegistry
+     * @param port       ポート番号. 0なら空いているポートを使う.
+     * @param maxRunning 同時に計算するシミュレーションの最大数. 1以上.
+     * @param maxWaiting 計算を待つリクエストの最大数. 0以上.
+     * @throws IOException 起動できなかった場合
+     */
+    public SimulationServer(RuleRegistry registry, int port, int maxRunning, int maxWaiting) throws IOException {
+        if (registry == null)
+            throw new IllegalArgumentException("registry must not be null.");
+        if (maxRunning < 1)
+            throw new IllegalArgumentException("maxRunning must be bigger than or equal to 1.");
+        if (maxWaiting < 0)
+            throw new IllegalArgumentException("maxWaiting must be bigger than or equal to 0.");
+
+        this.registry = registry;
+        this.running = new Semaphore(maxRunning, true);
+        this.maxRunning = maxRunning;
+        this.maxWaiting = maxWaiting;
+
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtual != null ? virtual : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "simulation-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/simulate", exchange -> {
+            try {
+                handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * 仮想スレッドでタスクを1つずつ実行するExecutorServiceを作る. Java 21より前では使えないのでリフレクションで呼ぶ.
+     *
+     * @return ExecutorService. 使えなければnull.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 待ち時間の上限を設定する. 超えたリクエストには503を返す.
+     *
+     * @param queueTimeoutMillis 待ち時間の上限(ミリ秒)
+     */
+    public void setQueueTimeout(long queueTimeoutMillis) {
+        if (queueTimeoutMillis < 0)
+            throw new IllegalArgumentException("queueTimeoutMillis must be bigger than or equal to 0.");
+
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * 1つのリクエストで指定できるステップ数の上限を設定する.
+     *
+     * @param maxSteps ステップ数の上限
+     */
+    public void setMaxSteps(int maxSteps) {
+        if (maxSteps < 0)
+            throw new IllegalArgumentException("maxSteps must be bigger than or equal to 0.");
+
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * 1つのリクエストで指定できるセルの数(すべての車線の合計)の上限を設定する.
+     *
+     * @param maxCells セルの数の上限
+     */
+    public void setMaxCells(long maxCells) {
+        if (maxCells < 0)
+            throw new IllegalArgumentException("maxCells must be bigger than or equal to 0.");
+
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * 待ち受けているポート番号を返す.
+     *
+     * @return ポート番号
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * 仮想スレッドで処理しているかどうか返す.
+     *
+     * @return 仮想スレッドならtrue
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 計算の枠を得ているリクエストの数を返す. 本文を読んでいる途中のものも含む.
+     *
+     * @return リクエストの数
+     */
+    public int getRunningCount() {
+        return maxRunning - running.availablePermits();
+    }
+
+    /**
+     * 計算を待っているリクエストの数を返す.
+     *
+     * @return リクエストの数
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * 混雑のため503を返したリクエストの数を返す.
+     *
+     * @return リクエストの数
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * サーバーを停止する. 計算中のシミュレーションは中断する.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * 1つのリクエストを処理する.
+     *
+     * @param exchange リクエスト
+     * @throws IOException 応答を書き込めなかった場合
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"POST".equals(method)) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+
+        Request request;
+        try {
+            request = parse(exchange);
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        }
+
+        //空いている枠と待ち行列の両方が埋まっていれば直ちに断る. 本文はまだ読まない
+        if (waiting.incrementAndGet() > maxWaiting + running.availablePermits()) {
+            waiting.decrementAndGet();
+            reject(exchange);
+            return;
+        }
+        boolean acquired;
+        try {
+            acquired = running.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            reject(exchange);
+            return;
+        }
+
+        try {
+            //本文を読むのも計算の一部として枠の中で行う
+            try {
+                readRoads(exchange, request);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            }
+            run(exchange, request);
+        } finally {
+            running.release();
+        }
+    }
+
+    /**
+     * リクエストのパラメータを読む. 本文は読まない.
+     *
+     * @param exchange リクエスト
+     * @return 読んだリクエスト. roadsにはroadパラメータの道路だけが入る.
+     */
+    private Request parse(HttpExchange exchange) {
+        Request request = new Request();
+        request.steps = DEFAULT_STEPS;
+        request.format = Format.CELLS;
+
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int separator = parameter.indexOf('=');
+                String name = decode(separator < 0 ? parameter : parameter.substring(0, separator));
+                String value = separator < 0 ? "" : decode(parameter.substring(separator + 1));
+                switch (name) {
+                    case "road":
+                        RoadFile road = RoadFile.parse(value);
+                        request.roads.add(road);
+                        request.cells += road.length;
+                        break;
+                    case "steps":
+                        try {
+                            request.steps = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("steps must be an integer.");
+                        }
+                        break;
+                    case "rule":
+                        request.rule = value.isEmpty() ? null : registry.get(value);
+                        break;
+                    case "format":
+                        request.format = Format.of(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown parameter: " + name);
+                }
+            }
+        }
+
+        if (request.steps < 0 || request.steps > maxSteps)
+            throw new IllegalArgumentException("steps must be between 0 and " + maxSteps + ".");
+        if (request.cells > maxCells)
+            throw new IllegalArgumentException("Roads must have at most " + maxCells + " cells.");
+        return request;
+    }
+
+    /**
+     * POSTの本文の各行を道路として読み, リクエストに加える. 本文全体は溜めず, 読みながら車の位置にする.
+     * セルの数の上限を超えた時点で読むのをやめる.
+     *
+     * @param exchange リクエスト
+     * @param request  parse()で読んだリクエスト
+     * @throws IOException 本文を読めなかった場合
+     */
+    private void readRoads(HttpExchange exchange, Request request) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            for (RoadFile road : RoadFile.readLines(exchange.getRequestBody(), maxCells - request.cells)) {
+                request.roads.add(road);
+                request.cells += road.length;
+            }
+        }
+        if (request.roads.isEmpty())
+            throw new IllegalArgumentException("No road was given.");
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * シミュレーションを行い, 結果を書き出しながら返す.
+     *
+     * @param exchange リクエスト
+     * @param request  読んだリクエスト
+     * @throws IOException 応答を書き込めなかった場合. 接続が切れた場合はそこで計算をやめる.
+     */
+    private void run(HttpExchange exchange, Request request) throws IOException {
+        TrafficManager manager = new TrafficManager();
+        for (RoadFile road : request.roads) {
+            manager.addRoad(road);
+        }
+        manager.reflesh();
+        if (request.rule != null) {
+            manager.addRule(request.rule);
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+            List<Road> roads = manager.getRoads();
+            long movedLength = 0;
+            request.format.write(out, 0, roads, 0);
+            out.flush();
+            long flushed = System.nanoTime();
+            for (int step = 1; step <= request.steps; step++) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+
+                manager.update();
+                long currentMovedLength = 0;
+                for (Road road : roads) {
+                    currentMovedLength += road.movedLength();
+                }
+                request.format.write(out, step, roads, currentMovedLength - movedLength);
+                movedLength = currentMovedLength;
+
+                long now = System.nanoTime();
+                if (now - flushed >= FLUSH_INTERVAL_NANOS) {
+                    out.flush();
+                    flushed = now;
+                }
+            }
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        rejected.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 503, "Too many simulations are running.");
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * 読んだリクエスト.
+     */
+    private static final class Request {
+        //読んだ道路. 1つが1車線
+        final List<RoadFile> roads = new ArrayList<>();
+        //roadsのセルの数の合計
+        long cells;
+        int steps;
+        Car.Rule rule;
+        Format format;
+    }
+
+    /**
+     * 結果の形式.
+     */
+    private enum Format {
+        CELLS, BITS, FLOW;
+
+        static Format of(String name) {
+            switch (name) {
+                case "":
+                case "cells":
+                    return CELLS;
+                case "bits":
+                    return BITS;
+                case "flow":
+                    return FLOW;
+                default:
+                    throw new IllegalArgumentException("Unknown format: " + name);
+            }
+        }
+
+        /**
+         * 1ステップ分の結果を書く.
+         *
+         * @param out         書き込み先
+         * @param step        ステップ数
+         * @param roads       車線
+         * @param movedLength このステップで車が進んだ距離の合計
+         * @throws IOException 書き込めなかった場合
+         */
+        void write(Writer out, int step, List<Road> roads, long movedLength) throws IOException {
+            if (this == FLOW) {
+                out.write(step + "\t" + movedLength + "\n");
+                return;
+            }
+
+            for (int i = 0; i < roads.size(); i++) {
+                if (i != 0) {
+                    out.write(' ');
+                }
+                Road road = roads.get(i);
+                if (this == CELLS) {
+                    out.write(road.toString());
+                } else {
+                    for (int position = 0; position < road.length; position++) {
+                        out.write(road.isFilled(position) ? '1' : '0');
+                    }
+                }
+            }
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.Traffic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * SpaceTimeRecorderで記録したファイルを読み出すクラス.
+ * 任意のステップの行を, 記録したステップ数によらない時間で読み出せる.
+ */
+public class SpaceTimeReader implements Closeable {
+    //圧縮しない場合に一度にメモリマップする大きさの目安
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final int length;
+    private final int rowBytes;
+    private final long steps;
+    private final boolean compressed;
+    //圧縮しない場合: 行の境界で区切ってメモリマップした範囲
+    private final int rowsPerWindow;
+    private final MappedByteBuffer[] windows;
+    //圧縮する場合: ブロックの索引と, 最後に展開したブロック
+    private final int blockRows;
+    private final long[] blockOffsets;
+    private final byte[] block;
+    private long cachedBlock = -1;
+    private byte[] compressedBlock;
+    private final Inflater inflater;
+
+    /**
+     * ファイルを開く.
+     *
+     * @param file ファイル
+     * @throws IOException 読み込めなかった場合, または形式が正しくない場合
+     */
+    public SpaceTimeReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(SpaceTimeRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            header.flip();
+            if (header.getInt() != SpaceTimeRecorder.MAGIC)
+                throw new IOException("Not a space-time file.");
+            if (header.getInt() != SpaceTimeRecorder.VERSION)
+                throw new IOException("Unsupported space-time file version.");
+
+            length = header.getInt();
+            compressed = (header.getInt() & SpaceTimeRecorder.FLAG_COMPRESSED) != 0;
+            blockRows = header.getInt();
+            header.getInt();
+            steps = header.getLong();
+            long indexOffset = header.getLong();
+            rowBytes = (length + 7) >>> 3;
+
+            if (compressed) {
+                int blockCount = (int) ((steps + blockRows - 1) / blockRows);
+                ByteBuffer index = ByteBuffer.allocate((blockCount + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(index, indexOffset);
+                index.flip();
+                blockOffsets = new long[blockCount + 1];
+                for (int i = 0; i <= blockCount; i++) {
+                    blockOffsets[i] = index.getLong();
+                }
+                block = new byte[rowBytes * blockRows];
+                compressedBlock = new byte[0];
+                inflater = new Inflater();
+                rowsPerWindow = 0;
+                windows = null;
+            } else {
+                rowsPerWindow = rowBytes == 0 ? Integer.MAX_VALUE : Math.max(1, WINDOW_SIZE / rowBytes);
+                windows = new MappedByteBuffer[(int) ((steps + rowsPerWindow - 1) / rowsPerWindow)];
+                blockOffsets = null;
+                block = null;
+                inflater = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 記録されている道の長さを返す.
+     *
+     * @return 道の長さ
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 記録されているステップ数を返す.
+     *
+     * @return ステップ数
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * 指定したステップの行を1セル1ビットで読み出す.
+     * i番目のセルはwords[i / 64]の(i % 64)ビット目になる.
+     *
+     * @param step  ステップ. 最初に記録した行が0.
+     * @param words 書き込み先. (length + 63) / 64個以上の要素が必要.
+     * @throws IOException 読み込めなかった場合
+     */
+    public void readRow(long step, long[] words) throws IOException {
+        if (step < 0 || step >= steps)
+            throw new IndexOutOfBoundsException("step " + step + " is out of range.");
+
+        int wordCount = (length + 63) >>> 6;
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = 0;
+        }
+
+        if (compressed) {
+            long blockIndex = step / blockRows;
+            loadBlock(blockIndex);
+            int offset = (int) (step - blockIndex * blockRows) * rowBytes;
+            for (int i = 0; i < rowBytes; i++) {
+                words[i >>> 3] |= (block[offset + i] & 0xFFL) << ((i & 7) << 3);
+            }
+        } else {
+            MappedByteBuffer window = window((int) (step / rowsPerWindow));
+            int offset = (int) (step % rowsPerWindow) * rowBytes;
+            for (int i = 0; i < rowBytes; i++) {
+                words[i >>> 3] |= (window.get(offset + i) & 0xFFL) << ((i & 7) << 3);
+            }
+        }
+    }
+
+    /**
+     * 指定したステップの行を, Road.toString()と同じ形式の文字列で返す.
+     *
+     * @param step ステップ. 最初に記録した行が0.
+     * @return 車あり：■, 車なし：□
+     * @throws IOException 読み込めなかった場合
+     */
+    public String rowToString(long step) throws IOException {
+        long[] words = new long[(length + 63) >>> 6];
+        readRow(step, words);
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (words[i >>> 6] & (1L << i)) != 0 ? '■' : '□';
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        channel.close();
+    }
+
+    /**
+     * 圧縮しない場合に, 指定した範囲をメモリマップして返す.
+     *
+     * @param index 範囲の番号
+     * @return メモリマップした範囲
+     * @throws IOException マップできなかった場合
+     */
+    private MappedByteBuffer window(int index) throws IOException {
+        MappedByteBuffer window = windows[index];
+        if (window == null) {
+            long start = SpaceTimeRecorder.HEADER_SIZE + (long) index * rowsPerWindow * rowBytes;
+            long rows = Math.min(rowsPerWindow, steps - (long) index * rowsPerWindow);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, rows * rowBytes);
+            windows[index] = window;
+        }
+        return window;
+    }
+
+    /**
+     * 圧縮する場合に, 指定したブロックを展開する.
+     *
+     * @param blockIndex ブロックの番号
+     * @throws IOException 読み込めなかった場合, または展開できなかった場合
+     */
+    private void loadBlock(long blockIndex) throws IOException {
+        if (blockIndex == cachedBlock)
+            return;
+
+        int size = (int) (blockOffsets[(int) blockIndex + 1] - blockOffsets[(int) blockIndex]);
+        if (compressedBlock.length < size) {
+            compressedBlock = new byte[size];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(compressedBlock, 0, size);
+        readFully(buffer, blockOffsets[(int) blockIndex]);
+
+        inflater.reset();
+        inflater.setInput(compressedBlock, 0, size);
+        try {
+            int inflated = 0;
+            while (!inflater.finished() && inflated < block.length) {
+                int count = inflater.inflate(block, inflated, block.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Space-time block is truncated.");
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Space-time block is corrupted.", e);
+        }
+        cachedBlock = blockIndex;
+    }
+
+    /**
+     * 指定した位置からバッファがいっぱいになるまで読み込む.
+     *
+     * @param buffer   バッファ
+     * @param position 位置
+     * @throws IOException 読み込めなかった場合
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of space-time file.");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.Traffic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * 道の状態を1ステップ1行, 1セル1ビットでファイルに記録するクラス.
+ * ファイルはメモリマップして書き込む. 読み出しにはSpaceTimeReaderを使う.
+ * <p>
+ * ファイルの形式(数値はすべてリトルエンディアン):
+ * <pre>
+ * ヘッダー(40バイト)
+ *   0: マジックナンバー
+ *   4: 形式のバージョン
+ *   8: 道路長
+ *  12: フラグ(1ビット目が圧縮の有無)
+ *  16: 圧縮する場合, 1ブロックあたりの行数
+ *  20: 予約
+ *  24: 記録したステップ数
+ *  32: 圧縮する場合, ブロックの索引の位置
+ * 本体
+ *   圧縮しない場合: 行が順に並ぶ. 1行は(道路長 + 7) / 8バイトで, i番目のセルは(i / 8)バイト目の(i % 8)ビット目.
+ *   圧縮する場合: 行をブロックごとにまとめてDeflateで圧縮したものが順に並び,
+ *               最後に各ブロックの開始位置と本体の終了位置がlongで並ぶ.
+ * </pre>
+ */
+public class SpaceTimeRecorder implements Closeable {
+    static final int MAGIC = 0x53544231;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 40;
+    static final int FLAG_COMPRESSED = 1;
+    static final int OFFSET_STEPS = 24;
+    static final int OFFSET_INDEX = 32;
+    //圧縮する場合の1ブロックあたりの行数
+    static final int BLOCK_ROWS = 256;
+    //一度にメモリマップする大きさの目安
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final int length;
+    private final int rowBytes;
+    private final boolean compressed;
+    private final long[] words;
+    private final byte[] row;
+    //現在メモリマップしている範囲
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position = HEADER_SIZE;
+    private long steps;
+    //圧縮する場合のブロックの作業領域と索引
+    private final byte[] block;
+    private int blockRowCount;
+    private byte[] compressedBlock;
+    private final Deflater deflater;
+    private long[] blockOffsets;
+    private int blockCount;
+    private boolean closed;
+
+    /**
+     * 記録するファイルを作成する. 既にある場合は上書きする.
+     *
+     * @param file       ファイル
+     * @param length     記録する道の長さ
+     * @param compressed 圧縮するかどうか
+     * @throws IOException ファイルを作成できなかった場合
+     */
+    public SpaceTimeRecorder(Path file, int length, boolean compressed) throws IOException {
+        if (length < 0)
+            throw new IllegalArgumentException("length must be bigger than or equal to 0.");
+
+        this.length = length;
+        this.compressed = compressed;
+        rowBytes = (length + 7) >>> 3;
+        words = new long[(length + 63) >>> 6];
+        row = new byte[words.length * 8];
+
+        if (compressed) {
+            block = new byte[rowBytes * BLOCK_ROWS];
+            compressedBlock = new byte[block.length + 64];
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            blockOffsets = new long[16];
+        } else {
+            block = null;
+            deflater = null;
+        }
+
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        writeHeader();
+    }
+
+    /**
+     * 指定した道の現在の状態を1行として記録する.
+     *
+     * @param road 道. 長さは記録を始めた時と同じでなければならない.
+     * @throws IOException 書き込めなかった場合
+     */
+    public void record(Road road) throws IOException {
+        if (closed)
+            throw new IllegalStateException("This recorder is already closed.");
+        if (road.length != length)
+            throw new IllegalArgumentException("Road length differs from the recorded length.");
+
+        road.copyOccupancy(words);
+        ByteBuffer.wrap(row).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(words);
+
+        if (compressed) {
+            System.arraycopy(row, 0, block, blockRowCount * rowBytes, rowBytes);
+            if (++blockRowCount == BLOCK_ROWS) {
+                flushBlock();
+            }
+        } else {
+            write(row, rowBytes);
+        }
+        steps++;
+    }
+
+    /**
+     * 記録したステップ数を返す.
+     *
+     * @return ステップ数
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * 残っている行を書き出し, ヘッダーを更新してファイルを閉じる.
+     *
+     * @throws IOException 書き込めなかった場合
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            long indexOffset = 0;
+            if (compressed) {
+                if (blockRowCount > 0) {
+                    flushBlock();
+                }
+                deflater.end();
+
+                indexOffset = position;
+                byte[] index = new byte[(blockCount + 1) * 8];
+                ByteBuffer indexBuffer = ByteBuffer.wrap(index).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < blockCount; i++) {
+                    indexBuffer.putLong(blockOffsets[i]);
+                }
+                indexBuffer.putLong(indexOffset);
+                write(index, index.length);
+            }
+
+            if (window != null) {
+                window.force();
+                window = null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(steps).putLong(indexOffset).flip();
+            channel.write(header, OFFSET_STEPS);
+            //メモリマップで余分に伸ばした分を切り詰める
+            channel.truncate(position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * ヘッダーを書き込む. ステップ数と索引の位置は閉じる時に書き直す.
+     *
+     * @throws IOException 書き込めなかった場合
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(length)
+                .putInt(compressed ? FLAG_COMPRESSED : 0)
+                .putInt(compressed ? BLOCK_ROWS : 0)
+                .putInt(0)
+                .putLong(0)
+                .putLong(0)
+                .flip();
+        channel.write(header, 0);
+    }
+
+    /**
+     * 溜まった行を圧縮して書き出す.
+     *
+     * @throws IOException 書き込めなかった場合
+     */
+    private void flushBlock() throws IOException {
+        if (blockCount == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        }
+        blockOffsets[blockCount++] = position;
+
+        deflater.reset();
+        deflater.setInput(block, 0, blockRowCount * rowBytes);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressedBlock.length) {
+                compressedBlock = Arrays.copyOf(compressedBlock, size * 2);
+            }
+            size += deflater.deflate(compressedBlock, size, compressedBlock.length - size);
+        }
+        write(compressedBlock, size);
+        blockRowCount = 0;
+    }
+
+    /**
+     * 現在の位置にバイト列を書き込む. メモリマップした範囲を越える場合は次の範囲をマップする.
+     *
+     * @param bytes  バイト列
+     * @param count  書き込むバイト数
+     * @throws IOException マップできなかった場合
+     */
+    private void write(byte[] bytes, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            if (window == null || position >= windowStart + window.capacity()) {
+                if (window != null) {
+                    window.force();
+                }
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, Math.max(WINDOW_SIZE, count));
+            }
+
+            int writable = (int) Math.min(count - offset, windowStart + window.capacity() - position);
+            window.position((int) (position - windowStart));
+            window.put(bytes, offset, writable);
+            offset += writable;
+            position += writable;
+        }
+    }
+}
@@ -1,16 +1,59 @@
 package com.example.Traffic;
 
-import com.sun.istack.internal.Nullable;
+import javax.annotation.Nullable;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * 車と道路を管理するクラス.
  * Created by fr007 on 2016/05/27.
  */
 public class TrafficManager {
+    private static final int[] NO_CROSS_SECTIONS = new int[0];
     private ArrayList<Road> roads;
+    //車線番号と左右の車線を設定した時の道の数. getRoads()経由で変更された場合に設定し直すために使う
+    private int linkedRoadCount;
     private Car.Rule rule;
+    //道路ごとにまとめて適用するルール. ruleとは同時に設定できない
+    private BatchRule batchRule;
+    //管理している車の属性. IDを添字とする
+    private final CarTable cars = new CarTable();
+    //update()で進めたステップ数
+    private long steps;
+    //車ごとの乱数列の種
+    private long seed;
+    //clearRandomDrawn()の後に, ルールが車ごとの乱数列から値を引いたかどうか. ルールは並列に呼ばれることがある
+    private volatile boolean randomDrawn;
+    //固有のルールを持つ車の数. ルールは並列に呼ばれることがあるのでアトミックに数える
+    private final AtomicInteger ruledCarCount = new AtomicInteger();
+    //スピードが1以外の車の数
+    private final AtomicInteger nonDefaultSpeedCarCount = new AtomicInteger();
+    //車線ごとに並列に更新するかどうか
+    private boolean parallel;
+    //並列に更新する際に使うExecutorService. nullならForkJoinPool.commonPool()
+    private ExecutorService executor;
+    //並列に車を動かしている最中かどうか
+    private volatile boolean movingInParallel;
+    //逐次の更新でも, 車線変更をステップの最後にまとめて反映するかどうか
+    private boolean deferredLaneChanges;
+    //車線変更の要求を記録している最中かどうか
+    private volatile boolean collectingLaneChanges;
+    //ルールを持つ車についても, 進めない車を飛ばすかどうか
+    private boolean activeSetScheduling;
+    //ステップごとの集計. nullなら集計しない
+    private SimulationMetrics metrics;
+    //updateTo()で周期を探して飛ばすかどうか
+    private boolean cycleDetection;
+    private final CycleDetector cycleDetector = new CycleDetector(this);
 
     /**
      * TrafficManagerを生成する.
@@ -41,61 +84,758 @@ public class TrafficManager {
      * @return 追加した道
      */
     public Road addRoad(String roadCondition) {
-        Road created = null;
+        return addRoad(RoadFile.parse(roadCondition));
+    }
+
+    /**
+     * ■□または1と0で道路の状態を書いたUTF-8のファイルから道を追加する. これら以外の文字(改行など)は無視する.
+     * ファイルはメモリマップして読むので, 文字列を作らずに道路長に比例する時間で読み込める.
+     * <p>
+     * 1本目と2本目以降の扱いはaddRoad(String)と同じ.
+     *
+     * @param file ファイル
+     * @return 追加した道
+     * @throws IOException ファイルを読めなかった場合
+     */
+    public Road addRoad(Path file) throws IOException {
+        checkNotMovingInParallel();
+        return addRoad(RoadFile.readText(file));
+    }
+
+    /**
+     * 1セル1ビットで道路の状態を書いたファイルから道を追加する.
+     * i番目のセルは(i / 8)バイト目の(i % 8)ビット目で, 1が車. SpaceTimeRecorderが記録する1行と同じ形式.
+     * <p>
+     * 1本目と2本目以降の扱いはaddRoad(String)と同じ.
+     *
+     * @param file   ファイル
+     * @param length 道路長
+     * @return 追加した道
+     * @throws IOException ファイルを読めなかった場合
+     */
+    public Road addPackedRoad(Path file, int length) throws IOException {
+        checkNotMovingInParallel();
+        return addRoad(RoadFile.readBits(file, length));
+    }
+
+    /**
+     * 読み込んだ道路の状態から道を追加する.
+     *
+     * @param file 道路の状態
+     * @return 追加した道
+     */
+    Road addRoad(RoadFile file) {
+        checkNotMovingInParallel();
+
+        Road created;
 
         if (roads.size() == 0) {
-            created = new Road(roadCondition, this);
-            roads.add(created);
+            //1本目はまとめて車を置いてそのまま反映する
+            created = new Road(file, this);
         } else {
             created = new Road(roads.get(0).length, this);
-            StringBuilder cleanedRoadCondition = new StringBuilder();
-            for (int i = 0; i < roadCondition.length(); i++) {
-                char roadChar = roadCondition.charAt(i);
-                if (roadChar == '■'
-                        || roadChar == '□'
-                        || roadChar == '1'
-                        || roadChar == '0') {
-                    cleanedRoadCondition.append(roadChar);
-                }
-            }
-
-            for (int i = 0; i < cleanedRoadCondition.length(); i++) {
-                if (i == created.length)
+            for (int i = 0; i < file.carCount; i++) {
+                if (file.carPositions[i] >= created.length)
                     break;
 
-                char roadChar = cleanedRoadCondition.charAt(i);
-                if (roadChar == '■'
-                        || roadChar == '1') {
-                    created.addCar(new Car(this), i);
-                }
+                created.addCar(new Car(this), file.carPositions[i]);
             }
-            roads.add(created);
         }
+        roads.add(created);
+        linkRoads();
+        return created;
+    }
+
+    /**
+     * 車の位置を指定して疎な道を追加する.
+     * 疎な道はセルごとの配列を持たないので, 車の少ない(またはほとんど詰まった)非常に長い道に向く.
+     * <p>
+     * 初めて追加する場合は車の位置もそのまま反映する.
+     * 2本目以降の場合は1本目と同じ長さでなければならず, addRoad(String)と同様にreflesh()するまで反映されない.
+     *
+     * @param length       道路長
+     * @param carPositions 車の位置. 周期境界条件で正規化され, 同じ位置に複数ある場合は1台だけ置く.
+     * @return 追加した道
+     */
+    public Road addSparseRoad(int length, int[] carPositions) {
+        return addRoad(length, carPositions, true, false);
+    }
+
+    /**
+     * 車の位置を指定して, セルごとの配列をJavaヒープの外に置いた道を追加する.
+     * Javaヒープの使用量が道路長によらないので, 非常に長い道でもガベージコレクションの負担が増えない.
+     * 確保したメモリは, eraceRoad()またはclear()で管理対象から外した時に解放する. 解放した後の道は使えない.
+     * <p>
+     * 車の位置の扱いはaddSparseRoad()と同じ.
+     *
+     * @param length       道路長
+     * @param carPositions 車の位置. 周期境界条件で正規化され, 同じ位置に複数ある場合は1台だけ置く.
+     * @return 追加した道
+     */
+    public Road addOffHeapRoad(int length, int[] carPositions) {
+        return addRoad(length, carPositions, false, true);
+    }
+
+    /**
+     * 車の位置を指定して道を追加する.
+     *
+     * @param length       道路長
+     * @param carPositions 車の位置
+     * @param sparse       疎な道にするかどうか
+     * @param offHeap      ヒープ外の道にするかどうか
+     * @return 追加した道
+     */
+    private Road addRoad(int length, int[] carPositions, boolean sparse, boolean offHeap) {
+        checkNotMovingInParallel();
+
+        if (roads.size() != 0 && roads.get(0).length != length)
+            throw new IllegalArgumentException("length must be equal to the length of the first road.");
+        if (length == 0 && carPositions.length != 0)
+            throw new IllegalArgumentException("Cars cannot be placed on a road of length 0.");
+
+        Road created = new Road(length, this, sparse, offHeap);
+        for (int position : carPositions) {
+            created.addCar(new Car(this), position);
+        }
+        if (roads.size() == 0) {
+            created.reflesh();
+        }
+        roads.add(created);
+        linkRoads();
         return created;
     }
 
     /**
      * 指定した道路を管理対象から外す.
+     * 道路上の車は破棄し, IDを再利用する. ヒープ外の道路の場合は確保したメモリを解放する.
      *
      * @param road 管理対象から外す道路
      */
     public void eraceRoad(Road road) {
-        roads.remove(road);
+        checkNotMovingInParallel();
+
+        if (roads.remove(road)) {
+            discardCars(road);
+            road.unlink();
+            road.release();
+        }
+        linkRoads();
     }
 
     /**
      * すべての道路を管理対象から外す.
+     * 道路上の車は破棄し, IDを再利用する. ヒープ外の道路の場合は確保したメモリを解放する.
      */
     public void clear() {
+        checkNotMovingInParallel();
+
+        for (Road road : roads) {
+            discardCars(road);
+            road.unlink();
+            road.release();
+        }
         roads.clear();
+        linkRoads();
+    }
+
+    /**
+     * 道路上の車を破棄し, IDを手放す. 破棄した車は使えなくなる.
+     *
+     * @param road 道路
+     */
+    private void discardCars(Road road) {
+        List<Car> discarded = new ArrayList<>();
+        road.forEachBufferedCar((car, position) -> discarded.add(car));
+        for (Car car : discarded) {
+            onCarRuleChanged(car.rule(), null);
+            onCarSpeedChanged(car.getSpeed(), 1);
+            cars.release(car.id);
+        }
+    }
+
+    /**
+     * 管理している道に車線番号と左右の車線を設定する.
+     */
+    private void linkRoads() {
+        for (int i = 0; i < roads.size(); i++) {
+            Road left = i == 0 ? null : roads.get(i - 1);
+            Road right = i + 1 == roads.size() ? null : roads.get(i + 1);
+            roads.get(i).link(i, left, right);
+        }
+        linkedRoadCount = roads.size();
+    }
+
+    /**
+     * 指定した道を管理しているかどうか返す.
+     *
+     * @param road 道
+     * @return 管理していればtrue
+     */
+    private boolean isManaging(Road road) {
+        int index = road.laneIndex();
+        if (linkedRoadCount != roads.size()
+                || (index >= 0 && (index >= roads.size() || roads.get(index) != road))) {
+            //getRoads()で返したリストが直接変更された
+            linkRoads();
+            index = road.laneIndex();
+        }
+
+        return index >= 0 && index < roads.size() && roads.get(index) == road;
     }
 
     /**
      * 管理している道すべての車を動かす.
      */
     public void update() {
+        checkNotMovingInParallel();
+
+        if (metrics == null) {
+            step();
+            steps++;
+            return;
+        }
+
+        long start = System.nanoTime();
+        step();
+        steps++;
+        metrics.onStep(this, System.nanoTime() - start);
+    }
+
+    /**
+     * update()で進めたステップ数を返す.
+     *
+     * @return ステップ数
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * 車ごとの乱数列(Car.nextRandom())の種を設定する.
+     * 乱数列は種, 車のID, ステップ数だけで決まるので, 同じ種と初期状態からは, 並列更新のスレッド数によらず同じ結果になる.
+     * 乱数を使うルールでは状態が繰り返しても同じ動きになるとは限らないので, updateTo()は周期を探さずに進める.
+     *
+     * @param seed 種. 初期値は0.
+     */
+    public void setSeed(long seed) {
+        checkNotMovingInParallel();
+        this.seed = seed;
+    }
+
+    /**
+     * 車ごとの乱数列の種を返す.
+     *
+     * @return 種
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * ルールが車ごとの乱数列から値を引いたことを記録する.
+     */
+    void onRandomDrawn() {
+        if (!randomDrawn) {
+            randomDrawn = true;
+        }
+    }
+
+    /**
+     * clearRandomDrawn()の後に, ルールが車ごとの乱数列から値を引いたかどうか返す.
+     *
+     * @return 引いたならtrue
+     */
+    boolean isRandomDrawn() {
+        return randomDrawn;
+    }
+
+    void clearRandomDrawn() {
+        randomDrawn = false;
+    }
+
+    /**
+     * 指定したステップ数になるまでupdate()を繰り返す.
+     * 周期の検出が有効な場合, 状態が周期的になったら周期の整数倍のステップを飛ばす.
+     * ただしルールが車ごとの乱数列から値を引いたら, その時点で周期を探すのをやめ, 残りはupdate()で進める.
+     * 飛ばしたステップはSimulationMetricsには数えないが, 道ごとに進んだ距離の合計には加える.
+     *
+     * @param targetSteps 進めた後のステップ数. getSteps()以上.
+     */
+    public void updateTo(long targetSteps) {
+        checkNotMovingInParallel();
+
+        if (targetSteps < steps)
+            throw new IllegalArgumentException("targetSteps must be bigger than or equal to current steps.");
+
+        if (cycleDetection) {
+            cycleDetector.updateTo(targetSteps);
+            return;
+        }
+
+        while (steps < targetSteps) {
+            update();
+        }
+    }
+
+    /**
+     * 周期の整数倍を飛ばした分, ステップ数を進める.
+     *
+     * @param count 飛ばしたステップ数
+     */
+    void skipSteps(long count) {
+        steps += count;
+    }
+
+    /**
+     * 管理している道すべての車を1ステップ動かす.
+     */
+    private void step() {
+        //ルールが一切なく, すべての車のスピードが1の場合はルール184として高速に進める
+        boolean withoutRule = rule == null
+                && batchRule == null
+                && ruledCarCount.get() == 0
+                && nonDefaultSpeedCarCount.get() == 0;
+        //LocalRuleだけの場合も, 1セル1ビットにまとめて遷移表で進める
+        LocalRule localRule = rule == null
+                && batchRule instanceof LocalRule
+                && ruledCarCount.get() == 0
+                && nonDefaultSpeedCarCount.get() == 0 ? (LocalRule) batchRule : null;
+
+        if (parallel && roads.size() > 1) {
+            if (localRule != null) {
+                //車線変更がないので, 車線同士が影響しあわない
+                forEachRoadInParallel(road -> road.updateWithLocalRule(localRule));
+                return;
+            }
+            updateInParallel(withoutRule);
+            return;
+        }
+
+        if (deferredLaneChanges && !withoutRule && localRule == null) {
+            collectingLaneChanges = true;
+            try {
+                for (Road road : roads) {
+                    road.moveCars(rule);
+                }
+            } finally {
+                collectingLaneChanges = false;
+            }
+            applyLaneChanges(false);
+            return;
+        }
+
         for (Road road : roads) {
-            road.update(rule);
+            if (withoutRule) {
+                road.updateWithoutRule();
+            } else if (localRule != null) {
+                road.updateWithLocalRule(localRule);
+            } else {
+                road.update(rule);
+            }
+        }
+    }
+
+    /**
+     * 管理している車の属性の表を返す.
+     *
+     * @return 表
+     */
+    CarTable cars() {
+        return cars;
+    }
+
+    /**
+     * 使っている車のIDの最大値を返す.
+     *
+     * @return ID. 車がなければ-1.
+     */
+    int maxCarID() {
+        return cars.maxId();
+    }
+
+    /**
+     * ステップ数を設定し, 車の属性の表を確保する. チェックポイントから復元する時に使う.
+     *
+     * @param steps    ステップ数
+     * @param maxCarID 使っている車のIDの最大値
+     */
+    void restoreCounters(long steps, int maxCarID) {
+        this.steps = steps;
+        cars.ensureCapacity(maxCarID + 1);
+    }
+
+    /**
+     * 復元した道を管理対象に加える. 道の状態はそのまま使う.
+     *
+     * @param road 道
+     */
+    void addRestoredRoad(Road road) {
+        checkNotMovingInParallel();
+        roads.add(road);
+        linkRoads();
+    }
+
+    /**
+     * 設定されている移動ルールを返す.
+     *
+     * @return 移動ルール. 設定されていなければnull.
+     */
+    @Nullable
+    Car.Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * 車線ごとに並列に更新する.
+     * すべての車線が1ステップ前の状態を見て車を動かし, 車線変更をapplyLaneChanges()でまとめて反映してから,
+     * 各車線のバッファを反映する. 結果はスレッド数によらない.
+     *
+     * @param withoutRule ルールが一切なく, すべての車のスピードが1かどうか
+     */
+    private void updateInParallel(boolean withoutRule) {
+        if (withoutRule) {
+            //車線同士が影響しあわないので, そのまま並列に進める
+            forEachRoadInParallel(Road::updateWithoutRule);
+            return;
+        }
+
+        //他の車線から読まれても状態が変わらないように, 先に展開しておく
+        for (Road road : roads) {
+            road.unpack();
+        }
+
+        movingInParallel = true;
+        collectingLaneChanges = true;
+        try {
+            forEachRoadInParallel(road -> {
+                road.setUpdatingThread(Thread.currentThread());
+                try {
+                    road.moveCars(rule);
+                } finally {
+                    road.setUpdatingThread(null);
+                }
+            });
+        } finally {
+            movingInParallel = false;
+            collectingLaneChanges = false;
+        }
+
+        applyLaneChanges(true);
+    }
+
+    /**
+     * 記録した車線変更を反映してから, 各車線のバッファを反映する.
+     * <p>
+     * 1. 移動先ごとに, 受け入れる要求を決める(Road.resolveLaneChanges())
+     * 2. 移動元ごとに, 受け入れられた車を外す
+     * 3. 移動先ごとに, 受け入れた車を置く
+     * 4. 道ごとに記録を消してバッファを反映する
+     * <p>
+     * 各段階では道ごとに自分の状態だけを書き換えるので, 段階の中は道ごとに並列に進められる.
+     * 受け入れるかどうかは車線変更の前の状態だけで決まるので, 結果は処理の順序やスレッド数によらない.
+     *
+     * @param parallel 道ごとに並列に進めるかどうか
+     */
+    private void applyLaneChanges(boolean parallel) {
+        boolean requested = false;
+        for (Road road : roads) {
+            requested |= road.hasLaneChangeRequests();
+        }
+
+        if (requested) {
+            forEachRoad(parallel, road -> road.resolveLaneChanges(roads));
+            forEachRoad(parallel, Road::removeLeavingCars);
+            forEachRoad(parallel, Road::addEnteringCars);
+        }
+        forEachRoad(parallel, road -> {
+            road.clearLaneChanges();
+            road.reflesh();
+        });
+    }
+
+    /**
+     * 管理しているすべての道に処理を行う.
+     *
+     * @param parallel 並列に行うかどうか
+     * @param task     処理
+     */
+    private void forEachRoad(boolean parallel, Consumer<Road> task) {
+        if (parallel) {
+            forEachRoadInParallel(task);
+            return;
+        }
+
+        for (Road road : roads) {
+            task.accept(road);
+        }
+    }
+
+    /**
+     * 管理しているすべての道に並列に処理を行い, すべて終わるまで待つ.
+     *
+     * @param task 処理
+     */
+    private void forEachRoadInParallel(Consumer<Road> task) {
+        //並列に呼ばれる処理から車線のつながりを作り直さないように, ここで確認しておく
+        if (linkedRoadCount != roads.size()) {
+            linkRoads();
+        }
+
+        ExecutorService service = executor == null ? ForkJoinPool.commonPool() : executor;
+        List<Future<?>> futures = new ArrayList<>(roads.size());
+        for (Road road : roads) {
+            futures.add(service.submit(() -> task.accept(road)));
+        }
+
+        RuntimeException exception = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (exception == null) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        exception = (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        exception = new IllegalStateException(cause);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while updating roads.", e);
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * 並列に車を動かしている最中でないことを確認する.
+     * ルールの中から管理している道全体を変更することはできない.
+     */
+    void checkNotMovingInParallel() {
+        if (movingInParallel)
+            throw new IllegalStateException("Roads are being updated in parallel.");
+    }
+
+    /**
+     * 車線ごとに並列に更新するかどうか設定する.
+     * <p>
+     * 並列に更新する場合, すべての車線は1ステップ前の状態を見て車を動かし,
+     * 車線変更はsetDeferredLaneChanges()と同じくステップの最後にまとめて反映される.
+     * そのため結果はスレッド数によらず同じになり, 車線同士が影響しあわない場合は逐次の更新と同じになる.
+     * 車線変更をまとめて反映する逐次の更新とは, 車線変更があっても同じになる.
+     * <p>
+     * ルールは複数のスレッドから同時に呼ばれるので, 状態を持つ場合はスレッドセーフにする必要がある.
+     * ルールの中で自分の車線以外の道を変更したり, TrafficManagerを更新するとIllegalStateExceptionを投げる.
+     * ルールが一切なく, すべての車のスピードが1の場合は, 長い道を区間に分けて1本の道の中でも並列に進める.
+     *
+     * @param parallel 並列に更新するかどうか
+     */
+    public void setParallel(boolean parallel) {
+        checkNotMovingInParallel();
+        this.parallel = parallel;
+    }
+
+    /**
+     * 車線ごとに並列に更新するかどうか返す.
+     *
+     * @return 並列に更新するかどうか
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * 逐次の更新でも, 車線変更をステップの最後にまとめて反映するかどうか設定する. 並列に更新する場合は常にまとめて反映する.
+     * <p>
+     * まとめて反映する場合, すべての車線は1ステップ前の状態を見て車を動かし, Car.changeRoad()は要求を記録するだけになる.
+     * ステップの最後に, すべての車を動かした後の状態で移動先のセルが空いている要求だけを反映する.
+     * 同じセルへの要求が重なった場合は, 移動元の車線番号が小さいもの, 同じ車線なら先に要求したものを優先する.
+     * 同じステップで車線を出ていく車のセルには入れない.
+     * 結果は車線を更新する順序によらない.
+     *
+     * @param deferredLaneChanges まとめて反映するかどうか
+     */
+    public void setDeferredLaneChanges(boolean deferredLaneChanges) {
+        checkNotMovingInParallel();
+        this.deferredLaneChanges = deferredLaneChanges;
+    }
+
+    /**
+     * 逐次の更新でも, 車線変更をステップの最後にまとめて反映するかどうか返す.
+     *
+     * @return まとめて反映するならtrue
+     */
+    public boolean isDeferredLaneChanges() {
+        return deferredLaneChanges;
+    }
+
+    /**
+     * 1本の長い道を区間に分けて並列に進める際に使うプールを返す.
+     * 区間ごとのタスクは入れ子になるので, 設定されたExecutorServiceがForkJoinPoolでない場合は共通プールを使う.
+     *
+     * @return プール. 並列に更新しない場合はnull.
+     */
+    @Nullable
+    ForkJoinPool decompositionPool() {
+        if (!parallel) {
+            return null;
+        }
+        return executor instanceof ForkJoinPool ? (ForkJoinPool) executor : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * 並列に更新する際に使うExecutorServiceを設定する.
+     *
+     * @param executor ExecutorService. nullならForkJoinPool.commonPool()を使う.
+     */
+    public void setExecutor(@Nullable ExecutorService executor) {
+        checkNotMovingInParallel();
+        this.executor = executor;
+    }
+
+    /**
+     * ルールを持つ車についても, 前のセルが埋まっていて進めない車を飛ばすかどうか設定する.
+     * ルールを持たない車は進めなければ何もしないので, この設定によらず常に飛ばす.
+     * trueにすると, Car.Rule.needsEveryStep()がfalseのルールは進めない車に対して呼ばれなくなる.
+     * 高密度では1ステップの処理が渋滞の先頭と走っている車の数程度で済む.
+     *
+     * @param activeSetScheduling 飛ばすならtrue. 初期値はfalse.
+     */
+    public void setActiveSetScheduling(boolean activeSetScheduling) {
+        checkNotMovingInParallel();
+        this.activeSetScheduling = activeSetScheduling;
+    }
+
+    /**
+     * ルールを持つ車についても, 進めない車を飛ばすかどうか返す.
+     *
+     * @return 飛ばすならtrue
+     */
+    public boolean isActiveSetScheduling() {
+        return activeSetScheduling;
+    }
+
+    /**
+     * updateTo()で状態の周期を探し, 周期の整数倍のステップを飛ばすかどうか設定する.
+     * 毎ステップ状態全体のハッシュを計算し, 同じハッシュが再び現れたらもう1周期進めて状態が一致することを確かめる.
+     * ルールは車と道の状態だけから決まる動きをする(内部の状態を使わない)必要がある.
+     * Car.nextRandom()などで乱数を引いたステップがあれば, そのupdateTo()では周期を探さずに進める.
+     *
+     * @param cycleDetection 飛ばすならtrue. 初期値はfalse.
+     */
+    public void setCycleDetection(boolean cycleDetection) {
+        checkNotMovingInParallel();
+        this.cycleDetection = cycleDetection;
+    }
+
+    /**
+     * updateTo()で状態の周期を探して飛ばすかどうか返す.
+     *
+     * @return 飛ばすならtrue
+     */
+    public boolean isCycleDetection() {
+        return cycleDetection;
+    }
+
+    /**
+     * 前回のupdateTo()で見つけた周期を返す.
+     *
+     * @return 周期. 見つからなかった場合は0.
+     */
+    public long getCyclePeriod() {
+        return cycleDetector.period();
+    }
+
+    /**
+     * 前回のupdateTo()で, 状態が周期的になっていることを確かめたステップ数を返す.
+     * 過渡期間の長さはこれ以下である.
+     *
+     * @return ステップ数. 見つからなかった場合は-1.
+     */
+    public long getCycleStart() {
+        return cycleDetector.cycleStart();
+    }
+
+    /**
+     * 指定したルールに従う車のうち, 前のセルが埋まっていて進めない車を飛ばせるかどうか返す.
+     *
+     * @param rule ルール. nullならルールなし.
+     * @return 飛ばせるならtrue
+     */
+    boolean canSkipBlockedCars(@Nullable Car.Rule rule) {
+        return rule == null || (activeSetScheduling && !rule.needsEveryStep());
+    }
+
+    /**
+     * ステップごとの集計を設定する.
+     *
+     * @param metrics 集計. nullなら集計しない.
+     */
+    public void setMetrics(@Nullable SimulationMetrics metrics) {
+        checkNotMovingInParallel();
+        this.metrics = metrics;
+    }
+
+    /**
+     * 設定されているステップごとの集計を返す.
+     *
+     * @return 集計. 設定されていなければnull.
+     */
+    @Nullable
+    public SimulationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 通過台数を数える断面を返す.
+     *
+     * @return 断面の位置. 集計しない場合は空.
+     */
+    int[] crossSections() {
+        SimulationMetrics current = metrics;
+        return current == null ? NO_CROSS_SECTIONS : current.crossSections();
+    }
+
+    /**
+     * 固有のルールを持つ車があるかどうか返す.
+     *
+     * @return あればtrue
+     */
+    boolean hasRuledCars() {
+        return ruledCarCount.get() != 0;
+    }
+
+    /**
+     * 車固有のルールが変更されたことを通知する.
+     *
+     * @param before 変更前のルール
+     * @param after  変更後のルール
+     */
+    void onCarRuleChanged(Car.Rule before, Car.Rule after) {
+        if (before == null && after != null) {
+            ruledCarCount.incrementAndGet();
+        } else if (before != null && after == null) {
+            ruledCarCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 車のスピードが変更されたことを通知する.
+     *
+     * @param before 変更前のスピード
+     * @param after  変更後のスピード
+     */
+    void onCarSpeedChanged(int before, int after) {
+        if (before == 1 && after != 1) {
+            nonDefaultSpeedCarCount.incrementAndGet();
+        } else if (before != 1 && after == 1) {
+            nonDefaultSpeedCarCount.decrementAndGet();
         }
     }
 
@@ -107,17 +847,11 @@ public class TrafficManager {
      */
     @Nullable
     Road right(Road road) {
-        int index = roads.indexOf(road);
-
-        if (index == -1) {
+        if (!isManaging(road)) {
             throw new IllegalArgumentException("Road not managed by this manager.");
         }
 
-        try {
-            return roads.get(index + 1);
-        } catch (IndexOutOfBoundsException e) {
-            return null;
-        }
+        return road.rightLane();
     }
 
     /**
@@ -128,17 +862,11 @@ public class TrafficManager {
      */
     @Nullable
     Road left(Road road) {
-        int index = roads.indexOf(road);
-
-        if (index == -1) {
+        if (!isManaging(road)) {
             throw new IllegalArgumentException("Road not managed by this manager.");
         }
 
-        try {
-            return roads.get(index - 1);
-        } catch (IndexOutOfBoundsException e) {
-            return null;
-        }
+        return road.leftLane();
     }
 
     /**
@@ -148,21 +876,49 @@ public class TrafficManager {
      * @param rule ルール
      */
     public void addRule(Car.Rule rule) {
+        checkNotMovingInParallel();
         this.rule = rule;
+        batchRule = null;
+    }
+
+    /**
+     * このTrafficManagerが管理する車全体に, 道路ごとにまとめて適用される移動ルールを設定する.
+     * addRule()で設定したルールは削除される. 道路または車固有のルールのほうが優先される.
+     *
+     * @param batchRule ルール
+     */
+    public void addBatchRule(BatchRule batchRule) {
+        checkNotMovingInParallel();
+        this.batchRule = batchRule;
+        rule = null;
     }
 
     /**
      * このTrafficManagerが管理する車全体に適用される移動ルールを削除する.
-     * 道路または車固有のルールには影響しない.
+     * addBatchRule()で設定したルールも削除する. 道路または車固有のルールには影響しない.
      */
     public void removeRule() {
+        checkNotMovingInParallel();
         rule = null;
+        batchRule = null;
+    }
+
+    /**
+     * 道路ごとにまとめて適用される移動ルールを返す.
+     *
+     * @return ルール. 設定されていなければnull.
+     */
+    @Nullable
+    BatchRule getBatchRule() {
+        return batchRule;
     }
 
     /**
      * 管理しているすべての道のバッファを反映する.
      */
     public void reflesh() {
+        checkNotMovingInParallel();
+
         for (Road road : roads) {
             road.reflesh();
         }
@@ -188,16 +944,13 @@ public class TrafficManager {
      */
     @Nullable
     Road getRoad(Car car) {
-        Road contain = null;
-
-        for (Road road : roads) {
-            if (road.contains(car)) {
-                contain = road;
-                break;
-            }
+        //車は自分が走っている道を知っている
+        Road road = car.road();
+        if (road == null || !isManaging(road)) {
+            return null;
         }
 
-        return contain;
+        return road;
     }
 
     /**
@@ -215,25 +968,21 @@ public class TrafficManager {
         if (length < 0)
             throw new IllegalArgumentException("length must be bigger than or equal to 0.");
 
-        if (length > road.forwardFreeLength(target))
-            length = road.forwardFreeLength(target);
-
-        int currentPosition = road.positionOf(target);
-
-        road.removeCar(target);
-        road.addCar(target, currentPosition + length);
+        road.moveCar(target, length);
     }
 
     /**
      * 指定した車の車線を変更する.
      * 今回は使用せず.
+     * 並列に更新している間や, 車線変更をまとめて反映する設定で更新している間は要求を記録するだけで,
+     * 実際の車線変更はステップの最後に行う. この場合, 移動先が1ステップ前に空いていて要求を受け付けたかどうかを返す.
      *
      * @param target 車
      * @param to     移動先の道
      * @return 成功／失敗
      */
     boolean changeRoad(Car target, Road to) {
-        if (!roads.contains(to)) {
+        if (!isManaging(to)) {
             throw new IllegalArgumentException("Road not managed by this manager.");
         }
 
@@ -242,11 +991,22 @@ public class TrafficManager {
             return false;
         }
 
-        if (to.addCar(target, from.positionOf(target))) {
-            from.removeCar(target);
+        if (collectingLaneChanges) {
+            int position = from.positionOf(target);
+            if (to.isFilled(position)) {
+                return false;
+            }
+            return from.requestLaneChange(target, to);
+        }
+
+        //車は同時に1つの道にしか存在できないので, 先に元の道から外す
+        int position = from.positionOf(target);
+        from.removeCar(target);
+        if (to.addCar(target, position)) {
             return true;
         }
 
+        from.addCar(target, position);
         return false;
     }
 }
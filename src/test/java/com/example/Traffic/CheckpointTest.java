@@ -0,0 +1,97 @@
+package com.example.Traffic;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * まとめて進めている道のチェックポイントが, 道を車の状態に戻さずに取れて, 戻してから取ったものと一致することを確かめる.
+ */
+public class CheckpointTest {
+    private static final LocalRule SLOW_START = LocalRule.compile(1, 1, neighbourhood -> !neighbourhood.wasNextFilled());
+
+    @Test
+    public void captureKeepsPackedRoads() throws IOException {
+        RuleRegistry registry = new RuleRegistry().register("slow-start", SLOW_START);
+        for (long seed = 0; seed < 60; seed++) {
+            Random random = new Random(seed);
+            TrafficManager manager = new TrafficManager();
+            if (seed % 2 == 1) {
+                manager.addBatchRule(SLOW_START);
+            }
+            for (int lane = 0; lane < 1 + random.nextInt(3); lane++) {
+                manager.addRoad(randomRoad(random, 1 + random.nextInt(seed % 4 == 0 ? 5 : 300)));
+            }
+            manager.reflesh();
+            //周期境界を越えて並びがずれるまで進める
+            for (int step = random.nextInt(200); step >= 0; step--) {
+                manager.update();
+            }
+
+            String message = "seed " + seed;
+            CompactRoad[] compacts = new CompactRoad[manager.getRoads().size()];
+            for (int i = 0; i < compacts.length; i++) {
+                compacts[i] = manager.getRoads().get(i).compact();
+                assertNotNull(message, compacts[i]);
+            }
+            byte[] packed = toBytes(Checkpoint.capture(manager, registry));
+            for (int i = 0; i < compacts.length; i++) {
+                assertSame(message, compacts[i], manager.getRoads().get(i).compact());
+            }
+
+            for (Road road : manager.getRoads()) {
+                road.unpack();
+            }
+            assertArrayEquals(message, toBytes(Checkpoint.capture(manager, registry)), packed);
+
+            //戻したものも同じように進む
+            TrafficManager restored = Checkpoint.readFrom(new ByteArrayInputStream(packed)).restore(registry);
+            for (int step = 0; step < 20; step++) {
+                manager.update();
+                restored.update();
+            }
+            assertEquals(message, cars(manager), cars(restored));
+        }
+    }
+
+    private static byte[] toBytes(Checkpoint checkpoint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checkpoint.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static String randomRoad(Random random, int length) {
+        double density = random.nextDouble();
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(random.nextDouble() < density ? '1' : '0');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 道ごとに, 進んだ距離の合計と, 車のID・位置・前のセルが埋まっていたかどうかの履歴を並べる.
+     */
+    private static String cars(TrafficManager manager) {
+        StringBuilder builder = new StringBuilder();
+        for (Road road : manager.getRoads()) {
+            builder.append(road.movedLength()).append(':');
+            for (Car car : road.getCars()) {
+                builder.append(car.id).append('@').append(road.positionOf(car))
+                        .append(car.isNextFilled() ? 'n' : '.')
+                        .append(car.wasNextFilled() ? 'w' : '.')
+                        .append(',');
+            }
+            builder.append('|');
+        }
+        return builder.append(manager.getSteps()).toString();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.Traffic;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 長い道を区間に分けて並列に進めた結果が, 1スレッドで進めた結果と一致することを確かめる.
+ */
+public class DecomposedStepTest {
+    //区間に分けるのはCHUNK_WORDSの2倍以上のワードがある場合. 2^20セルを超え, ワードの境界にも揃わない長さにする
+    private static final int LENGTH = (1 << 20) + 37;
+    private static final int STEPS = 120;
+
+    @Test
+    public void decomposedStepMatchesSingleThread() {
+        for (long seed = 0; seed < 3; seed++) {
+            String condition = randomRoad(seed, 0.2 + 0.25 * seed);
+
+            TrafficManager single = new TrafficManager();
+            Road singleRoad = single.addRoad(condition);
+
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                TrafficManager decomposed = new TrafficManager();
+                decomposed.setParallel(true);
+                decomposed.setExecutor(pool);
+                Road decomposedRoad = decomposed.addRoad(condition);
+
+                for (int step = 0; step < STEPS; step++) {
+                    single.update();
+                    decomposed.update();
+                    if (step % 40 == 0) {
+                        assertEquals("seed " + seed + " step " + step, singleRoad.toString(), decomposedRoad.toString());
+                    }
+                }
+                assertEquals("seed " + seed, singleRoad.toString(), decomposedRoad.toString());
+                assertEquals("seed " + seed, singleRoad.movedLength(), decomposedRoad.movedLength());
+                assertEquals("seed " + seed, cars(singleRoad), cars(decomposedRoad));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static String randomRoad(long seed, double density) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(LENGTH);
+        for (int i = 0; i < LENGTH; i++) {
+            builder.append(random.nextDouble() < density ? '1' : '0');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 車のIDと位置を並べる. 車のIDはTrafficManagerごとに振るので, 同じ初期状態なら一致する.
+     */
+    private static String cars(Road road) {
+        StringBuilder builder = new StringBuilder();
+        for (Car car : road.getCars()) {
+            builder.append(car.id).append('@').append(road.positionOf(car)).append(',');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.Traffic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 渋滞の問い合わせ(getJams(), getJamCount(), distanceToNextJam())が, セルを端から走査して求めた結果と一致することを確かめる.
+ */
+public class JamQueryTest {
+    private static final LocalRule SLOW_START = LocalRule.compile(1, 1, neighbourhood -> !neighbourhood.wasNextFilled());
+
+    @Test
+    public void perCarRoadMatchesScan() {
+        for (long seed = 0; seed < 60; seed++) {
+            Random random = new Random(seed);
+            TrafficManager manager = new TrafficManager();
+            manager.setSeed(seed);
+            for (int lane = 0; lane < 1 + random.nextInt(3); lane++) {
+                manager.addRoad(randomRoad(random, 1 + random.nextInt(seed % 4 == 0 ? 4 : 150)));
+            }
+            manager.reflesh();
+            manager.addBatchRule(BatchRule.nagelSchreckenberg(3, 0.3));
+            checkSteps(manager, random, 40);
+        }
+    }
+
+    @Test
+    public void packedRoadMatchesScan() {
+        for (long seed = 0; seed < 60; seed++) {
+            Random random = new Random(seed);
+            TrafficManager manager = new TrafficManager();
+            manager.addRoad(randomRoad(random, 1 + random.nextInt(seed % 4 == 0 ? 4 : 400)));
+            if (seed % 2 == 1) {
+                manager.addBatchRule(SLOW_START);
+            }
+            checkSteps(manager, random, 40);
+        }
+    }
+
+    @Test
+    public void sparseRoadMatchesScan() {
+        for (long seed = 0; seed < 30; seed++) {
+            Random random = new Random(seed);
+            int length = 2 + random.nextInt(300);
+            int[] carPositions = new int[random.nextInt(length)];
+            for (int i = 0; i < carPositions.length; i++) {
+                carPositions[i] = random.nextInt(length);
+            }
+            TrafficManager manager = new TrafficManager();
+            manager.addSparseRoad(length, carPositions);
+            checkSteps(manager, random, 40);
+        }
+    }
+
+    /**
+     * 並列に更新している間, ルールが隣の車線の渋滞を問い合わせても, 逐次の更新と同じ結果になる.
+     */
+    @Test
+    public void neighbourQueriesInParallelMatchSequential() {
+        ForkJoinPool pool = new ForkJoinPool(8);
+        try {
+            for (long seed = 0; seed < 2; seed++) {
+                TrafficManager sequential = neighbourQueryingManager(seed);
+                sequential.setDeferredLaneChanges(true);
+                TrafficManager parallel = neighbourQueryingManager(seed);
+                parallel.setParallel(true);
+                parallel.setExecutor(pool);
+
+                for (int step = 0; step < 10; step++) {
+                    sequential.update();
+                    parallel.update();
+                    for (int i = 0; i < sequential.getRoads().size(); i++) {
+                        Road road = parallel.getRoads().get(i);
+                        assertEquals("seed " + seed + " step " + step,
+                                sequential.getRoads().get(i).toString(), road.toString());
+                        assertEquals("seed " + seed + " step " + step, scanJams(road), road.getJams());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 状態が変わった直後の道に, 複数のスレッドから同時に問い合わせても, 索引が壊れない.
+     */
+    @Test
+    public void concurrentQueriesAfterStateChange() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            TrafficManager manager = new TrafficManager();
+            Road road = manager.addRoad(randomRoad(new Random(1), 200000));
+            CyclicBarrier barrier = new CyclicBarrier(threads);
+            for (int step = 0; step < 30; step++) {
+                //ルール184で進めると, 索引は最初の問い合わせまで作られない
+                manager.update();
+                List<Future<List<Jam>>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(executor.submit(() -> {
+                        barrier.await();
+                        road.distanceToNextJam(0);
+                        return road.getJams();
+                    }));
+                }
+                List<Jam> jams = scanJams(road);
+                for (Future<List<Jam>> result : results) {
+                    assertEquals("step " + step, jams, result.get());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 左右の車線の渋滞の数と次の渋滞までの距離で進むかどうか決める車が走る, 16車線の道を作る.
+     */
+    private static TrafficManager neighbourQueryingManager(long seed) {
+        Random random = new Random(seed);
+        TrafficManager manager = new TrafficManager();
+        for (int lane = 0; lane < 16; lane++) {
+            manager.addRoad(randomRoad(random, 20000));
+        }
+        manager.reflesh();
+        manager.addRule(new Car.Rule() {
+            @Override
+            public void onMove(Car car, Road leftRoad, Road rightRoad, int forwardFreeLength,
+                               int backwardFreeLength, int nextJamLength, boolean wasNextFilled) {
+                int position = car.getRoad().positionOf(car);
+                long score = 1;
+                for (Road neighbour : new Road[]{leftRoad, rightRoad}) {
+                    if (neighbour != null) {
+                        score += neighbour.distanceToNextJam(position) + neighbour.getJamCount();
+                    }
+                }
+                if (score % 4 != 0) {
+                    car.move(1);
+                }
+                super.onMove(car, leftRoad, rightRoad, forwardFreeLength, backwardFreeLength, nextJamLength, wasNextFilled);
+            }
+        });
+        return manager;
+    }
+
+    /**
+     * 指定したステップ数だけ進めながら, 毎ステップすべての道の渋滞を走査した結果と比べる.
+     */
+    private static void checkSteps(TrafficManager manager, Random random, int steps) {
+        for (int step = 0; step < steps; step++) {
+            manager.update();
+            for (Road road : manager.getRoads()) {
+                String message = "step " + step + " " + road;
+                List<Jam> jams = scanJams(road);
+                assertEquals(message, jams, road.getJams());
+                assertEquals(message, jams.size(), road.getJamCount());
+                for (int i = 0; i < 20; i++) {
+                    int position = random.nextInt(road.length);
+                    assertEquals(message + " at " + position, scanDistance(road, position),
+                            road.distanceToNextJam(position));
+                }
+            }
+        }
+    }
+
+    /**
+     * セルを端から走査して, 2台以上隙間なく並んだ車列を最後尾の位置の昇順に返す.
+     */
+    private static List<Jam> scanJams(Road road) {
+        int length = road.length;
+        List<Jam> jams = new ArrayList<>();
+        //空いているセルから数え始めれば, 周期境界をまたぐ車列も1つにまとまる
+        int empty = -1;
+        for (int position = 0; position < length; position++) {
+            if (!road.isFilled(position)) {
+                empty = position;
+                break;
+            }
+        }
+        if (empty < 0) {
+            if (length >= 2) {
+                jams.add(new Jam(0, length, length));
+            }
+            return jams;
+        }
+
+        for (int offset = 1; offset <= length; offset++) {
+            int position = (empty + offset) % length;
+            if (!road.isFilled(position) || road.isFilled(position - 1))
+                continue;
+
+            int count = 0;
+            while (road.isFilled(position + count)) {
+                count++;
+            }
+            if (count >= 2) {
+                jams.add(new Jam(position, count, length));
+            }
+        }
+        jams.sort((a, b) -> Integer.compare(a.getTail(), b.getTail()));
+        return jams;
+    }
+
+    /**
+     * セルを1つずつ進んで, 次の渋滞の最後尾に着くまでのセル数を返す.
+     */
+    private static int scanDistance(Road road, int position) {
+        List<Jam> jams = scanJams(road);
+        if (jams.isEmpty())
+            return Integer.MAX_VALUE;
+
+        for (Jam jam : jams) {
+            if (Math.floorMod(position - jam.getTail(), road.length) < jam.getLength())
+                return 0;
+        }
+        for (int distance = 1; ; distance++) {
+            int cell = (position + distance) % road.length;
+            for (Jam jam : jams) {
+                if (jam.getTail() == cell)
+                    return distance;
+            }
+        }
+    }
+
+    private static String randomRoad(Random random, int length) {
+        double density = random.nextDouble();
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(random.nextDouble() < density ? '1' : '0');
+        }
+        return builder.toString();
+    }
+}
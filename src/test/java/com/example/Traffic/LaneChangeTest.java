@@ -0,0 +1,152 @@
+package com.example.Traffic;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 車線変更をステップの最後にまとめて反映する場合, 逐次の更新と並列の更新で結果が一致することを確かめる.
+ * すぐに反映する従来の逐次の更新は, 車線変更がなければ他と一致することを確かめる.
+ * 従来の更新では車線変更してきた車がいるセルへ進もうとした車が消えるので, 車線変更がある場合は比べない.
+ */
+public class LaneChangeTest {
+    private static final int STEPS = 80;
+
+    private enum Mode {
+        //逐次の更新で, 車線変更をすぐに反映する
+        IMMEDIATE,
+        //逐次の更新で, 車線変更をステップの最後にまとめて反映する
+        DEFERRED,
+        //並列の更新. 車線変更は常にまとめて反映する
+        PARALLEL,
+    }
+
+    private static ExecutorService single;
+    private static ExecutorService pool;
+
+    @BeforeClass
+    public static void startExecutors() {
+        single = Executors.newSingleThreadExecutor();
+        pool = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterClass
+    public static void stopExecutors() {
+        single.shutdown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void deferredMatchesParallel() {
+        for (long seed = 0; seed < 100; seed++) {
+            String deferred = run(seed, Mode.DEFERRED, null, true);
+            assertEquals("seed " + seed, deferred, run(seed, Mode.PARALLEL, single, true));
+            assertEquals("seed " + seed, deferred, run(seed, Mode.PARALLEL, pool, true));
+        }
+    }
+
+    @Test
+    public void allModesMatchWithoutLaneChanges() {
+        for (long seed = 0; seed < 100; seed++) {
+            String immediate = run(seed, Mode.IMMEDIATE, null, false);
+            assertEquals("seed " + seed, immediate, run(seed, Mode.DEFERRED, null, false));
+            assertEquals("seed " + seed, immediate, run(seed, Mode.PARALLEL, pool, false));
+        }
+    }
+
+    /**
+     * 乱数で作った複数車線の道を進め, 毎ステップの道の状態を並べて返す.
+     * まとめて反映する場合は, 毎ステップ, 車の数が変わらず, どの車も1つの道にだけいて, 同じ道で車が重ならないことも確かめる.
+     *
+     * @param seed        道を作る乱数の種
+     * @param mode        更新の仕方
+     * @param executor    並列の更新に使うExecutorService
+     * @param laneChanges 車線変更するならtrue
+     * @return 毎ステップの道の状態
+     */
+    private static String run(long seed, Mode mode, @Nullable ExecutorService executor, boolean laneChanges) {
+        Random random = new Random(seed);
+        int length = 2 + random.nextInt(200);
+        int lanes = 2 + random.nextInt(5);
+
+        TrafficManager manager = new TrafficManager();
+        manager.setParallel(mode == Mode.PARALLEL);
+        manager.setExecutor(executor);
+        manager.setDeferredLaneChanges(mode == Mode.DEFERRED);
+        List<Road> roads = new ArrayList<>();
+        for (int lane = 0; lane < lanes; lane++) {
+            double density = random.nextDouble();
+            StringBuilder condition = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                condition.append(random.nextDouble() < density ? '1' : '0');
+            }
+            roads.add(manager.addRoad(condition.toString()));
+        }
+        manager.addRule(new Car.Rule() {
+            @Override
+            public void onMove(Car car, Road leftRoad, Road rightRoad, int forwardFreeLength,
+                               int backwardFreeLength, int nextJamLength, boolean wasNextFilled) {
+                //車のIDと位置だけから決まる選択. 前が詰まっていれば左右か最初の車線へ移る
+                int choice = (int) ((car.id * 2654435761L + car.getRoad().positionOf(car)) >>> 3) & 7;
+                if (laneChanges && forwardFreeLength == 0 && choice < 3 && leftRoad != null) {
+                    car.changeRoad(leftRoad);
+                } else if (laneChanges && forwardFreeLength == 0 && choice < 6 && rightRoad != null) {
+                    car.changeRoad(rightRoad);
+                } else if (laneChanges && choice == 7 && roads.size() > 2) {
+                    car.changeRoad(roads.get(0));
+                } else {
+                    car.move(1);
+                }
+                if (car.getRoad() != null) {
+                    super.onMove(car, leftRoad, rightRoad, forwardFreeLength, backwardFreeLength, nextJamLength, wasNextFilled);
+                }
+            }
+        });
+        manager.reflesh();
+        int carCount = 0;
+        for (Road road : roads) {
+            carCount += road.getCars().length;
+        }
+
+        StringBuilder states = new StringBuilder();
+        for (int step = 0; step < STEPS; step++) {
+            manager.update();
+            for (Road road : roads) {
+                for (Car car : road.getCars()) {
+                    states.append(car.id).append('@').append(road.positionOf(car)).append(',');
+                }
+                states.append('|');
+            }
+            states.append('\n');
+            if (mode == Mode.IMMEDIATE)
+                continue;
+
+            String message = "seed " + seed + " step " + step;
+            Set<Car> cars = new HashSet<>();
+            for (Road road : roads) {
+                Set<Integer> positions = new HashSet<>();
+                road.forEachBufferedCar((car, position) -> {
+                    assertTrue(message, positions.add(position));
+                    assertTrue(message, cars.add(car));
+                    assertSame(message, road, car.getRoad());
+                });
+            }
+            assertEquals(message, carCount, cars.size());
+        }
+        return states.toString();
+    }
+}
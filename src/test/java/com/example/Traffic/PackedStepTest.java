@@ -0,0 +1,162 @@
+package com.example.Traffic;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 1ビット1セルの道をワード単位で進めた結果が, 車ごとにルールを呼んで進めた結果と一致することを確かめる.
+ */
+public class PackedStepTest {
+    //LocalRuleの近傍の半径と履歴の深さの組み合わせ
+    private static final int[] RADII = {1, 2, 3, 8};
+    private static final int[] HISTORY_DEPTHS = {1, 0, 1, 0};
+    private static final LocalRule.Definition[] DEFINITIONS = {
+            //スロースタート
+            neighbourhood -> !neighbourhood.wasNextFilled(),
+            neighbourhood -> !(neighbourhood.isFilled(-1) && !neighbourhood.isFilled(2)),
+            neighbourhood -> neighbourhood.isFilled(-3) || !neighbourhood.isFilled(3) || neighbourhood.wasNextFilled(),
+            neighbourhood -> !neighbourhood.isFilled(8) ^ neighbourhood.isFilled(-5),
+    };
+
+    @Test
+    public void ruleLessStepMatchesPerCarRule() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 300; trial++) {
+            int length = 1 + random.nextInt(trial % 3 == 0 ? 3000 : 200);
+            String condition = randomRoad(random, length, random.nextDouble());
+
+            TrafficManager packed = new TrafficManager();
+            Road packedRoad = packed.addRoad(condition);
+            TrafficManager perCar = new TrafficManager();
+            perCar.addRule(new Car.Rule() {
+                @Override
+                public void onMove(Car car, Road leftRoad, Road rightRoad, int forwardFreeLength,
+                                   int backwardFreeLength, int nextJamLength, boolean wasNextFilled) {
+                    car.move(1);
+                    super.onMove(car, leftRoad, rightRoad, forwardFreeLength, backwardFreeLength, nextJamLength, wasNextFilled);
+                }
+            });
+            Road perCarRoad = perCar.addRoad(condition);
+
+            int steps = random.nextInt(300);
+            for (int step = 0; step < steps; step++) {
+                packed.update();
+                perCar.update();
+            }
+            assertEquals("trial " + trial, perCarRoad.toString(), packedRoad.toString());
+            assertEquals("trial " + trial, positions(perCar), positions(packed));
+            assertEquals("trial " + trial, perCarRoad.movedLength(), packedRoad.movedLength());
+
+            //車の状態に戻した後も同じように進む
+            for (int step = 0; step < 5; step++) {
+                packed.update();
+                perCar.update();
+            }
+            assertEquals("trial " + trial, positions(perCar), positions(packed));
+        }
+    }
+
+    @Test
+    public void localRuleStepMatchesPerCarRule() {
+        for (long trial = 0; trial < 200; trial++) {
+            Random random = new Random(trial);
+            int kind = (int) (trial % DEFINITIONS.length);
+            int length = 1 + random.nextInt(trial % 3 == 0 ? 10 : 300);
+            int lanes = 1 + random.nextInt(3);
+            double density = random.nextDouble();
+
+            TrafficManager packed = new TrafficManager();
+            packed.setParallel(trial % 5 == 0);
+            packed.addBatchRule(LocalRule.compile(RADII[kind], HISTORY_DEPTHS[kind], DEFINITIONS[kind]));
+            TrafficManager perCar = new TrafficManager();
+            perCar.addRule(perCarRule(kind));
+            for (int lane = 0; lane < lanes; lane++) {
+                String condition = randomRoad(random, length, density);
+                packed.addRoad(condition);
+                perCar.addRoad(condition);
+            }
+            packed.reflesh();
+            perCar.reflesh();
+
+            for (int step = 0; step < 300; step++) {
+                packed.update();
+                perCar.update();
+                if (step % 97 == 0) {
+                    assertEquals("trial " + trial + " step " + step, cars(perCar), cars(packed));
+                }
+            }
+            assertEquals("trial " + trial, cars(perCar), cars(packed));
+        }
+    }
+
+    /**
+     * LocalRuleと同じ遷移表を, 車ごとに近傍を集めて引くルールを返す.
+     */
+    private static Car.Rule perCarRule(int kind) {
+        int radius = RADII[kind];
+        LocalRule table = LocalRule.compile(radius, HISTORY_DEPTHS[kind], DEFINITIONS[kind]);
+        return new Car.Rule() {
+            @Override
+            public void onMove(Car car, Road leftRoad, Road rightRoad, int forwardFreeLength,
+                               int backwardFreeLength, int nextJamLength, boolean wasNextFilled) {
+                if (forwardFreeLength > 0) {
+                    Road road = car.getRoad();
+                    int position = road.positionOf(car);
+                    int window = 0;
+                    for (int offset = -radius; offset <= radius; offset++) {
+                        if (road.isFilled(position + offset)) {
+                            window |= 1 << (offset + radius);
+                        }
+                    }
+                    if (table.moves(window, wasNextFilled)) {
+                        car.move(1);
+                    }
+                }
+                super.onMove(car, leftRoad, rightRoad, forwardFreeLength, backwardFreeLength, nextJamLength, wasNextFilled);
+            }
+        };
+    }
+
+    private static String randomRoad(Random random, int length, double density) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(random.nextDouble() < density ? '1' : '0');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 道ごとに, 車のIDと位置を並べる. ルールのない車は前のセルが埋まっていたかどうかの履歴を更新しないので, 履歴は比べない.
+     */
+    private static String positions(TrafficManager manager) {
+        StringBuilder builder = new StringBuilder();
+        for (Road road : manager.getRoads()) {
+            for (Car car : road.getCars()) {
+                builder.append(car.id).append('@').append(road.positionOf(car)).append(',');
+            }
+            builder.append('|');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 道ごとに, 進んだ距離の合計と, 車のID・位置・前のセルが埋まっていたかどうかの履歴を並べる.
+     */
+    private static String cars(TrafficManager manager) {
+        StringBuilder builder = new StringBuilder();
+        for (Road road : manager.getRoads()) {
+            builder.append(road.movedLength()).append(':');
+            for (Car car : road.getCars()) {
+                builder.append(car.id).append('@').append(road.positionOf(car))
+                        .append(car.isNextFilled() ? 'n' : '.')
+                        .append(car.wasNextFilled() ? 'w' : '.')
+                        .append(',');
+            }
+            builder.append('|');
+        }
+        return builder.append(manager.getSteps()).toString();
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.Traffic;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 計算の枠と待ち行列が埋まっている場合, 後から来たリクエストには本文を読まずに503を返すことを確かめる.
+ */
+public class SimulationServerTest {
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    @Test
+    public void excessRequestIsRejectedWithoutReadingBody() throws Exception {
+        try (SimulationServer server = new SimulationServer(new RuleRegistry(), 0, 1, 0)) {
+            //本文を送り終えないリクエストで, ただ1つの枠を埋める
+            try (Socket holding = openPost(server, 1_000_000, "1010\n")) {
+                waitUntilRunning(server);
+
+                //本文を1バイトも送らなくても, すぐに断られる
+                try (Socket excess = openPost(server, 1_000_000, "")) {
+                    assertEquals("HTTP/1.1 503 Service Unavailable", readStatusLine(excess));
+                }
+                assertEquals(1, server.getRejectedCount());
+            }
+
+            //枠が空けば受け付ける
+            try (Socket accepted = openPost(server, 5, "1010\n")) {
+                String response = readResponse(accepted);
+                assertTrue(response, response.startsWith("HTTP/1.1 200"));
+                //応答はチャンク形式なので, 初期状態と1ステップ後の行が含まれることだけ確かめる
+                assertTrue(response, response.contains("1010\n"));
+                assertTrue(response, response.contains("0101\n"));
+            }
+        }
+    }
+
+    @Test
+    public void tooManyCellsInBodyIsRejected() throws Exception {
+        try (SimulationServer server = new SimulationServer(new RuleRegistry(), 0, 1, 0)) {
+            server.setMaxCells(6);
+            try (Socket socket = openPost(server, 8, "111\n0000")) {
+                String response = readResponse(socket);
+                assertTrue(response, response.startsWith("HTTP/1.1 400"));
+            }
+        }
+    }
+
+    /**
+     * steps=1, format=bitsでPOSTを送り始める.
+     *
+     * @param contentLength Content-Lengthに書く本文の長さ
+     * @param body          実際に送る本文. contentLengthより短ければ, 残りは送らない.
+     */
+    private static Socket openPost(SimulationServer server, int contentLength, String body) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /simulate?steps=1&format=bits HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + body).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * 最初のリクエストが枠を得るまで待つ.
+     */
+    private static void waitUntilRunning(SimulationServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (server.getRunningCount() == 0) {
+            assertTrue("The first request did not start.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * 応答の最初の行を読む. 本文を送り終えていない接続はサーバーがすぐには閉じないので, 最後までは読まない.
+     */
+    private static String readStatusLine(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 接続が閉じられるまで応答を読む.
+     */
+    private static String readResponse(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            response.write(buffer, 0, read);
+        }
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+}